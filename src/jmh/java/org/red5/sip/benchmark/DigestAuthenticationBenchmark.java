@@ -0,0 +1,51 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoolu.sip.authentication.DigestAuthentication;
+import org.zoolu.sip.header.WwwAuthenticateHeader;
+
+/**
+ * Computes the digest response to a 401 challenge, as done by the registration and invite clients for every
+ * authenticated request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestAuthenticationBenchmark {
+	@Param({ "none", "auth" })
+	public String qop;
+
+	private WwwAuthenticateHeader challenge;
+
+	@Setup
+	public void setup() {
+		if ("none".equals(qop)) {
+			qop = null;
+			challenge = new WwwAuthenticateHeader("Digest realm=\"asterisk\", nonce=\"3b3bd8e1\", algorithm=MD5");
+		} else {
+			challenge = new WwwAuthenticateHeader(
+					"Digest realm=\"asterisk\", nonce=\"3b3bd8e1\", algorithm=MD5, qop=\"auth\"");
+		}
+	}
+
+	@Benchmark
+	public String response() {
+		return new DigestAuthentication("REGISTER", "sip:asterisk.example.com", challenge, qop, null, "6001",
+				"secret").getResponse();
+	}
+}
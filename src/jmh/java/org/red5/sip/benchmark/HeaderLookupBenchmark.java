@@ -0,0 +1,62 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.zoolu.sip.header.MaxForwardsHeader;
+import org.zoolu.sip.message.Message;
+
+/**
+ * Reads the headers of a parsed INVITE through <code>BaseMessage</code>, which finds them in the header index of the
+ * message: the lookups done by the transaction and dialog layers, and the same lookups after an edit of the message,
+ * which has the index rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderLookupBenchmark {
+	private Message message;
+	private int maxForwards = 70;
+
+	@Setup
+	public void setup() {
+		message = new Message(SipMessageBenchmark.INVITE);
+		message.getViaHeader();
+	}
+
+	@Benchmark
+	public void lookup(Blackhole bh) {
+		lookup(message, bh);
+	}
+
+	@Benchmark
+	public void editThenLookup(Blackhole bh) {
+		message.setMaxForwardsHeader(new MaxForwardsHeader(maxForwards));
+		maxForwards = maxForwards == 70 ? 69 : 70;
+		lookup(message, bh);
+	}
+
+	private static void lookup(Message message, Blackhole bh) {
+		bh.consume(message.getViaHeader());
+		bh.consume(message.getFromHeader());
+		bh.consume(message.getToHeader());
+		bh.consume(message.getCallIdHeader());
+		bh.consume(message.getCSeqHeader());
+		bh.consume(message.getContactHeader());
+		bh.consume(message.getContentLengthHeader());
+		bh.consume(message.hasHeader("Subject"));
+	}
+}
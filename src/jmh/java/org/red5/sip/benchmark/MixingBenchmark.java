@@ -0,0 +1,71 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.codecs.asao.Decoder;
+import org.red5.codecs.asao.DecoderMap;
+import org.red5.sip.util.ResampleUtils;
+
+/**
+ * Mixes one Nellymoser frame of <code>streams</code> RTMP participants, as <code>RTPStreamMultiplexingSender</code>
+ * does on every tick: each stream is decoded with its own decoder state, added to the mix and the result normalized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixingBenchmark {
+	@Param({ "1", "2", "4", "8", "16" })
+	public int streams;
+
+	private Decoder decoder;
+	private byte[][] data;
+	private DecoderMap[] decoderMaps;
+	private byte[] asaoBuffer;
+	private float[] decodedBuffer;
+	private float[] multiplexedBuffer;
+	private int frame;
+
+	@Setup
+	public void setup() {
+		decoder = new Decoder();
+		data = new byte[streams][];
+		decoderMaps = new DecoderMap[streams];
+		for (int i = 0; i < streams; i++) {
+			data[i] = NellymoserBenchmark.frames(NellymoserBenchmark.FRAMES, i);
+		}
+		asaoBuffer = new byte[NellymoserBenchmark.ENCODED_FRAME_SIZE];
+		decodedBuffer = new float[NellymoserBenchmark.DECODED_FRAME_SIZE];
+		multiplexedBuffer = new float[NellymoserBenchmark.DECODED_FRAME_SIZE];
+	}
+
+	@Benchmark
+	public float[] mix() {
+		int offset = frame * NellymoserBenchmark.ENCODED_FRAME_SIZE;
+		frame = (frame + 1) % NellymoserBenchmark.FRAMES;
+		for (int i = 0; i < streams; i++) {
+			System.arraycopy(data[i], offset, asaoBuffer, 0, asaoBuffer.length);
+			decoderMaps[i] = decoder.decode(decoderMaps[i], asaoBuffer, 0, decodedBuffer, 0);
+			if (i > 0) {
+				ResampleUtils.multiplex(multiplexedBuffer, decodedBuffer);
+			} else {
+				System.arraycopy(decodedBuffer, 0, multiplexedBuffer, 0, decodedBuffer.length);
+			}
+		}
+		ResampleUtils.normalize(multiplexedBuffer, multiplexedBuffer.length);
+		return multiplexedBuffer;
+	}
+}
@@ -0,0 +1,83 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.codecs.asao.Decoder;
+import org.red5.codecs.asao.DecoderMap;
+import org.red5.codecs.asao.Encoder;
+import org.red5.codecs.asao.EncoderMap;
+
+/**
+ * Decodes one Nellymoser frame (64 bytes, 256 samples), the format of the audio coming from the RTMP side, and encodes
+ * one, as done for the audio sent to the rooms as Nellymoser. The frames decoded are encoded from synthetic speech.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NellymoserBenchmark {
+	static final int DECODED_FRAME_SIZE = 256;
+	static final int ENCODED_FRAME_SIZE = 64;
+	static final int FRAMES = 50;
+
+	private Decoder decoder;
+	private DecoderMap decoderMap;
+	private Encoder encoder;
+	private EncoderMap encoderMap;
+	private byte[] data;
+	private float[] samples;
+	private float[] decoded;
+	private byte[] encoded;
+	private int frame;
+
+	@Setup
+	public void setup() {
+		decoder = new Decoder();
+		encoder = new Encoder();
+		data = frames(FRAMES, 0);
+		samples = Signals.speech(FRAMES * DECODED_FRAME_SIZE, 8000);
+		decoded = new float[DECODED_FRAME_SIZE];
+		encoded = new byte[ENCODED_FRAME_SIZE];
+	}
+
+	@Benchmark
+	public float[] decode() {
+		decoderMap = decoder.decode(decoderMap, data, frame * ENCODED_FRAME_SIZE, decoded, 0);
+		frame = (frame + 1) % FRAMES;
+		return decoded;
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		encoderMap = encoder.encode(encoderMap, samples, frame * DECODED_FRAME_SIZE, encoded, 0);
+		frame = (frame + 1) % FRAMES;
+		return encoded;
+	}
+
+	/**
+	 * <code>frames</code> consecutive Nellymoser frames of synthetic speech, with a different voice for each
+	 * <code>stream</code>.
+	 */
+	static byte[] frames(int frames, int stream) {
+		float[] samples = Signals.speech(frames * DECODED_FRAME_SIZE, 8000, 120 + 15 * stream);
+		byte[] data = new byte[frames * ENCODED_FRAME_SIZE];
+		Encoder encoder = new Encoder();
+		EncoderMap map = null;
+		for (int i = 0; i < frames; i++) {
+			map = encoder.encode(map, samples, i * DECODED_FRAME_SIZE, data, i * ENCODED_FRAME_SIZE);
+		}
+		return data;
+	}
+}
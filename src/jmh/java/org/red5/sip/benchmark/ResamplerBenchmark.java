@@ -0,0 +1,56 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.sip.util.ArraySampleBuffers;
+
+import com.laszlosystems.libresample4j.Resampler;
+
+/**
+ * Resamples one mixed Nellymoser frame from the RTMP sampling rate to the 8 kHz of the telephony codecs, as
+ * <code>RTPStreamMultiplexingSender</code> does before encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+	private static final int CODEC_RATE = 8000;
+
+	@Param({ "11025", "22050", "44100" })
+	public int rate;
+
+	private double factor;
+	private Resampler resampler;
+	private ArraySampleBuffers buffers;
+	private float[] in;
+	private float[] out;
+
+	@Setup
+	public void setup() {
+		factor = CODEC_RATE / (double) rate;
+		resampler = new Resampler(true, factor, factor);
+		buffers = new ArraySampleBuffers();
+		in = Signals.speech(NellymoserBenchmark.DECODED_FRAME_SIZE, rate);
+		out = new float[(int) (NellymoserBenchmark.DECODED_FRAME_SIZE * factor)];
+	}
+
+	@Benchmark
+	public float[] resample() {
+		resampler.process(factor, buffers.set(in, 0, in.length, out, 0, out.length), true);
+		return out;
+	}
+}
@@ -0,0 +1,33 @@
+package org.red5.sip.benchmark;
+
+import java.util.Random;
+
+/**
+ * Synthetic audio fed to the benchmarks. The codecs take 16 bit samples held in floats.
+ */
+final class Signals {
+	private Signals() {
+	}
+
+	/**
+	 * A voice-like signal: a 150 Hz fundamental with a few decaying harmonics and some noise, so that the codecs do not
+	 * take their silence shortcuts.
+	 */
+	static float[] speech(int length, int sampleRate) {
+		return speech(length, sampleRate, 150);
+	}
+
+	static float[] speech(int length, int sampleRate, double fundamental) {
+		float[] samples = new float[length];
+		Random random = new Random(length);
+		for (int i = 0; i < length; i++) {
+			double t = i / (double) sampleRate;
+			double v = 0;
+			for (int h = 1; h <= 5; h++) {
+				v += Math.sin(2 * Math.PI * fundamental * h * t) / h;
+			}
+			samples[i] = (float) (6000 * v + 200 * random.nextGaussian());
+		}
+		return samples;
+	}
+}
@@ -0,0 +1,59 @@
+package org.red5.sip.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.red5.codecs.SIPCodec;
+import org.red5.codecs.SIPCodecFactory;
+
+/**
+ * Encodes and decodes one 20 ms frame with the telephony codecs: PCMU (0), PCMA (8), G.729 (18) and iLBC (111).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipCodecBenchmark {
+	@Param({ "0", "8", "18", "111" })
+	public int codecId;
+
+	private SIPCodec codec;
+	private float[] pcm;
+	private byte[] encoded;
+	private float[] decoded;
+
+	@Setup
+	public void setup() {
+		codec = SIPCodecFactory.getInstance().getSIPMediaCodec(codecId);
+		codec.encodeInit(SIPCodec.DEFAULT_PACKETIZATION);
+		codec.decodeInit(SIPCodec.DEFAULT_PACKETIZATION);
+		pcm = Signals.speech(codec.getOutgoingDecodedFrameSize(), codec.getSampleRate());
+		encoded = new byte[codec.getOutgoingEncodedFrameSize()];
+		decoded = new float[codec.getIncomingDecodedFrameSize()];
+		codec.pcmToCodec(pcm, encoded);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		codec.pcmToCodec(pcm, encoded);
+		return encoded;
+	}
+
+	@Benchmark
+	public float[] decode() {
+		codec.codecToPcm(encoded, decoded);
+		return decoded;
+	}
+}
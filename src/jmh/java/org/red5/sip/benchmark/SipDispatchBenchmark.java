@@ -0,0 +1,89 @@
+package org.red5.sip.benchmark;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zoolu.sip.message.Message;
+import org.zoolu.sip.provider.SipProvider;
+import org.zoolu.sip.provider.SipProviderListener;
+
+/**
+ * Routes a received response to its client transaction among <code>transactions</code> live ones, as
+ * <code>SipProvider.processReceivedMessage</code> does for every message handed by the transport: parse, identifiers
+ * and listener lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipDispatchBenchmark {
+	private static final String BRANCH = "z9hG4bK7d2e4f81";
+
+	/** Gives access to the processing of received messages. */
+	private static class Provider extends SipProvider {
+		Provider(int port) {
+			super("127.0.0.1", port, new String[] { PROTO_UDP }, "127.0.0.1");
+		}
+
+		void receive(Message msg) {
+			processReceivedMessage(msg);
+		}
+	}
+
+	@Param({ "10000" })
+	public int transactions;
+
+	private Provider provider;
+	private byte[] response;
+	private long received = 0;
+
+	private final SipProviderListener listener = new SipProviderListener() {
+		public void onReceivedMessage(SipProvider sipProvider, Message message) {
+			received++;
+		}
+	};
+
+	private static byte[] response(int transaction) {
+		return SipMessageBenchmark.OK.replace(BRANCH, BRANCH + transaction).getBytes(Charset.forName("UTF-8"));
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		DatagramSocket socket = new DatagramSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		provider = new Provider(port);
+		for (int i = 0; i < transactions; i++) {
+			byte[] data = response(i);
+			provider.addSipProviderListener(new Message(data, 0, data.length).getTransactionId(), listener);
+		}
+		response = response(transactions / 2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		provider.halt();
+	}
+
+	@Benchmark
+	public long dispatch() {
+		provider.receive(new Message(response, 0, response.length));
+		return received;
+	}
+}
@@ -0,0 +1,111 @@
+package org.red5.sip.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.zoolu.sip.message.Message;
+
+/**
+ * Parses a received message the way <code>SipProvider.processReceivedMessage</code> does: from the datagram bytes up
+ * to the identifiers used to find its listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipMessageBenchmark {
+	static final String REGISTER = "REGISTER sip:asterisk.example.com SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.10:5070;rport;branch=z9hG4bK536780314\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:6001@asterisk.example.com>\r\n"
+			+ "From: <sip:6001@asterisk.example.com>;tag=z9hG4bK98076213\r\n"
+			+ "Call-ID: 823451917015@192.168.1.10\r\n"
+			+ "CSeq: 2 REGISTER\r\n"
+			+ "Contact: <sip:6001@192.168.1.10:5070>;expires=3600\r\n"
+			+ "Expires: 3600\r\n"
+			+ "User-Agent: red5sip\r\n"
+			+ "Authorization: Digest username=\"6001\", realm=\"asterisk\", nonce=\"3b3bd8e1\", "
+			+ "uri=\"sip:asterisk.example.com\", algorithm=MD5, response=\"7a8f7e9f1cf6ad1b3d8e1d3bb3a3d5a1\"\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+
+	static final String INVITE = "INVITE sip:6001@192.168.1.10:5070 SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=z9hG4bK2b7c1e5f;rport\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "From: \"6002\" <sip:6002@asterisk.example.com>;tag=as3a1c4b2e\r\n"
+			+ "To: <sip:6001@192.168.1.10:5070>\r\n"
+			+ "Contact: <sip:6002@192.168.1.1:5060>\r\n"
+			+ "Call-ID: 5d1e0a6f3b8c7d9e@192.168.1.1:5060\r\n"
+			+ "CSeq: 102 INVITE\r\n"
+			+ "User-Agent: Asterisk PBX 13.1.0\r\n"
+			+ "Date: Mon, 12 Dec 2016 10:21:35 GMT\r\n"
+			+ "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH\r\n"
+			+ "Supported: replaces, timer\r\n"
+			+ "Content-Type: application/sdp\r\n"
+			+ "Content-Length: 311\r\n"
+			+ "\r\n"
+			+ "v=0\r\n"
+			+ "o=root 1646523145 1646523145 IN IP4 192.168.1.1\r\n"
+			+ "s=Asterisk PBX 13.1.0\r\n"
+			+ "c=IN IP4 192.168.1.1\r\n"
+			+ "t=0 0\r\n"
+			+ "m=audio 17278 RTP/AVP 0 8 18 111 101\r\n"
+			+ "a=rtpmap:0 PCMU/8000\r\n"
+			+ "a=rtpmap:8 PCMA/8000\r\n"
+			+ "a=rtpmap:18 G729/8000\r\n"
+			+ "a=rtpmap:111 iLBC/8000\r\n"
+			+ "a=rtpmap:101 telephone-event/8000\r\n"
+			+ "a=fmtp:101 0-16\r\n"
+			+ "a=ptime:20\r\n"
+			+ "a=sendrecv\r\n";
+
+	static final String OK = "SIP/2.0 200 OK\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.10:5070;rport=5070;branch=z9hG4bK7d2e4f81\r\n"
+			+ "From: <sip:6001@asterisk.example.com>;tag=z9hG4bK11387215\r\n"
+			+ "To: <sip:6002@asterisk.example.com>;tag=as5f8e2a9d\r\n"
+			+ "Call-ID: 371650284913@192.168.1.10\r\n"
+			+ "CSeq: 1 INVITE\r\n"
+			+ "Server: Asterisk PBX 13.1.0\r\n"
+			+ "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH\r\n"
+			+ "Supported: replaces, timer\r\n"
+			+ "Contact: <sip:6002@192.168.1.1:5060>\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+
+	@Param({ "REGISTER", "INVITE", "OK" })
+	public String message;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() {
+		String str = "REGISTER".equals(message) ? REGISTER : "INVITE".equals(message) ? INVITE : OK;
+		data = str.getBytes(Charset.forName("UTF-8"));
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		Message msg = new Message(data, 0, data.length);
+		bh.consume(msg.getTransactionId());
+		bh.consume(msg.getMethodId());
+		if (!msg.isRegister()) {
+			bh.consume(msg.getDialogId());
+		}
+		bh.consume(msg.getViaHeader().getSentBy());
+		bh.consume(msg.getBody());
+	}
+}
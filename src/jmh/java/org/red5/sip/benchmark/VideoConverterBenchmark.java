@@ -0,0 +1,169 @@
+package org.red5.sip.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import local.net.RtpPacket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.red5.codecs.SIPCodec;
+import org.red5.codecs.SIPCodecFactory;
+import org.red5.sip.app.SIPVideoConverter;
+
+/**
+ * Converts a group of pictures of H.264 video between RTMP and RTP with <code>SIPVideoConverter</code>. The stream
+ * is synthetic: an AVC configuration record followed by one IDR and 29 P frames of typical sizes, so that the IDR is
+ * split into many FU-A packets and the P frames into a few. Scores are per frame, except for the keyframe benchmarks
+ * which only convert the IDR: its size goes up to that of a 1080p keyframe, and the cost should grow linearly with it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoConverterBenchmark {
+	private static final int GOP = 30;
+	private static final int P_SIZE = 3000;
+	private static final int FRAME_INTERVAL = 40; // ms
+	private static final int H264 = 35;
+
+	private static final byte[] SPS = { 0x67, 0x42, (byte) 0xe0, 0x1f, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6,
+			(byte) 0x9b, (byte) 0x80, (byte) 0x80, (byte) 0x83, 0x01 };
+	private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+	@Param({ "30000", "150000", "600000" })
+	public int idrSize;
+
+	private SIPCodec codec;
+	private SIPVideoConverter converter;
+	private byte[] config;
+	private byte[][] frames;
+	private List<RtpPacket> packets;
+	private List<RtpPacket> keyframePackets;
+
+	@Setup
+	public void setup() {
+		codec = SIPCodecFactory.getInstance().getSIPMediaCodec(H264);
+		converter = new SIPVideoConverter(null);
+		config = config();
+		Random random = new Random(GOP);
+		frames = new byte[GOP][];
+		for (int i = 0; i < GOP; i++) {
+			frames[i] = frame(i == 0, i == 0 ? idrSize : P_SIZE, random);
+		}
+		// the converter reuses its packets, keep copies
+		packets = new ArrayList<RtpPacket>();
+		addCopies(packets, converter.rtmp2rtp(config, 0, codec));
+		int keyframeStart = packets.size();
+		for (int i = 0; i < GOP; i++) {
+			addCopies(packets, converter.rtmp2rtp(frames[i], i * FRAME_INTERVAL, codec));
+		}
+		int seqn = 0;
+		for (RtpPacket packet : packets) {
+			packet.setPayloadType(H264);
+			packet.setSequenceNumber(seqn++);
+		}
+		keyframePackets = new ArrayList<RtpPacket>(packets.subList(0, keyframeStart));
+		for (RtpPacket packet : packets.subList(keyframeStart, packets.size())) {
+			keyframePackets.add(packet);
+			if (packet.getPacket()[1] < 0) { // marker
+				break;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(GOP)
+	public void rtmp2rtp(Blackhole bh) {
+		bh.consume(converter.rtmp2rtp(config, 0, codec));
+		for (int i = 0; i < GOP; i++) {
+			bh.consume(converter.rtmp2rtp(frames[i], i * FRAME_INTERVAL, codec));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(GOP)
+	public void rtp2rtmp(Blackhole bh) {
+		converter.resetConverter();
+		for (RtpPacket packet : packets) {
+			bh.consume(converter.rtp2rtmp(packet, codec));
+		}
+	}
+
+	@Benchmark
+	public void keyframeRtmp2rtp(Blackhole bh) {
+		bh.consume(converter.rtmp2rtp(config, 0, codec));
+		bh.consume(converter.rtmp2rtp(frames[0], 0, codec));
+	}
+
+	@Benchmark
+	public void keyframeRtp2rtmp(Blackhole bh) {
+		converter.resetConverter();
+		for (RtpPacket packet : keyframePackets) {
+			bh.consume(converter.rtp2rtmp(packet, codec));
+		}
+	}
+
+	private static void addCopies(List<RtpPacket> list, List<RtpPacket> packets) {
+		for (RtpPacket packet : packets) {
+			RtpPacket copy = new RtpPacket(new byte[packet.getLength()], packet.getLength());
+			System.arraycopy(packet.getPacket(), 0, copy.getPacket(), 0, packet.getLength());
+			list.add(copy);
+		}
+	}
+
+	/** RTMP AVC sequence header: an AVCDecoderConfigurationRecord with 4 byte NAL lengths. */
+	private static byte[] config() {
+		byte[] data = new byte[5 + 6 + 2 + SPS.length + 3 + PPS.length];
+		int i = 0;
+		data[i++] = 0x17; // key frame, AVC
+		data[i++] = 0; // sequence header
+		i += 3; // composition time
+		data[i++] = 1; // configuration version
+		data[i++] = SPS[1]; // profile
+		data[i++] = SPS[2]; // compatibility
+		data[i++] = SPS[3]; // level
+		data[i++] = (byte) 0xff; // NAL length size - 1
+		data[i++] = (byte) 0xe1; // one SPS
+		data[i++] = (byte) (SPS.length >>> 8);
+		data[i++] = (byte) SPS.length;
+		System.arraycopy(SPS, 0, data, i, SPS.length);
+		i += SPS.length;
+		data[i++] = 1; // one PPS
+		data[i++] = (byte) (PPS.length >>> 8);
+		data[i++] = (byte) PPS.length;
+		System.arraycopy(PPS, 0, data, i, PPS.length);
+		return data;
+	}
+
+	/** RTMP AVC NALU packet holding one slice of <code>size</code> bytes. */
+	private static byte[] frame(boolean idr, int size, Random random) {
+		byte[] data = new byte[5 + 4 + size];
+		data[0] = (byte) (idr ? 0x17 : 0x27);
+		data[1] = 1; // NALU
+		data[5] = (byte) (size >>> 24);
+		data[6] = (byte) (size >>> 16);
+		data[7] = (byte) (size >>> 8);
+		data[8] = (byte) size;
+		byte[] slice = new byte[size];
+		random.nextBytes(slice);
+		slice[0] = (byte) (idr ? 0x65 : 0x41);
+		System.arraycopy(slice, 0, data, 9, size);
+		return data;
+	}
+}
@@ -232,6 +232,79 @@ public class G711
    }
 
    
+   /** Linear PCM values of the 256 u-law codes. */
+   static final short[] ULAW_DECODE=new short[256];
+
+   /** Linear PCM values of the 256 A-law codes. */
+   static final short[] ALAW_DECODE=new short[256];
+
+   /** u-law codes of the 16-bit linear PCM values, indexed by <i>pcm_val</i>&amp;0xFFFF. */
+   static final byte[] ULAW_ENCODE=new byte[0x10000];
+
+   /** A-law codes of the 16-bit linear PCM values, indexed by <i>pcm_val</i>&amp;0xFFFF. */
+   static final byte[] ALAW_ENCODE=new byte[0x10000];
+
+   static
+   {  for (int i=0; i<256; i++)
+      {  ULAW_DECODE[i]=(short)ulaw2linear(i);
+         ALAW_DECODE[i]=(short)alaw2linear(i);
+      }
+      for (int pcm_val=Short.MIN_VALUE; pcm_val<=Short.MAX_VALUE; pcm_val++)
+      {  ULAW_ENCODE[pcm_val&0xFFFF]=(byte)linear2ulaw(pcm_val);
+         ALAW_ENCODE[pcm_val&0xFFFF]=(byte)linear2alaw(pcm_val);
+      }
+   }
+
+   /** Clips a float sample to the 16-bit range, truncating it like an int cast. */
+   private static int clip(float sample)
+   {  if (sample>=Short.MAX_VALUE) return Short.MAX_VALUE;
+      if (sample<=Short.MIN_VALUE) return Short.MIN_VALUE;
+      return (int)sample;
+   }
+
+   /** Encodes <i>len</i> linear PCM samples to u-law.
+     * Samples out of the 16-bit range are encoded as the maximum value, as with linear2ulaw(int). */
+   public static void linear2ulaw(float[] src, int src_off, int len, byte[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ULAW_ENCODE[clip(src[src_off+i])&0xFFFF];
+   }
+
+   /** Encodes <i>len</i> 16-bit linear PCM samples to u-law. */
+   public static void linear2ulaw(short[] src, int src_off, int len, byte[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ULAW_ENCODE[src[src_off+i]&0xFFFF];
+   }
+
+   /** Encodes <i>len</i> linear PCM samples to A-law.
+     * Samples out of the 16-bit range are encoded as the maximum value, as with linear2alaw(int). */
+   public static void linear2alaw(float[] src, int src_off, int len, byte[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ALAW_ENCODE[clip(src[src_off+i])&0xFFFF];
+   }
+
+   /** Encodes <i>len</i> 16-bit linear PCM samples to A-law. */
+   public static void linear2alaw(short[] src, int src_off, int len, byte[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ALAW_ENCODE[src[src_off+i]&0xFFFF];
+   }
+
+   /** Decodes <i>len</i> u-law values to linear PCM. */
+   public static void ulaw2linear(byte[] src, int src_off, int len, float[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ULAW_DECODE[src[src_off+i]&0xFF];
+   }
+
+   /** Decodes <i>len</i> u-law values to 16-bit linear PCM. */
+   public static void ulaw2linear(byte[] src, int src_off, int len, short[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ULAW_DECODE[src[src_off+i]&0xFF];
+   }
+
+   /** Decodes <i>len</i> A-law values to linear PCM. */
+   public static void alaw2linear(byte[] src, int src_off, int len, float[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ALAW_DECODE[src[src_off+i]&0xFF];
+   }
+
+   /** Decodes <i>len</i> A-law values to 16-bit linear PCM. */
+   public static void alaw2linear(byte[] src, int src_off, int len, short[] dst, int dst_off)
+   {  for (int i=0; i<len; i++) dst[dst_off+i]=ALAW_DECODE[src[src_off+i]&0xFF];
+   }
+
+   
    /** PCM ecoder/decoder tests. */
    /*public static void main(String[] args)
    {
@@ -26,35 +26,77 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 
 /** RtpSocket implements a RTP socket for receiving and sending RTP packets. 
   * <p> RtpSocket is associated to a DatagramSocket that is used
   * to send and/or receive RtpPackets.
+  * <p> When the DatagramSocket belongs to a DatagramChannel, packets are
+  * sent and received through the channel using two reused direct buffers,
+  * and the channel may be non-blocking and polled with {@link #poll(RtpPacket)}
+  * (e.g. from a Selector loop servicing many sockets).
   */
 public class RtpSocket
 {
+   /** Size of the direct buffers, larger than any MTU sized RTP packet */
+   public static final int BUFFER_SIZE=8192;
+
    /** UDP socket */
    DatagramSocket socket;
         
+   /** UDP channel of the socket, or null */
+   DatagramChannel channel;
+
    /** Remote address */
    InetAddress r_addr;
 
    /** Remote port */
    int r_port;
 
+   /** Remote socket address (channel only) */
+   InetSocketAddress r_soaddr=null;
+
+   /** Receive buffer (channel) or datagram (socket) */
+   ByteBuffer r_buffer=null;
+   DatagramPacket r_datagram=null;
+
+   /** Send buffer (channel) or datagram (socket) */
+   ByteBuffer s_buffer=null;
+   DatagramPacket s_datagram=null;
+
    /** Creates a new RTP socket (only receiver) */ 
    public RtpSocket(DatagramSocket datagram_socket)
-   {  socket=datagram_socket;
-      r_addr=null;
-      r_port=0;
+   {  this(datagram_socket,null,0);
    }
 
    /** Creates a new RTP socket (sender and receiver) */ 
    public RtpSocket(DatagramSocket datagram_socket, InetAddress remote_address, int remote_port)
    {  socket=datagram_socket;
+      channel=datagram_socket.getChannel();
       r_addr=remote_address;
       r_port=remote_port;
+      if (channel!=null)
+      {  r_buffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+         s_buffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+         if (r_addr!=null) r_soaddr=new InetSocketAddress(r_addr,r_port);
+      }
+      else
+      {  r_datagram=new DatagramPacket(new byte[0],0);
+         s_datagram=new DatagramPacket(new byte[0],0,r_addr,r_port);
+      }
+   }
+
+   /** Creates a new RTP socket (only receiver) on a DatagramChannel */ 
+   public RtpSocket(DatagramChannel datagram_channel)
+   {  this(datagram_channel.socket(),null,0);
+   }
+
+   /** Creates a new RTP socket (sender and receiver) on a DatagramChannel */ 
+   public RtpSocket(DatagramChannel datagram_channel, InetAddress remote_address, int remote_port)
+   {  this(datagram_channel.socket(),remote_address,remote_port);
    }
 
    /** Returns the RTP DatagramSocket */ 
@@ -62,19 +104,67 @@ public class RtpSocket
    {  return socket;
    }
 
+   /** Returns the RTP DatagramChannel, or null if the socket has no channel */ 
+   public DatagramChannel getDatagramChannel()
+   {  return channel;
+   }
+
    /** Receives a RTP packet from this socket */
    public void receive(RtpPacket rtpp) throws IOException
-   {  DatagramPacket datagram=new DatagramPacket(rtpp.packet,rtpp.packet.length);
-      socket.receive(datagram);
-      rtpp.packet_len=datagram.getLength();     
+   {  if (channel!=null)
+      {  synchronized (r_buffer)
+         {  r_buffer.clear();
+            channel.receive(r_buffer);
+            copyReceived(rtpp);
+         }
+      }
+      else
+      {  synchronized (r_datagram)
+         {  r_datagram.setData(rtpp.packet,0,rtpp.packet.length);
+            socket.receive(r_datagram);
+            rtpp.packet_len=r_datagram.getLength();
+         }
+      }
    }
    
-   /** Sends a RTP packet from this socket */      
-   public void send(RtpPacket rtpp) throws IOException
-   {  DatagramPacket datagram=new DatagramPacket(rtpp.packet,rtpp.packet_len);
-      datagram.setAddress(r_addr);
-      datagram.setPort(r_port);
-      socket.send(datagram);
+   /** Receives a RTP packet from a non-blocking channel, if one is available.
+     * @return false if no packet was pending */
+   public boolean poll(RtpPacket rtpp) throws IOException
+   {  synchronized (r_buffer)
+      {  r_buffer.clear();
+         if (channel.receive(r_buffer)==null) return false;
+         copyReceived(rtpp);
+         return true;
+      }
+   }
+
+   /** Copies the datagram in the receive buffer to the RtpPacket */
+   private void copyReceived(RtpPacket rtpp)
+   {  r_buffer.flip();
+      int len=Math.min(r_buffer.remaining(),rtpp.packet.length);
+      r_buffer.get(rtpp.packet,0,len);
+      rtpp.packet_len=len;
+   }
+
+   /** Sends a RTP packet from this socket.
+     * @return false if the packet was dropped, because the channel is
+     * non-blocking and its send buffer is full */      
+   public boolean send(RtpPacket rtpp) throws IOException
+   {  if (channel!=null)
+      {  synchronized (s_buffer)
+         {  s_buffer.clear();
+            s_buffer.put(rtpp.packet,0,rtpp.packet_len);
+            s_buffer.flip();
+            return channel.send(s_buffer,r_soaddr)>0;
+         }
+      }
+      else
+      {  synchronized (s_datagram)
+         {  s_datagram.setData(rtpp.packet,0,rtpp.packet_len);
+            socket.send(s_datagram);
+            return true;
+         }
+      }
    }
 
    /** Closes this socket */      
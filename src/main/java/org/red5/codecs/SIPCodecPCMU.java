@@ -62,9 +62,7 @@ public class SIPCodecPCMU implements SIPCodec {
 	public int codecToPcm(byte[] bufferIn, float[] bufferOut) {
 
 		if (bufferIn.length > 0) {
-			for (int i = 0; i < bufferIn.length; i++) {
-				bufferOut[i] = (float) G711.ulaw2linear((int) bufferIn[i]);
-			}
+			G711.ulaw2linear(bufferIn, 0, bufferIn.length, bufferOut, 0);
 
 			return bufferOut.length;
 		} else {
@@ -76,9 +74,7 @@ public class SIPCodecPCMU implements SIPCodec {
 	public int pcmToCodec(float[] bufferIn, byte[] bufferOut) {
 
 		if (bufferIn.length > 0) {
-			for (int i = 0; i < bufferIn.length; i++) {
-				bufferOut[i] = (byte) G711.linear2ulaw((int) bufferIn[i]);
-			}
+			G711.linear2ulaw(bufferIn, 0, bufferIn.length, bufferOut, 0);
 
 			return bufferOut.length;
 		} else {
@@ -97,10 +97,22 @@ public final class Codec {
 
 	public static final float[] e = makeTableE();
 
+	private static final SetupTable SETUP_124 = new SetupTable(124);
+
 	public static void process(float[] af, float[] af1, int i1, byte[] abyte0, int j1, float[] af2, float[] af3,
 			float[] af4, float[] af5, float[] af6, int[] ai) {
 
-		StateTable j2 = new StateTable(abyte0, j1);
+		process(af, af1, i1, abyte0, j1, af2, af3, af4, af5, af6, ai, new StateTable(), new short[124]);
+	}
+
+	/**
+	 * Encodes one frame using the caller supplied <code>j2</code> and <code>aword0</code> as scratch, so that
+	 * a stream keeping them across frames does not allocate.
+	 */
+	public static void process(float[] af, float[] af1, int i1, byte[] abyte0, int j1, float[] af2, float[] af3,
+			float[] af4, float[] af5, float[] af6, int[] ai, StateTable j2, short[] aword0) {
+
+		j2.reset(abyte0, j1);
 		process(af, af1, i1, af2, 0, 7);
 		process(af, af1, i1 + 128, af2, 128, 7);
 		for (int k1 = 0; k1 < 23; k1++) {
@@ -137,9 +149,9 @@ public final class Codec {
 
 		}
 
-		int k3 = process(af5, 124, 198, ai);
+		int k3 = process(af5, 124, 198, ai, aword0);
 
-		for (int i4 = 0; i4 < 256; /* FIXME DEAD CODE i4 += 128 */) {
+		for (int i4 = 0; i4 < 256; i4 += 128) {
 			for (int l4 = 0; l4 < 124; l4++) {
 				int k5 = ai[l4];
 				if (k5 > 0) {
@@ -149,16 +161,17 @@ public final class Codec {
 				}
 			}
 
+			// pad each half of the frame with the bits left over by the allocation
 			int i5 = k3;
 			do {
 				if (i5 <= 0) {
-					continue;
+					break;
 				}
 				if (i5 > 8) {
 					j2.state(0, 8);
 				} else {
 					j2.state(0, i5);
-					continue;
+					break;
 				}
 				i5 -= 8;
 			} while (true);
@@ -169,7 +182,17 @@ public final class Codec {
 	public static void process(float[] af, byte[] abyte0, int i1, float[] af1, int j1, float[] af2, float[] af3,
 			float[] af4, byte[] abyte1, int[] ai) {
 
-		StateTable j2 = new StateTable(abyte0, i1);
+		process(af, abyte0, i1, af1, j1, af2, af3, af4, abyte1, ai, new StateTable(), new short[124]);
+	}
+
+	/**
+	 * Decodes one frame using the caller supplied <code>j2</code> and <code>aword0</code> as scratch, so that
+	 * a stream keeping them across frames does not allocate.
+	 */
+	public static void process(float[] af, byte[] abyte0, int i1, float[] af1, int j1, float[] af2, float[] af3,
+			float[] af4, byte[] abyte1, int[] ai, StateTable j2, short[] aword0) {
+
+		j2.reset(abyte0, i1);
 		int k1 = j2.state(g[0]);
 		abyte1[0] = (byte) k1;
 		af2[0] = i_nelly_init_table[k1];
@@ -189,7 +212,7 @@ public final class Codec {
 
 		}
 
-		int i3 = process(af4, 124, 198, ai);
+		int i3 = process(af4, 124, 198, ai, aword0);
 		for (int j3 = 0; j3 < 256; j3 += 128) {
 			for (int l3 = 0; l3 < 124; l3++) {
 				int l4 = ai[l3];
@@ -508,6 +531,11 @@ public final class Codec {
 
 	static int process(float[] af, int i1, int j1, int[] ai) {
 
+		return process(af, i1, j1, ai, new short[124]);
+	}
+
+	static int process(float[] af, int i1, int j1, int[] ai, short[] aword0) {
+
 		float f1 = 0.0F;
 		for (int k1 = 0; k1 < i1; k1++) {
 			if (af[k1] > f1) {
@@ -516,7 +544,6 @@ public final class Codec {
 		}
 
 		int l1 = process((int) f1) - 16;
-		short[] aword0 = new short[124];
 		if (l1 < 0) {
 			for (int i2 = 0; i2 < i1; i2++) {
 				aword0[i2] = (short) ((int) af[i2] >> -l1);
@@ -529,7 +556,7 @@ public final class Codec {
 
 		}
 
-		SetupTable setupTable = new SetupTable(i1);
+		SetupTable setupTable = i1 == 124 ? SETUP_124 : new SetupTable(i1);
 
 		for (int k2 = 0; k2 < i1; k2++) {
 			aword0[k2] = (short) (aword0[k2] * 3 >> 2);
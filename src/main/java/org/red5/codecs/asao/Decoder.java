@@ -45,7 +45,7 @@ public final class Decoder {
 		NellyDecoderMap nellyDecoderMap = (NellyDecoderMap) d1;
 
 		Codec.process(nellyDecoderMap.a, abyte0, i, af, j, nellyDecoderMap.c, nellyDecoderMap.d, nellyDecoderMap.e,
-				nellyDecoderMap.f, nellyDecoderMap.g);
+				nellyDecoderMap.f, nellyDecoderMap.g, nellyDecoderMap.h, nellyDecoderMap.i);
 
 		return d1;
 	}
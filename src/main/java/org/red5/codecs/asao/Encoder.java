@@ -44,7 +44,7 @@ public final class Encoder {
 
 		NellyEncoderMap nellyEncoderMap = (NellyEncoderMap) e1;
 		Codec.process(nellyEncoderMap.a, af, j, abyte0, k, nellyEncoderMap.c, nellyEncoderMap.d, nellyEncoderMap.e,
-				nellyEncoderMap.f, nellyEncoderMap.g, nellyEncoderMap.h);
+				nellyEncoderMap.f, nellyEncoderMap.g, nellyEncoderMap.h, nellyEncoderMap.i, nellyEncoderMap.j);
 
 		return e1;
 	}
@@ -46,6 +46,10 @@ final class NellyDecoderMap implements DecoderMap {
 
 	public final int[] g = new int[124];
 
+	public final StateTable h = new StateTable();
+
+	public final short[] i = new short[124];
+
 	final Decoder decoder;
 
 	public NellyDecoderMap(Decoder decoder) {
@@ -48,6 +48,10 @@ final class NellyEncoderMap implements EncoderMap {
 
 	public final int[] h = new int[124];
 
+	public final StateTable i = new StateTable();
+
+	public final short[] j = new short[124];
+
 	final Encoder encoder;
 
 	public NellyEncoderMap(Encoder encoder) {
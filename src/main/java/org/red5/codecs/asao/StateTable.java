@@ -32,20 +32,31 @@ package org.red5.codecs.asao;
 //------------------------------------------------------------------------
 final class StateTable {
 
-	private final byte[] a;
+	private byte[] a;
 
-	private final int b;
+	private int b;
 
 	private int c;
 
 	private int d;
 
+	public StateTable() {
+
+	}
+
 	public StateTable(byte[] abyte0, int i) {
 
+		reset(abyte0, i);
+	}
+
+	/** Rewinds the table over a new packet, so one instance can be kept per stream. */
+	public StateTable reset(byte[] abyte0, int i) {
+
 		c = 0;
 		d = 0;
 		a = abyte0;
 		b = i;
+		return this;
 	}
 
 	public int state(int i) {
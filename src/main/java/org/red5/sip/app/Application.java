@@ -1,32 +1,143 @@
 package org.red5.sip.app;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
 import org.openmeetings.utils.PropertiesUtils;
+import org.red5.sip.metrics.MetricCollector;
+import org.red5.sip.metrics.MetricSource;
+import org.red5.sip.metrics.Metrics;
 import org.red5.sip.net.rtmp.RTMPControlClient;
 import org.red5.sip.net.rtmp.RTMPRoomClient;
 import org.red5.sip.net.rtp.RTPStreamMultiplexingSender;
 import org.red5.sip.net.rtp.RTPStreamSender;
+import org.red5.sip.util.MediaScheduler;
+import org.red5.sip.util.PortPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zoolu.net.SocketAddress;
 import org.zoolu.sip.address.NameAddress;
+import org.zoolu.sip.provider.SipDispatcher;
+import org.zoolu.sip.provider.SipProvider;
+import org.zoolu.sip.provider.SipStack;
 
 public class Application implements Daemon {
 	private static final Logger log = LoggerFactory.getLogger(Application.class);
 	private static final int SIP_START_PORT = 5070;
 	private static final int SOUND_START_PORT = 3010;
 	private static final int VIDEO_START_PORT = 7010;
-	private static int sipPort = SIP_START_PORT;
-	private static int soundPort = SOUND_START_PORT;
-	private static int videoPort = VIDEO_START_PORT;
+	private static final int DEFAULT_SIP_PORTS = 100;
+	private static final int DEFAULT_RTP_PORTS = 500;
+	private static final int DEFAULT_METRICS_PORT = 9464;
+	private static final String METRICS_ROOM = "room";
+	private static final long SHARED_REGISTER_RETRY_MS = 3000;
+	private static PortPool sipPorts;
+	private static PortPool soundPorts;
+	private static PortPool videoPorts;
 	private Properties props = null;
 	private Map<Long, SIPTransport> transportMap = new HashMap<>();
 	private RTMPControlClient rtmpControlClient;
+	private SipProvider sharedProvider;
+	private SIPRegisterAgent sharedRegisterAgent;
+	private final List<SIPTransport> sharedTransports = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Metrics of the whole process: port pools, media scheduler, SIP dispatcher and, when the rooms share it, the SIP
+	 * provider and its registration.
+	 */
+	private final MetricSource processMetrics = new MetricSource() {
+		public void collect(MetricCollector collector) {
+			collectPortPool(collector, "sip", sipPorts);
+			collectPortPool(collector, "rtp_audio", soundPorts);
+			collectPortPool(collector, "rtp_video", videoPorts);
+			collector.gauge(Metrics.PREFIX + "rooms", "Rooms served", transportMap.size());
+			MediaScheduler scheduler = MediaScheduler.getInstance();
+			collector.gauge(Metrics.PREFIX + "media_scheduler_queue_size", "Media tasks waiting to run",
+					scheduler.getQueueSize());
+			collector.gauge(Metrics.PREFIX + "media_scheduler_active_threads", "Media threads running a task",
+					scheduler.getActiveCount());
+			SipDispatcher dispatcher = SipDispatcher.peekInstance();
+			if (dispatcher != null) {
+				collector.counter(Metrics.PREFIX + "sip_dispatched_total", "SIP messages dispatched",
+						dispatcher.getDispatched());
+				collector.counter(Metrics.PREFIX + "sip_dispatch_dropped_total",
+						"SIP messages dropped because their lane was full", dispatcher.getDropped());
+				collector.gauge(Metrics.PREFIX + "sip_dispatch_queue_depth", "SIP messages waiting to be processed",
+						dispatcher.getQueueDepth());
+			}
+			SipProvider provider = sharedProvider;
+			SIPRegisterAgent ra = sharedRegisterAgent;
+			if (provider != null) {
+				SIPTransport.collectSip(collector, provider);
+				collector.gauge(Metrics.PREFIX + "registered", "Whether the contact is registered", ra != null
+						&& ra.isRegistered() ? 1 : 0);
+				collector.counter(Metrics.PREFIX + "registration_failures_total", "Failed registrations",
+						ra == null ? 0 : ra.getFailureCount());
+			}
+		}
+	};
+
+	private static void collectPortPool(MetricCollector collector, String name, PortPool pool) {
+		collector.gauge(Metrics.PREFIX + "ports_in_use_" + name, "Ports of the pool in use", pool.getInUse());
+		collector.gauge(Metrics.PREFIX + "ports_available_" + name, "Ports of the pool available",
+				pool.getAvailable());
+	}
+
+	/**
+	 * Creates the SipProvider shared by all rooms (single SIP port and receive loop) and registers it once to the
+	 * proxy. Rooms are told apart by the user part of their contact address. The result of every registration is
+	 * forwarded to the rooms; after a failure, the registration is tried again.
+	 */
+	private void createSharedProvider(Properties prop) {
+		int port = sipPorts.acquire();
+		log.info("Creating shared SIP provider on port: " + port);
+		SipStack.init();
+		sharedProvider = new SipProvider(null, port);
+		sharedProvider.setOutboundProxy(new SocketAddress(prop.getProperty("sip.obproxy")));
+		sharedProvider.setUserRouting(true);
+
+		String phone = prop.getProperty("sip.phone");
+		String proxy = prop.getProperty("sip.proxy");
+		String fromUrl = "\"" + phone + "\" <sip:" + phone + "@" + proxy + ">";
+		String contactUrl = "sip:" + phone + "@" + sharedProvider.getViaAddress();
+		if (sharedProvider.getPort() != SipStack.default_port) {
+			contactUrl += ":" + sharedProvider.getPort();
+		}
+		final SIPUserAgentProfile profile = new SIPUserAgentProfile();
+		sharedRegisterAgent = new SIPRegisterAgent(sharedProvider, fromUrl, contactUrl, prop.getProperty("sip.authid"),
+				prop.getProperty("sip.realm"), prop.getProperty("sip.secret"), new SIPRegisterAgentListener() {
+					public void onUaRegistrationSuccess(SIPRegisterAgent ra, NameAddress target, NameAddress contact,
+							String result) {
+						log.info("Shared provider registered successfully");
+						for (SIPTransport t : sharedTransports) {
+							t.onSharedRegistration(true, result);
+						}
+					}
+
+					public void onUaRegistrationFailure(final SIPRegisterAgent ra, NameAddress target,
+							NameAddress contact, String result) {
+						log.info("Shared provider register failure: " + result);
+						for (SIPTransport t : sharedTransports) {
+							t.onSharedRegistration(false, result);
+						}
+						MediaScheduler.getInstance().schedule(new Runnable() {
+							public void run() {
+								if (ra == sharedRegisterAgent) {
+									ra.loopRegister(profile.expires, profile.expires / 2, profile.keepaliveTime);
+								}
+							}
+						}, SHARED_REGISTER_RETRY_MS);
+					}
+				});
+		sharedRegisterAgent.loopRegister(profile.expires, profile.expires / 2, profile.keepaliveTime);
+	}
 
 	private SIPTransport createSIPTransport(Properties prop, long room_id) {
 		log.info("Creating SIP trasport for room: " + room_id);
@@ -34,25 +145,28 @@ public class Application implements Daemon {
 		RTMPRoomClient roomClient = new RTMPRoomClient(prop.getProperty("red5.host"), prop.getProperty("om.context",
 				"openmeetings"), room_id);
 
-		SIPTransport sipTransport = new SIPTransport(roomClient, sipPort++, soundPort++, videoPort++) {
-			public void onUaRegistrationSuccess(SIPRegisterAgent ra, NameAddress target, NameAddress contact,
-					String result) {
-				log.info("Registered successfully");
-				this.roomClient.setSipNumberListener(this);
-				this.roomClient.start();
+		int sipPort = -1, soundPort = -1, videoPort = -1;
+		try {
+			soundPort = soundPorts.acquire();
+			videoPort = videoPorts.acquire();
+			if (sharedProvider == null) {
+				sipPort = sipPorts.acquire();
 			}
+		} catch (IllegalStateException e) {
+			releasePorts(sipPort, soundPort, videoPort);
+			throw e;
+		}
 
-			public void onUaRegistrationFailure(SIPRegisterAgent ra, NameAddress target, NameAddress contact,
-					String result) {
-				log.info("Register failure");
-				try {
-					Thread.sleep(3000);
-				} catch (InterruptedException e) {
-					log.info("Reconnection pause was interrupted");
-				}
-				this.register();
-			}
-		};
+		SIPTransport sipTransport;
+		if (sharedProvider != null) {
+			sipTransport = new RoomSIPTransport(roomClient, sharedProvider, sharedRegisterAgent,
+					prop.getProperty("sip.phone") + "-" + room_id, soundPort, videoPort);
+			sharedTransports.add(sipTransport);
+		} else {
+			sipTransport = new RoomSIPTransport(roomClient, sipPort, soundPort, videoPort);
+		}
+		sipTransport.setRtmpNellymoser(prop.getProperty("rooms." + room_id + ".audio",
+				prop.getProperty("rooms.audio", "g711")).equals("nellymoser"));
 		sipTransport.login(prop.getProperty("sip.obproxy"), prop.getProperty("sip.phone"),
 				prop.getProperty("sip.authid"), prop.getProperty("sip.secret"), prop.getProperty("sip.realm"),
 				prop.getProperty("sip.proxy"));
@@ -60,6 +174,67 @@ public class Application implements Daemon {
 		return sipTransport;
 	}
 
+	private void putTransport(long roomId, SIPTransport sipTransport) {
+		transportMap.put(roomId, sipTransport);
+		Metrics.getInstance().register(METRICS_ROOM, Long.toString(roomId), sipTransport);
+	}
+
+	private static void releasePorts(int sipPort, int soundPort, int videoPort) {
+		if (sipPort != -1) {
+			sipPorts.release(sipPort);
+		}
+		if (soundPort != -1) {
+			soundPorts.release(soundPort);
+		}
+		if (videoPort != -1) {
+			videoPorts.release(videoPort);
+		}
+	}
+
+	private static class RoomSIPTransport extends SIPTransport {
+		private boolean closed = false;
+
+		RoomSIPTransport(RTMPRoomClient roomClient, int sipPort, int rtpAudioPort, int rtpVideoPort) {
+			super(roomClient, sipPort, rtpAudioPort, rtpVideoPort);
+		}
+
+		RoomSIPTransport(RTMPRoomClient roomClient, SipProvider sipProvider, SIPRegisterAgent sharedRegisterAgent,
+				String contactUser, int rtpAudioPort, int rtpVideoPort) {
+			super(roomClient, sipProvider, sharedRegisterAgent, contactUser, rtpAudioPort, rtpVideoPort);
+		}
+
+		/** Gives the ports of the room back to the pools. */
+		@Override
+		public void close() {
+			super.close();
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			releasePorts(isSharedProvider() ? -1 : getSipPort(), getRtpAudioPort(), getRtpVideoPort());
+		}
+
+		public void onUaRegistrationSuccess(SIPRegisterAgent ra, NameAddress target, NameAddress contact,
+				String result) {
+			log.info("Registered successfully");
+			this.roomClient.setSipNumberListener(this);
+			this.roomClient.start();
+		}
+
+		public void onUaRegistrationFailure(SIPRegisterAgent ra, NameAddress target, NameAddress contact,
+				String result) {
+			log.info("Register failure");
+			try {
+				Thread.sleep(3000);
+			} catch (InterruptedException e) {
+				log.info("Reconnection pause was interrupted");
+			}
+			this.register();
+		}
+	}
+
 	public void init(String[] args) {
 		log.info("Red5SIP starting...");
 		File settings = new File(args[0]);
@@ -74,7 +249,21 @@ public class Application implements Daemon {
 		} catch (NumberFormatException e) {
 			log.error("Can't parse red5.codec.rate value", e);
 		}
-
+		sipPorts = PortPool.parse("SIP", props.getProperty("sip.ports"), SIP_START_PORT, DEFAULT_SIP_PORTS, 1);
+		soundPorts = PortPool.parse("RTP audio", props.getProperty("rtp.audio.ports"), SOUND_START_PORT,
+				DEFAULT_RTP_PORTS, 2);
+		videoPorts = PortPool.parse("RTP video", props.getProperty("rtp.video.ports"), VIDEO_START_PORT,
+				DEFAULT_RTP_PORTS, 2);
+		SipStack.use_nio = props.getProperty("sip.nio", "no").equals("yes");
+		if (props.getProperty("metrics", "no").equals("yes")) {
+			try {
+				Metrics.getInstance().start(props.getProperty("metrics.host", "127.0.0.1"),
+						Integer.parseInt(props.getProperty("metrics.port", "" + DEFAULT_METRICS_PORT)));
+				Metrics.getInstance().register("process", "red5sip", processMetrics);
+			} catch (IOException | NumberFormatException e) {
+				log.error("Unable to start the metrics", e);
+			}
+		}
 	}
 
 	public void init(DaemonContext daemonContext) throws Exception {
@@ -82,13 +271,16 @@ public class Application implements Daemon {
 	}
 
 	public void start() throws Exception {
+		if (props.getProperty("sip.shared", "no").equals("yes")) {
+			createSharedProvider(props);
+		}
 		String roomsStr = props.getProperty("rooms", null);
 		if (props.getProperty("rooms.forceStart", "no").equals("yes") && roomsStr != null) {
 			String[] rooms = roomsStr.split(",");
 			for (String room : rooms) {
 				try {
 					long id = Long.parseLong(room);
-					transportMap.put(id, createSIPTransport(props, id));
+					putTransport(id, createSIPTransport(props, id));
 				} catch (NumberFormatException e) {
 					log.error("Room id parsing error: id=\"" + room + "\"");
 				}
@@ -98,13 +290,15 @@ public class Application implements Daemon {
 					"om.context", "openmeetings")) {
 				@Override
 				protected void startRoomClient(long roomId) {
-					transportMap.put(roomId, createSIPTransport(props, roomId));
+					putTransport(roomId, createSIPTransport(props, roomId));
 				}
 
 				@Override
 				protected void stopRoomClient(long roomId) {
 					SIPTransport t = transportMap.remove(roomId);
+					Metrics.getInstance().unregister(METRICS_ROOM, Long.toString(roomId));
 					if (t != null) {
+						sharedTransports.remove(t);
 						t.close();
 					}
 				}
@@ -117,13 +311,26 @@ public class Application implements Daemon {
 		if (this.rtmpControlClient != null) {
 			this.rtmpControlClient.stop();
 		}
-		for (SIPTransport t : transportMap.values()) {
-			t.close();
+		for (Map.Entry<Long, SIPTransport> e : transportMap.entrySet()) {
+			Metrics.getInstance().unregister(METRICS_ROOM, e.getKey().toString());
+			e.getValue().close();
 		}
 		transportMap.clear();
+		sharedTransports.clear();
+		if (sharedRegisterAgent != null) {
+			sharedRegisterAgent.halt();
+			sharedRegisterAgent.unregister();
+			sharedRegisterAgent = null;
+		}
+		if (sharedProvider != null) {
+			sharedProvider.halt();
+			sipPorts.release(sharedProvider.getPort());
+			sharedProvider = null;
+		}
+		PortPool.closeIdleChannels();
 	}
 
 	public void destroy() {
-
+		Metrics.getInstance().stop();
 	}
 }
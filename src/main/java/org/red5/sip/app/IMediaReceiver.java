@@ -3,7 +3,19 @@ package org.red5.sip.app;
 import java.io.IOException;
 
 public interface IMediaReceiver {
+	/** First byte of the RTMP audio data for G.711 mu-law, 8 kHz mono. */
+	int FLASH_PCMU = 0x82;
 
+	/** First byte of the RTMP audio data for G.711 A-law, 8 kHz mono. */
+	int FLASH_PCMA = 0x72;
+
+	/**
+	 * Pushes one frame of audio to RTMP. G.711 frames are checked for silence; an empty <code>audio</code> reports
+	 * silence for the codecs that can't be checked.
+	 * 
+	 * @param codec
+	 *            first byte of the RTMP audio data: codec, rate, sample size and channels
+	 */
 	void pushAudio(byte[] audio, long ts, int codec) throws IOException;
 
 	void pushVideo(byte[] video, long ts) throws IOException;
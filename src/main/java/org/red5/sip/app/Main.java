@@ -19,6 +19,7 @@ public class Main {
 				log.warn("!!! Shutdown hook !!!");
 				try {
 					main.stop();
+					main.destroy();
 				} catch (Exception e) {
 					log.error("Unexpected exception while shutting down", e);
 				}
@@ -1,12 +1,16 @@
 package org.red5.sip.app;
 
 import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
 
 import local.ua.MediaLauncher;
 
 import org.red5.codecs.SIPCodec;
+import org.red5.sip.net.rtp.RTCPSession;
+import org.red5.sip.net.rtp.RTMPAudioEncoder;
 import org.red5.sip.net.rtp.RTPStreamMultiplexingSender;
 import org.red5.sip.net.rtp.RTPStreamReceiver;
+import org.red5.sip.util.PortPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,15 +20,28 @@ public class SIPAudioLauncher implements MediaLauncher {
 
 	DatagramSocket socket = null;
 
+	DatagramChannel channel = null;
+
+	int localPort;
+
 	public IMediaSender sender = null;
 
 	public RTPStreamReceiver receiver = null;
 
+	public RTCPSession rtcp = null;
+
+	/**
+	 * @param nellymoser
+	 *            whether the audio received from SIP is published as Nellymoser rather than G.711
+	 */
 	public SIPAudioLauncher(SIPCodec sipCodec, int localPort, String remoteAddr, int remotePort,
-			IMediaReceiver mediaReceiver) {
+			IMediaReceiver mediaReceiver, boolean nellymoser) {
 
 		try {
-			socket = new DatagramSocket(localPort);
+			// bound through a pooled channel so that the receiver is serviced by the shared RTPSelector
+			this.localPort = localPort;
+			channel = PortPool.bind(localPort);
+			socket = channel.socket();
 
 			printLog("SIPAudioLauncher", "New audio sender to " + remoteAddr + ":" + remotePort + ".");
 			printLog("SIPAudioLauncher", "sender configs: payloadType = [" + sipCodec.getCodecId()
@@ -32,11 +49,18 @@ public class SIPAudioLauncher implements MediaLauncher {
 
 			// sender = new RTPStreamSender( mediaReceiver, false,
 			// sipCodec, socket, remoteAddr, remotePort );
-			sender = new RTPStreamMultiplexingSender(mediaReceiver, false, sipCodec, socket, remoteAddr, remotePort);
+			RTPStreamMultiplexingSender mixer = new RTPStreamMultiplexingSender(mediaReceiver, false, sipCodec, socket,
+					remoteAddr, remotePort);
+			sender = mixer;
 
-			printLog("SIPAudioLauncher", "New audio receiver on " + localPort + ".");
+			RTMPAudioEncoder encoder = RTMPAudioEncoder.forCodec(sipCodec, nellymoser);
+			printLog("SIPAudioLauncher", "New audio receiver on " + localPort + ", " + encoder + " to RTMP.");
 
-			receiver = new RTPStreamReceiver(sipCodec, mediaReceiver, socket);
+			receiver = new RTPStreamReceiver(sipCodec, mediaReceiver, socket, encoder);
+
+			// RTCP on the odd port above, left free by the port pool
+			rtcp = new RTCPSession(localPort + 1, remoteAddr, remotePort + 1, mixer.getStatistics(),
+					receiver.getStatistics(), sipCodec.getSampleRate(), null);
 		} catch (Exception e) {
 			printLog("SIPAudioLauncher", "Exception " + e);
 			log.error("Exception", e);
@@ -58,6 +82,10 @@ public class SIPAudioLauncher implements MediaLauncher {
 			receiver.start();
 		}
 
+		if (rtcp != null) {
+			rtcp.start();
+		}
+
 		return true;
 	}
 
@@ -65,6 +93,11 @@ public class SIPAudioLauncher implements MediaLauncher {
 
 		printLog("stopMedia", "Halting sip audio...");
 
+		if (rtcp != null) {
+			rtcp.stop();
+			rtcp = null;
+		}
+
 		if (sender != null) {
 			sender.halt();
 			sender = null;
@@ -77,14 +110,9 @@ public class SIPAudioLauncher implements MediaLauncher {
 			printLog("stopMedia", "Receiver halted.");
 		}
 
-		// take into account the resilience of RtpStreamSender
-		// (NOTE: it does not take into account the resilience of
-		// RtpStreamReceiver; this can cause SocketException)
-		try {
-			Thread.sleep(RTPStreamReceiver.SO_TIMEOUT);
-		} catch (Exception e) {
-		}
-		socket.close();
+		// the mixer has waited for its last tick, the selector stops reading a halted receiver, and
+		// the pool drains whatever the channel still holds when it is bound again
+		PortPool.unbind(localPort, channel);
 		return true;
 	}
 
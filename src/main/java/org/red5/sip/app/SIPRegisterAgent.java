@@ -1,9 +1,12 @@
 package org.red5.sip.app;
 
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import local.net.KeepAliveSip;
 
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zoolu.net.SocketAddress;
@@ -83,9 +86,24 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 	boolean lastRegFailed = false;
 	boolean regInprocess = false;
 
-	/** Whether the thread is running. */
+	/** Whether the last registration succeeded and has not been removed since. */
+	volatile boolean registered = false;
+
+	/** Number of failed registrations. */
+	volatile long failures;
+
+	/** Whether the periodic registration is running. */
 	boolean is_running;
 
+	/** Period of the registration loop checks, in milliseconds. */
+	static final long LOOP_CHECK_MS = 1000;
+
+	/** Periodic registration task. */
+	ScheduledFuture<?> loop_task;
+
+	/** Time of the next registration, as System.nanoTime(). */
+	long next_register;
+
 	/** Number of registration attempts. */
 	int attempts;
 
@@ -143,6 +161,16 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 		return is_running;
 	}
 
+	/** Whether the contact is currently registered with the registrar server. */
+	public boolean isRegistered() {
+		return registered;
+	}
+
+	/** Gets the number of failed registrations. */
+	public long getFailureCount() {
+		return failures;
+	}
+
 	/** Registers with the registrar server. */
 	public void register() {
 		if (listener != null && listener instanceof SIPTransport) {
@@ -227,8 +255,10 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 		this.expire_time = expire_time;
 		this.renew_time = renew_time;
 		loop = true;
+		next_register = System.nanoTime();
 		if (!is_running) {
-			(new Thread(this, this.getClass().getName())).start();
+			is_running = true;
+			loop_task = MediaScheduler.getInstance().scheduleWithFixedDelay(this, 0, LOOP_CHECK_MS);
 		}
 	}
 
@@ -269,31 +299,30 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 
 	// ***************************** run() *****************************
 
-	/** Run method */
+	/**
+	 * Run method, called by the media scheduler every LOOP_CHECK_MS while periodically registering. Registers again
+	 * once the renew time since the last registration is over; stops if the last registration failed.
+	 */
 	public void run() {
-		is_running = true;
 		try {
-			while (loop) {
-				register();
-				// changed by Lior
-				long waitCnt = 0;
-				while (regInprocess) {
-					Thread.sleep(1000);
-					waitCnt += 1000;
-				}
-
+			if (loop && !regInprocess) {
 				if (lastRegFailed) {
 					printLog("Failed Registration stop try.");
-					// Thread.sleep(regFailRetryTime*1000);
 					halt();
-				} else {
-					Thread.sleep(renew_time * 1000 - waitCnt);
+				} else if (System.nanoTime() - next_register >= 0) {
+					// monotonic, a change of the wall clock does not skip or repeat registrations
+					next_register = System.nanoTime() + TimeUnit.SECONDS.toNanos(renew_time);
+					register();
 				}
 			}
 		} catch (Exception e) {
 			printException(e);
 		}
-		is_running = false;
+		if (!loop && loop_task != null) {
+			loop_task.cancel(false);
+			loop_task = null;
+			is_running = false;
+		}
 	}
 
 	// **************** Transaction callback functions *****************
@@ -343,6 +372,8 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 
 			printLog("Registration success: ");
 			regInprocess = false;
+			Message req = transaction.getRequestMessage();
+			registered = !req.hasExpiresHeader() || req.getExpiresHeader().getDeltaSeconds() > 0;
 			if (listener != null) {
 				listener.onUaRegistrationSuccess(this, target, contact, result);
 			}
@@ -402,6 +433,8 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 				String result = code + " " + status.getReason();
 				lastRegFailed = true;
 				regInprocess = false;
+				registered = false;
+				failures++;
 				if (listener == null) {
 					printLog("Registration failure: " + result);
 				} else {
@@ -423,6 +456,8 @@ public class SIPRegisterAgent implements Runnable, TransactionClientListener {
 			}
 			lastRegFailed = true;
 			regInprocess = false;
+			registered = false;
+			failures++;
 		}
 	}
 
@@ -1,6 +1,16 @@
 package org.red5.sip.app;
 
+import local.ua.MediaLauncher;
+
+import org.red5.sip.metrics.MetricCollector;
+import org.red5.sip.metrics.MetricSource;
+import org.red5.sip.metrics.Metrics;
 import org.red5.sip.net.rtmp.RTMPRoomClient;
+import org.red5.sip.net.rtp.JitterBuffer;
+import org.red5.sip.net.rtp.RTCPSession;
+import org.red5.sip.net.rtp.RTPStreamMultiplexingSender;
+import org.red5.sip.net.rtp.RTPStreamReceiver;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zoolu.net.SocketAddress;
@@ -11,15 +21,23 @@ import org.zoolu.sip.message.SipMethods;
 import org.zoolu.sip.provider.SipProvider;
 import org.zoolu.sip.provider.SipStack;
 
-public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterAgentListener, ISipNumberListener {
+public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterAgentListener, ISipNumberListener,
+		MetricSource {
 	protected static Logger log = LoggerFactory.getLogger(SIPTransport.class);
 
+	/** Pause before calling again after a call failed or was closed, in milliseconds. */
+	private static final long RECONNECT_DELAY_MS = 5000;
+
 	protected RTMPRoomClient roomClient;
 	private SipProvider sipProvider;
+	private boolean sharedProvider = false;
+	private String contactUser;
 	private SIPUserAgentProfile userProfile;
 	private String opt_outbound_proxy = null;
-	private SIPUserAgent ua;
-	private SIPRegisterAgent ra;
+	private volatile SIPUserAgent ua;
+	private volatile SIPRegisterAgent ra;
+	private SIPRegisterAgent sharedRegisterAgent;
+	private boolean awaitingSharedRegistration = false;
 
 	private String username;
 	private String password;
@@ -28,6 +46,7 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 	private int rtpVideoPort;
 	private String proxy;
 	private String number;
+	private boolean rtmpNellymoser = false;
 
 	private void p(String s) {
 		log.debug(s);
@@ -40,6 +59,190 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 		this.rtpVideoPort = rtpVideoPort;
 	}
 
+	/**
+	 * Creates a transport on top of a SipProvider shared with other rooms. Incoming calls are routed to this transport
+	 * by the user part of its contact address, so <code>contactUser</code> has to be unique per provider. The provider
+	 * is registered once by <code>sharedRegisterAgent</code>, whose result is forwarded with
+	 * {@link #onSharedRegistration(boolean, String)}.
+	 */
+	public SIPTransport(RTMPRoomClient roomClient, SipProvider sipProvider, SIPRegisterAgent sharedRegisterAgent,
+			String contactUser, int rtpAudioPort, int rtpVideoPort) {
+		this.roomClient = roomClient;
+		this.sipProvider = sipProvider;
+		this.sharedRegisterAgent = sharedRegisterAgent;
+		this.sharedProvider = true;
+		this.contactUser = contactUser;
+		this.sipPort = sipProvider.getPort();
+		this.rtpAudioPort = rtpAudioPort;
+		this.rtpVideoPort = rtpVideoPort;
+	}
+
+	public int getSipPort() {
+		return sipPort;
+	}
+
+	public int getRtpAudioPort() {
+		return rtpAudioPort;
+	}
+
+	public int getRtpVideoPort() {
+		return rtpVideoPort;
+	}
+
+	public boolean isSharedProvider() {
+		return sharedProvider;
+	}
+
+	/** Sets whether the audio of the calls is published to the room as Nellymoser; applies to the next login. */
+	public void setRtmpNellymoser(boolean rtmpNellymoser) {
+		this.rtmpNellymoser = rtmpNellymoser;
+	}
+
+	/** Gets the SipProvider, null before login. */
+	public SipProvider getSipProvider() {
+		return sipProvider;
+	}
+
+	/** Whether the contact of this transport, or the shared provider, is registered. */
+	public boolean isRegistered() {
+		SIPRegisterAgent ra = sharedProvider ? sharedRegisterAgent : this.ra;
+		return ra != null && ra.isRegistered();
+	}
+
+	/**
+	 * Collects the metrics of the room: call and registration state, RTP and jitter buffer statistics of the audio
+	 * and video sessions, mixer state and RTMP publish queue. The SIP transaction counters are only collected for an
+	 * own provider, the shared one being reported once by the application.
+	 */
+	public void collect(MetricCollector collector) {
+		SIPUserAgent ua = this.ua;
+		SIPRegisterAgent ra = this.ra;
+		collector.gauge(Metrics.PREFIX + "call_active", "Whether a call is established", ua != null
+				&& SIPUserAgent.UA_ONCALL.equals(ua.call_state) ? 1 : 0);
+		if (!sharedProvider) {
+			collector.gauge(Metrics.PREFIX + "registered", "Whether the contact is registered", ra != null
+					&& ra.isRegistered() ? 1 : 0);
+			collector.counter(Metrics.PREFIX + "registration_failures_total", "Failed registrations",
+					ra == null ? 0 : ra.getFailureCount());
+			SipProvider sipProvider = this.sipProvider;
+			if (sipProvider != null) {
+				collectSip(collector, sipProvider);
+			}
+		}
+		collector.gauge(Metrics.PREFIX + "rtmp_publishing", "Whether the media is published to the room",
+				roomClient.isPublishing() ? 1 : 0);
+		collector.gauge(Metrics.PREFIX + "rtmp_pending_messages", "Messages queued on the RTMP connection",
+				roomClient.getPendingMessages());
+
+		SIPAudioLauncher audioApp = ua == null ? null : ua.audioApp;
+		RTPStreamReceiver receiver = audioApp == null ? null : audioApp.receiver;
+		JitterBuffer jitterBuffer = receiver == null ? null : receiver.getJitterBuffer();
+		collector.counter(Metrics.PREFIX + "audio_rtp_packets_received_total", "Audio RTP packets received",
+				receiver == null ? 0 : receiver.getPacketsReceived());
+		if (jitterBuffer != null) {
+			collector.counter(Metrics.PREFIX + "audio_rtp_lost_total", "Audio frames lost and concealed",
+					jitterBuffer.getConcealed());
+			collector.counter(Metrics.PREFIX + "audio_rtp_late_total", "Audio frames received after their play-out time",
+					jitterBuffer.getLate());
+			collector.counter(Metrics.PREFIX + "audio_rtp_duplicates_total", "Duplicated audio frames received",
+					jitterBuffer.getDuplicates());
+			collector.counter(Metrics.PREFIX + "audio_jitter_buffer_underruns_total", "Play-outs from an empty jitter buffer",
+					jitterBuffer.getUnderruns());
+			collector.counter(Metrics.PREFIX + "audio_jitter_buffer_dropped_total",
+					"Audio frames dropped to bring the delay back to the target", jitterBuffer.getDropped());
+			collector.gauge(Metrics.PREFIX + "audio_jitter_seconds", "Interarrival jitter of the audio",
+					jitterBuffer.getJitterSeconds());
+			collector.gauge(Metrics.PREFIX + "audio_jitter_buffer_depth", "Audio frames buffered ahead of the play-out",
+					jitterBuffer.getDepth());
+		}
+		RTCPSession audioRtcp = audioApp == null ? null : audioApp.rtcp;
+		if (audioRtcp != null) {
+			collectRtcp(collector, "audio", audioRtcp);
+		}
+		IMediaSender sender = audioApp == null ? null : audioApp.sender;
+		if (sender instanceof RTPStreamMultiplexingSender) {
+			RTPStreamMultiplexingSender mixer = (RTPStreamMultiplexingSender) sender;
+			collector.counter(Metrics.PREFIX + "audio_rtp_packets_sent_total", "Audio RTP packets sent",
+					mixer.getPacketsSent());
+			collector.counter(Metrics.PREFIX + "audio_rtp_send_dropped_total",
+					"Audio RTP packets dropped because the socket send buffer was full", mixer.getPacketsDropped());
+			collector.gauge(Metrics.PREFIX + "mixer_streams", "RTMP streams attached to the mixer", mixer.getStreamCount());
+			collector.gauge(Metrics.PREFIX + "mixer_active_streams", "RTMP streams with enough audio to be mixed",
+					mixer.getActiveStreamCount());
+			collector.counter(Metrics.PREFIX + "mixer_buffer_overflows_total",
+					"Frames dropped because the buffer of their stream was full", mixer.getBufferOverflows());
+			collector.counter(Metrics.PREFIX + "mixer_buffer_underruns_total", "Reads from an empty stream buffer",
+					mixer.getBufferUnderruns());
+			collector.counter(Metrics.PREFIX + "mixer_underrun_ticks_total", "Frames completed with silence",
+					mixer.getUnderrunTicks());
+			collector.counter(Metrics.PREFIX + "mixer_late_ticks_total", "Mixing ticks run late", mixer.getLateTicks());
+			collector.counter(Metrics.PREFIX + "mixer_skipped_frames_total", "Frames dropped after a stall of the mixer",
+					mixer.getSkippedFrames());
+		}
+
+		MediaLauncher videoApp = ua == null ? null : ua.getVideoApp();
+		if (videoApp instanceof SIPVideoLauncher && ((SIPVideoLauncher) videoApp).getReceiver() != null) {
+			SIPVideoLauncher video = (SIPVideoLauncher) videoApp;
+			collector.counter(Metrics.PREFIX + "video_rtp_packets_received_total", "Video RTP packets received", video
+					.getReceiver().getPacketsReceived());
+			collector.counter(Metrics.PREFIX + "video_rtp_packets_sent_total", "Video RTP packets sent", video.getSender()
+					.getPacketsSent());
+			collector.counter(Metrics.PREFIX + "video_rtp_send_dropped_total",
+					"Video RTP packets dropped because the socket send buffer was full", video.getSender()
+							.getPacketsDropped());
+			collector.counter(Metrics.PREFIX + "video_rtp_dropped_total",
+					"Video RTP packets dropped up to a keyframe because the conversion was behind", video.getReceiver()
+							.getPacketsDropped());
+			collector.counter(Metrics.PREFIX + "video_queue_overflows_total", "Overflows of the received video queue",
+					video.getReceiver().getOverflows());
+			SIPVideoConverter converter = video.getReceiver().getVideoConverter();
+			if (converter != null) {
+				collector.counter(Metrics.PREFIX + "video_rtp_lost_total", "Video RTP packets lost",
+						converter.getPacketsLost());
+				collector.counter(Metrics.PREFIX + "video_rtp_reordered_total", "Video RTP packets put back in order",
+						converter.getPacketsReordered());
+				collector.counter(Metrics.PREFIX + "video_frames_dropped_total",
+						"Video frames dropped as incomplete or until a keyframe", converter.getFramesDropped());
+				collector.counter(Metrics.PREFIX + "video_keyframe_requests_total", "Keyframes requested from SIP",
+						converter.getKeyframeRequests());
+			}
+			collector.counter(Metrics.PREFIX + "video_rtp_retransmissions_total",
+					"Video RTP packets sent again after a NACK", video.getSender().getRetransmissions());
+			if (video.getRtcpSession() != null) {
+				collectRtcp(collector, "video", video.getRtcpSession());
+			}
+		}
+	}
+
+	/** Collects what the RTCP reports of the other side say about the <code>media</code> we send. */
+	private static void collectRtcp(MetricCollector collector, String media, RTCPSession rtcp) {
+		collector.counter(Metrics.PREFIX + media + "_rtcp_reports_received_total", "RTCP reports received",
+				rtcp.getReportsReceived());
+		collector.gauge(Metrics.PREFIX + media + "_rtcp_fraction_lost", "Fraction of the packets sent lost, as reported",
+				rtcp.getFractionLost());
+		collector.gauge(Metrics.PREFIX + media + "_rtcp_packets_lost", "Packets sent lost, as reported",
+				rtcp.getCumulativeLost());
+		collector.gauge(Metrics.PREFIX + media + "_rtcp_jitter_seconds",
+				"Interarrival jitter of the packets sent, as reported", rtcp.getJitterSeconds());
+		collector.gauge(Metrics.PREFIX + media + "_rtcp_round_trip_seconds", "Round trip time, -1 until known",
+				rtcp.getRoundTripTime());
+		collector.counter(Metrics.PREFIX + media + "_rtcp_nacks_received_total", "Packets reported lost by NACK",
+				rtcp.getNacksReceived());
+		collector.counter(Metrics.PREFIX + media + "_rtcp_keyframe_requests_received_total",
+				"Keyframes requested by PLI or FIR", rtcp.getKeyframeRequestsReceived());
+	}
+
+	/** Collects the transaction counters of <code>sipProvider</code>. */
+	public static void collectSip(MetricCollector collector, SipProvider sipProvider) {
+		collector.counter(Metrics.PREFIX + "sip_transactions_total", "SIP transactions started",
+				sipProvider.getTransactionCount());
+		collector.counter(Metrics.PREFIX + "sip_retransmissions_total", "SIP requests and responses retransmitted",
+				sipProvider.getRetransmissionCount());
+		collector.counter(Metrics.PREFIX + "sip_transaction_timeouts_total", "SIP client transactions timed out",
+				sipProvider.getTransactionTimeoutCount());
+		collector.gauge(Metrics.PREFIX + "sip_listeners", "Active SIP provider listeners", sipProvider.getListenerCount());
+	}
+
 	public void login(String obproxy, String phone, String username, String password, String realm, String proxy) {
 		p("login");
 
@@ -51,19 +254,23 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 		String fromURL = "\"" + phone + "\" <sip:" + phone + "@" + proxy + ">";
 
 		try {
-			SipStack.init();
+			if (!sharedProvider) {
+				SipStack.init();
 
-			sipProvider = new SipProvider(null, sipPort);
-			sipProvider.setOutboundProxy(new SocketAddress(opt_outbound_proxy));
+				sipProvider = new SipProvider(null, sipPort);
+				sipProvider.setOutboundProxy(new SocketAddress(opt_outbound_proxy));
+			}
 
 			userProfile = new SIPUserAgentProfile();
 			userProfile.audioPort = rtpAudioPort;
 			userProfile.videoPort = rtpVideoPort;
+			userProfile.rtmpNellymoser = rtmpNellymoser;
 			userProfile.username = username;
 			userProfile.passwd = password;
 			userProfile.realm = realm;
 			userProfile.fromUrl = fromURL;
-			userProfile.contactUrl = "sip:" + phone + "@" + sipProvider.getViaAddress();
+			userProfile.contactUrl = "sip:" + (contactUser != null ? contactUser : phone) + "@"
+					+ sipProvider.getViaAddress();
 
 			if (sipProvider.getPort() != SipStack.default_port) {
 				userProfile.contactUrl += ":" + sipProvider.getPort();
@@ -108,6 +315,17 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 		p("register");
 		roomClient.stop();
 
+		if (sharedProvider) {
+			// the shared provider is registered once by the application, which forwards the result
+			synchronized (this) {
+				awaitingSharedRegistration = true;
+			}
+			if (sharedRegisterAgent.isRegistered()) {
+				onSharedRegistration(true, "shared provider");
+			}
+			return;
+		}
+
 		try {
 
 			if (sipProvider != null) {
@@ -121,6 +339,31 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 		}
 	}
 
+	/**
+	 * Result of a registration of the shared provider, forwarded by the application. The room is started on the first
+	 * success following {@link #register()}; a failure stops it until the shared provider is registered again.
+	 */
+	public void onSharedRegistration(boolean success, String result) {
+		if (!sharedProvider) {
+			return;
+		}
+		if (success) {
+			synchronized (this) {
+				if (!awaitingSharedRegistration) {
+					return;
+				}
+				awaitingSharedRegistration = false;
+			}
+			onUaRegistrationSuccess(sharedRegisterAgent, null, null, result);
+		} else {
+			log.info("Shared provider register failure: " + result);
+			synchronized (this) {
+				awaitingSharedRegistration = true;
+			}
+			roomClient.stop();
+		}
+	}
+
 	public void close() {
 		p("close");
 
@@ -130,11 +373,13 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 			p("close: Exception:>\n" + e);
 		}
 
-		try {
-			p("provider.halt");
-			sipProvider.halt();
-		} catch (Exception e) {
-			p("close: Exception:>\n" + e);
+		if (!sharedProvider) {
+			try {
+				p("provider.halt");
+				sipProvider.halt();
+			} catch (Exception e) {
+				p("close: Exception:>\n" + e);
+			}
 		}
 
 		try {
@@ -175,6 +420,7 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 
 		if (ua != null) {
 			ua.hangup();
+			ua.stopListening();
 		}
 		ua = null;
 	}
@@ -213,12 +459,12 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 
 	public void onUaCallFailed(SIPUserAgent ua) {
 		log.info("Call failed");
-		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-			log.info("Reconnection pause was interrupted");
-		}
-		roomClient.start();
+		// not on the SIP dispatch lane, which other dialogs share
+		MediaScheduler.getInstance().schedule(new Runnable() {
+			public void run() {
+				roomClient.start();
+			}
+		}, RECONNECT_DELAY_MS);
 	}
 
 	public void onUaCallClosing(SIPUserAgent ua) {
@@ -227,13 +473,12 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 
 	public void onUaCallClosed(SIPUserAgent ua) {
 		log.info("Call closed");
-		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-			log.info("Reconnection pause was interrupted");
-		}
-		log.info("Try reconnect: Call " + number);
-		register();
+		MediaScheduler.getInstance().schedule(new Runnable() {
+			public void run() {
+				log.info("Try reconnect: Call " + number);
+				register();
+			}
+		}, RECONNECT_DELAY_MS);
 	}
 
 	public void onUaCallConnected(SIPUserAgent ua) {
@@ -251,8 +496,17 @@ public abstract class SIPTransport implements SIPUserAgentListener, SIPRegisterA
 		return roomClient.getSipUsersCount();
 	}
 	
+	/**
+	 * Asks the SIP side for a keyframe, by RTCP PLI and FIR and by a SIP INFO <code>picture_fast_update</code>, the
+	 * RTCP feedback not being negotiated.
+	 */
 	public void requestFIR() {
 		log.debug("requesting FIR...");
+		SIPUserAgent ua = this.ua;
+		MediaLauncher videoApp = ua == null ? null : ua.getVideoApp();
+		if (videoApp instanceof SIPVideoLauncher && ((SIPVideoLauncher) videoApp).getRtcpSession() != null) {
+			((SIPVideoLauncher) videoApp).getRtcpSession().requestKeyframe();
+		}
 		Message msg = MessageFactory.createRequest(
 			sipProvider
 			, SipMethods.INFO
@@ -128,6 +128,11 @@ public class SIPUserAgent extends CallListenerAdapter {
 		return call_state;
 	}
 
+	/** Gets the video application, null if there is no video session */
+	public MediaLauncher getVideoApp() {
+		return videoApp;
+	}
+
 	/**
 	 * Sets the automatic answer time (default is -1 that means no auto accept mode)
 	 */
@@ -307,6 +312,16 @@ public class SIPUserAgent extends CallListenerAdapter {
 		call.listen();
 	}
 
+	/** Stops waiting for an incoming call. */
+	public void stopListening() {
+
+		log.debug("stopListening:: Init...");
+
+		if (call != null) {
+			call.cancel();
+		}
+	}
+
 	/** Closes an ongoing, incoming, or pending call */
 	public void hangup() {
 
@@ -416,7 +431,7 @@ public class SIPUserAgent extends CallListenerAdapter {
 				if (sipAudioCodec != null) {
 
 					audioApp = new SIPAudioLauncher(sipAudioCodec, localAudioPort, remoteMediaAddress, remoteAudioPort,
-							mediaReceiver);
+							mediaReceiver, userProfile.rtmpNellymoser);
 				} else {
 					log.debug("launchMediaApplication:: SipCodec for audio not initialized.");
 				}
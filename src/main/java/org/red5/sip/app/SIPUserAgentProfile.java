@@ -143,6 +143,9 @@ public class SIPUserAgentProfile {
 	/** Video port */
 	public int videoPort = 21070;
 
+	/** Whether the audio received from SIP is published to RTMP as Nellymoser rather than G.711 */
+	public boolean rtmpNellymoser = false;
+
 	/** Whether using JMF for audio/video streaming */
 	public boolean useJMF = false;
 
@@ -7,31 +7,72 @@ import java.util.List;
 import local.net.RtpPacket;
 
 import org.red5.codecs.SIPCodec;
+import org.zoolu.tools.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Converts H.264 video between RTMP and RTP (RFC 6184, non-interleaved mode). Both directions work on offsets into the
+ * received data: the RTP packets are written into a pool of packets owned by the converter, and the RTMP frame is
+ * assembled in a single buffer as the packets arrive. The lists returned, and the RTP packets, are only valid until the
+ * next call.
+ * <p>
+ * Received packets go through a small reorder window. A packet still missing when the window moves on is lost: only
+ * the frame it belongs to is dropped, and the following frames are held back until the next keyframe, which is
+ * requested at most once per {@link #KEYFRAME_REQUEST_INTERVAL}.
+ */
 public class SIPVideoConverter {
 
 	private static final Logger log = LoggerFactory.getLogger(SIPVideoConverter.class);
 	private static final int MAX_RTP_PAYLOAD_SIZE = 1446;
+	private static final int RTP_HEADER_SIZE = 12;
+	private static final int INITIAL_FRAME_SIZE = 64 * 1024;
+	/** Packets kept while waiting for a missing one. */
+	private static final int REORDER_WINDOW = 64;
+	/** Packets received after a missing one before it is considered lost. */
+	private static final int MAX_MISORDER = 16;
+	/** Minimum time between two keyframe requests, in milliseconds. */
+	public static final long KEYFRAME_REQUEST_INTERVAL = 1000;
 	
 	// rtp => rtmp
 	private byte[] sps;
 	private byte[] pps;
-	private boolean sentSeq;
+	private boolean waitKeyframe;
 	private long lastFIRTime;
 	private long startTs;
 	private long startTm;
 	private long startRelativeTime;
-	private int lastReceivedSequenceNumber;
-	private List<RtpPacketWrapper> packetsQueue;
+	private int expectedSequenceNumber;
 	private SIPTransport sipTransport;
 	private boolean fuaStartedAndNotFinished;
+	private byte[] frame = new byte[INITIAL_FRAME_SIZE];
+	private int frameLength;
+	private boolean frameKey;
+	private boolean frameStarted;
+	private boolean frameDamaged;
+	private boolean lossPending;
+	private long frameTs;
+	private int fuaLengthOffset;
+	private int clockRate = 90000;
+	private final byte[][] reorderData = new byte[REORDER_WINDOW][];
+	private final int[] reorderLength = new int[REORDER_WINDOW];
+	private final long[] reorderTs = new long[REORDER_WINDOW];
+	private final boolean[] reorderMarker = new boolean[REORDER_WINDOW];
+	private final int[] reorderSequenceNumber = new int[REORDER_WINDOW];
+	private int reorderCount;
+	private final List<RTMPPacketInfo> rtmpPackets = new ArrayList<RTMPPacketInfo>();
+	private volatile long packetsLost;
+	private volatile long packetsReordered;
+	private volatile long framesDropped;
+	private volatile long keyframeRequests;
 	
 	// rtmp => rtp
 	private int lenSize;
 	private boolean spsSent;
 	private boolean ppsSent;
+	private final long ssrc = Random.nextLong();
+	private final List<RtpPacket> rtpPool = new ArrayList<RtpPacket>();
+	private final List<RtpPacket> rtpPackets = new ArrayList<RtpPacket>();
 	
 	public SIPVideoConverter(SIPTransport sipTransport) {
 		this.sipTransport = sipTransport;
@@ -41,19 +82,57 @@ public class SIPVideoConverter {
 
 	public void resetConverter() {
 		log.debug("::resetConverter::");
-		packetsQueue = new ArrayList<RtpPacketWrapper>();
 		lastFIRTime = System.currentTimeMillis();
 		sps = new byte[0];
 		pps = new byte[0];
-		sentSeq = false;
+		waitKeyframe = true;
 		startTs = -1;
 		startTm = -1;
-		lastReceivedSequenceNumber = -1;
+		expectedSequenceNumber = -1;
+		Arrays.fill(reorderSequenceNumber, -1);
+		reorderCount = 0;
+		lossPending = false;
 		spsSent = false;
 		ppsSent = false;
-		fuaStartedAndNotFinished = false;
+		clearFrame();
 	}
 	
+	/** Number of received video packets never recovered by the reorder window. */
+	public long getPacketsLost() {
+		return packetsLost;
+	}
+
+	/** Number of received video packets put back in order. */
+	public long getPacketsReordered() {
+		return packetsReordered;
+	}
+
+	/** Number of frames dropped because they were incomplete or waited for a keyframe. */
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	/** Number of keyframes requested from the SIP side. */
+	public long getKeyframeRequests() {
+		return keyframeRequests;
+	}
+
+	/**
+	 * Restarts the sequence of the received packets at the next one, when packets have been dropped on purpose up to
+	 * it: the frame in progress is dropped, and the gap is not counted as a loss.
+	 */
+	public void resynchronize() {
+		if (frameLength > 0) {
+			framesDropped++;
+		}
+		clearFrame();
+		waitKeyframe = true;
+		expectedSequenceNumber = -1;
+		Arrays.fill(reorderSequenceNumber, -1);
+		reorderCount = 0;
+		lossPending = false;
+	}
+
 	public List<RTMPPacketInfo> rtp2rtmp(RtpPacket packet, SIPCodec codec) {
 		switch (codec.getCodecId()) {
 			case 35:
@@ -75,318 +154,437 @@ public class SIPVideoConverter {
 	}
 	
 	private List<RtpPacket> rtmp2rtpH264(byte data[], long ts, SIPCodec codec) {
-		List<RtpPacket> result = new ArrayList<RtpPacket>();
+		rtpPackets.clear();
 		long ts1 = ts * codec.getSampleRate() / 1000;
 		if (data[0] == 0x17 && data[1] == 0) {
-			byte[] pdata = Arrays.copyOfRange(data, 2, data.length);
-			int cfgVer = pdata[3];
+			// AVCDecoderConfigurationRecord after the 3 bytes of composition time
+			int cfgVer = data[5];
 			if (cfgVer == 1) {
-				int lenSize = pdata[7] & 0x03 + 1;
-				int numSPS = pdata[8] & 0x1f;
-				pdata = Arrays.copyOfRange(pdata, 9, pdata.length);
-				byte[] sps = null;
+				int lenSize = (data[9] & 0x03) + 1;
+				int numSPS = data[10] & 0x1f;
+				int pos = 11;
+				int spsOffset = -1, lenSPS = 0;
 				for (int i = 0; i < numSPS; i++) {
-					int lenSPS = (pdata[0] & 0xff) << 8 | pdata[1] & 0xff;
-					pdata = Arrays.copyOfRange(pdata, 2, pdata.length);
-					if (sps == null) {
-						sps = Arrays.copyOf(pdata, lenSPS);
+					int len = (data[pos] & 0xff) << 8 | data[pos + 1] & 0xff;
+					if (spsOffset == -1) {
+						spsOffset = pos + 2;
+						lenSPS = len;
 					}
-					pdata = Arrays.copyOfRange(pdata, lenSPS, pdata.length);
+					pos += 2 + len;
 				}
-				int numPPS = pdata[0];
-				pdata = Arrays.copyOfRange(pdata, 1, pdata.length);
-				byte[] pps = null;
+				int numPPS = data[pos++];
+				int ppsOffset = -1, lenPPS = 0;
 				for (int i = 0; i < numPPS; i++) {
-					int lenPPS = (pdata[0] & 0xff) << 8 | pdata[1] & 0xff;
-					pdata = Arrays.copyOfRange(pdata, 2, pdata.length);
-					if (pps == null) {
-						pps = Arrays.copyOf(pdata, lenPPS);
+					int len = (data[pos] & 0xff) << 8 | data[pos + 1] & 0xff;
+					if (ppsOffset == -1) {
+						ppsOffset = pos + 2;
+						lenPPS = len;
 					}
-					pdata = Arrays.copyOfRange(pdata, lenPPS, pdata.length);
+					pos += 2 + len;
 				}
 				this.lenSize = lenSize;
-				if (sps != null) {
+				if (spsOffset != -1) {
 					spsSent = true;
-					byte[] buffer = new byte[sps.length + 12];
-					RtpPacket packet = new RtpPacket(buffer, 0);
-					packet.setPayload(sps, sps.length);
-					packet.setTimestamp(ts1);
-					buffer[1] = (byte) 0xe3;
-					result.add(packet);
+					putRtpPacket(ts1, true, data, spsOffset, lenSPS);
 				}
-				if (pps != null) {
+				if (ppsOffset != -1) {
 					ppsSent = true;
-					byte[] buffer = new byte[pps.length + 12];
-					RtpPacket packet = new RtpPacket(buffer, 0);
-					packet.setPayload(pps, pps.length);
-					packet.setTimestamp(ts1);
-					buffer[1] = (byte) 0xe3;
-					result.add(packet);
+					putRtpPacket(ts1, true, data, ppsOffset, lenPPS);
 				}
 			} else {
 				log.debug("Unsuported cfgVer=" + cfgVer);
 			}
 		} else if ((data[0] == 0x17 || data[0] == 0x27) && data[1] == 1) {
 			if (spsSent && ppsSent) {
-				List<ByteArrayBuilder> nals = new ArrayList<ByteArrayBuilder>();
-				byte[] pdata = Arrays.copyOfRange(data, 5, data.length);
-				while (pdata.length > 0) {
-					int nalSize = 0;
+				// every NAL unit is sent, the marker goes with the last packet of the frame
+				int pos = 5;
+				while (pos + lenSize <= data.length) {
+					int nalSize;
 					switch (lenSize) {
 					case 1:
-						nalSize = pdata[lenSize - 1] & 0xff;
+						nalSize = data[pos] & 0xff;
 						break;
 					case 2:
-						nalSize = (pdata[lenSize - 2] & 0xff) << 8 | pdata[lenSize - 1] & 0xff;
+						nalSize = (data[pos] & 0xff) << 8 | data[pos + 1] & 0xff;
 						break;
 					case 4:
-						nalSize = (pdata[lenSize - 4] & 0xff) << 24 |
-								  (pdata[lenSize - 3] & 0xff) << 16 | 
-								  (pdata[lenSize - 2] & 0xff) << 8  | 
-								  (pdata[lenSize - 1] & 0xff);
+						nalSize = (data[pos] & 0xff) << 24 |
+								  (data[pos + 1] & 0xff) << 16 |
+								  (data[pos + 2] & 0xff) << 8  |
+								  (data[pos + 3] & 0xff);
 						break;
 					default:
-						throw new RuntimeException("Invalid length size: " + lenSize);
+						log.warn("Dropping frame with invalid NAL unit length size: " + lenSize);
+						rtpPackets.clear();
+						return rtpPackets;
 					}
-					ByteArrayBuilder nalData = new ByteArrayBuilder(Arrays.copyOfRange(pdata, lenSize, lenSize + nalSize));
-					nals.add(nalData);
-					pdata = Arrays.copyOfRange(pdata, lenSize + nalSize, pdata.length);
-				}
-				if (nals.size() > 0) {
-					byte[] remaining = nals.get(nals.size() - 1).buildArray();
-					int nalType = remaining[0] & 0x1f;
-					int nri = remaining[0] & 0x60;
-					if (nalType == 5 || nalType == 1) {
-						if (remaining.length < MAX_RTP_PAYLOAD_SIZE) {
-							byte[] buffer = new byte[remaining.length + 12];
-							RtpPacket packet = new RtpPacket(buffer, 0);
-							packet.setPayload(remaining, remaining.length);
-							packet.setTimestamp(ts1);
-							buffer[1] = (byte) 0xe3; // marker and payload type
-							result.add(packet);
-						} else {
-							byte start = (byte) 0x80;
-							remaining = Arrays.copyOfRange(remaining, 1, remaining.length);
-							while (remaining.length > 0) {
-								pdata = Arrays.copyOf(remaining, Math.min(MAX_RTP_PAYLOAD_SIZE - 2, remaining.length));
-								remaining = Arrays.copyOfRange(remaining, Math.min(MAX_RTP_PAYLOAD_SIZE - 2, remaining.length), remaining.length);
-								byte end = (byte) ((remaining.length > 0)? 0: 0x40);
-								ByteArrayBuilder payload = new ByteArrayBuilder((byte) (nri | 28), (byte) (start | end | nalType));
-								payload.putArray(pdata);
-								start = 0;
-								
-								byte[] buffer = new byte[payload.getLength() + 12];
-								RtpPacket packet = new RtpPacket(buffer, 0);
-								packet.setPayload(payload.buildArray(), payload.getLength());
-								packet.setTimestamp(ts1);
-								buffer[1] = (byte) ((end == 0x40)? 0xe3: 0x63);
-								result.add(packet);
-							}
-						}
+					int nalOffset = pos + lenSize;
+					pos = nalOffset + nalSize;
+					if (nalSize <= 0 || pos > data.length) {
+						log.debug("Invalid NAL unit size: " + nalSize);
+						break;
 					}
+					putNalPackets(ts1, pos + lenSize > data.length, data, nalOffset, nalSize);
 				}
 			}
 		} else {
 			log.debug("Missing rtmp data");
 		}
-		return result;
+		return rtpPackets;
+	}
+
+	/** Adds the packets of a NAL unit, fragmented into FU-A packets if it doesn't fit in one. */
+	private void putNalPackets(long ts, boolean last, byte[] data, int nalOffset, int nalSize) {
+		if (nalSize <= MAX_RTP_PAYLOAD_SIZE) {
+			putRtpPacket(ts, last, data, nalOffset, nalSize);
+			return;
+		}
+		// FU-A: the NAL header is replaced by the FU indicator and header
+		int nalType = data[nalOffset] & 0x1f;
+		int nri = data[nalOffset] & 0x60;
+		byte start = (byte) 0x80;
+		int pos = nalOffset + 1;
+		int end = nalOffset + nalSize;
+		while (pos < end) {
+			int len = Math.min(MAX_RTP_PAYLOAD_SIZE - 2, end - pos);
+			boolean finish = pos + len == end;
+			RtpPacket packet = nextRtpPacket(ts, last && finish);
+			byte[] buffer = packet.getPacket();
+			buffer[RTP_HEADER_SIZE] = (byte) (nri | 28);
+			buffer[RTP_HEADER_SIZE + 1] = (byte) (start | (finish ? 0x40 : 0) | nalType);
+			System.arraycopy(data, pos, buffer, RTP_HEADER_SIZE + 2, len);
+			packet.setPayloadLength(len + 2);
+			start = 0;
+			pos += len;
+		}
+	}
+
+	/** Adds a packet holding <code>length</code> bytes of <code>data</code> as payload. */
+	private void putRtpPacket(long ts, boolean marker, byte[] data, int offset, int length) {
+		RtpPacket packet = nextRtpPacket(ts, marker);
+		System.arraycopy(data, offset, packet.getPacket(), RTP_HEADER_SIZE, length);
+		packet.setPayloadLength(length);
+	}
+
+	/** Takes the next packet of the pool, growing it as needed, and adds it to the packets of the current frame. */
+	private RtpPacket nextRtpPacket(long ts, boolean marker) {
+		if (rtpPackets.size() == rtpPool.size()) {
+			RtpPacket packet = new RtpPacket(new byte[RTP_HEADER_SIZE + MAX_RTP_PAYLOAD_SIZE], 0);
+			packet.setSscr(ssrc);
+			rtpPool.add(packet);
+		}
+		RtpPacket packet = rtpPool.get(rtpPackets.size());
+		packet.getPacket()[1] = (byte) (marker ? 0xe3 : 0x63); // marker and payload type
+		packet.setTimestamp(ts);
+		rtpPackets.add(packet);
+		return packet;
 	}
 	
 	private List<RTMPPacketInfo> rtp2rtmpH264(RtpPacket packet, SIPCodec codec) {
-		List<RTMPPacketInfo> result = new ArrayList<RTMPPacketInfo>();
-		if (packet.getPayloadType() != 35) {
-			return result;
-		}
-		if (lastReceivedSequenceNumber != -1 && (packet.getSequenceNumber() - lastReceivedSequenceNumber != 1)) {
-			log.debug("New packet has a wrong sequence number " + packet.getSequenceNumber());
-			resetConverter();
-			return result;
+		rtmpPackets.clear();
+		if (packet.getPayloadType() != 35 || packet.getPayloadLength() < 1) {
+			return rtmpPackets;
 		}
-		lastReceivedSequenceNumber = packet.getSequenceNumber();
+		clockRate = codec.getSampleRate();
+		byte[] buffer = packet.getPacket();
+		int offset = packet.getHeaderLength();
+		int length = packet.getPayloadLength();
+		int seq = packet.getSequenceNumber();
+		long ts = packet.getTimestamp();
+		boolean marker = buffer[1] < 0; // packet.hasMarker() bug workaround
 
-		byte[] payload = packet.getPayload();
-		int nalType = payload[0] & 0x1f;
-		switch (nalType) {
-		case 7: // SPS
-			sps = payload;
-			log.debug("SPS received: {}", sps);
-			break;
-		case 8: // PPS
-			pps = payload;
-			log.debug("PPS received: {}", pps);
-			break;
-		default:
-			if (payload.length > 1) {
-				if (nalType == 24) { // for aggregated SPS and PPS
-					payload = Arrays.copyOfRange(payload, 1, payload.length);
-					while (payload.length > 0) {
-						int size = payload[0] & 0xff;
-						payload = Arrays.copyOfRange(payload, 2, payload.length);
-						byte[] naldata = Arrays.copyOf(payload, size);
-						payload = Arrays.copyOfRange(payload, size, payload.length);
-						int nt = naldata[0] & 0x1f;
-						switch (nt) {
-						case 7:
-							sps = naldata;
-							log.debug("SPS received: {}", sps);
-							break;
-						case 8:
-							pps = naldata;
-							log.debug("PPS received: {}", pps);
-							break;
-						default:
-							break;
-						}
-					}
-				}
-				
-				if (nalType == 1 || nalType == 5 || nalType == 28 || nalType == 24) {
-					packetsQueue.add(new RtpPacketWrapper(packet, nalType));
+		if (expectedSequenceNumber == -1) {
+			expectedSequenceNumber = seq;
+		}
+		int distance = (short) (seq - expectedSequenceNumber);
+		if (distance < 0 && distance > -REORDER_WINDOW) {
+			log.debug("Dropping late or duplicated packet " + seq + ", expecting " + expectedSequenceNumber);
+		} else if (distance == 0) {
+			process(buffer, offset, length, ts, marker);
+			expectedSequenceNumber = (seq + 1) & 0xffff;
+			drainReorderWindow();
+		} else if (distance < 0 || distance >= REORDER_WINDOW) {
+			log.debug("Packet " + seq + " is out of the reorder window of " + expectedSequenceNumber + ", resynchronizing");
+			while (reorderCount > 0) {
+				skipToNextReordered();
+			}
+			lose(Math.max(0, (short) (seq - expectedSequenceNumber)));
+			process(buffer, offset, length, ts, marker);
+			expectedSequenceNumber = (seq + 1) & 0xffff;
+		} else {
+			int slot = seq % REORDER_WINDOW;
+			if (reorderSequenceNumber[slot] != seq) {
+				if (reorderData[slot] == null || reorderData[slot].length < length) {
+					reorderData[slot] = new byte[Math.max(length, MAX_RTP_PAYLOAD_SIZE)];
 				}
+				System.arraycopy(buffer, offset, reorderData[slot], 0, length);
+				reorderLength[slot] = length;
+				reorderTs[slot] = ts;
+				reorderMarker[slot] = marker;
+				reorderSequenceNumber[slot] = seq;
+				reorderCount++;
 			}
-			break;
-		}
-		
-		if (packetsQueue.size() > 1) {
-			RtpPacket last = packetsQueue.get(packetsQueue.size() - 1).packet;
-			RtpPacket preLast = packetsQueue.get(packetsQueue.size() - 2).packet;
-			if (last.getTimestamp() != preLast.getTimestamp()) {
-				log.debug("Clearing queue since new packet has different ts. old ts=" + preLast.getTimestamp() + 
-						" new ts=" + last.getTimestamp());
-				packetsQueue.clear();
+			while (reorderCount > 0 && (short) (seq - expectedSequenceNumber) >= MAX_MISORDER) {
+				skipToNextReordered();
 			}
 		}
-		
-		// marker means the end of the frame
-		if (packet.getPacket()[1] < 0 // packet.hasMarker() bug workaround 
-				&& !packetsQueue.isEmpty()) {
-			int realNri = 0;
-			nalType = 0;
-			List<ByteArrayBuilder> payloads = new ArrayList<ByteArrayBuilder>();
-			ByteArrayBuilder newdata = null;
-			List<ByteArrayBuilder> pendingData = new ArrayList<ByteArrayBuilder>();
-			
-			for (RtpPacketWrapper q: packetsQueue) {
-				int length = 0;
-				switch (q.nalType) {
-				case 1:
-				case 5:
-					if (newdata == null) {
-						nalType = q.nalType;
-						// first byte: 0x17 for intra-frame, 0x27 for non-intra frame
-						// second byte: 0x01 for picture data
-						newdata = new ByteArrayBuilder(new byte[]{(byte) (q.nalType == 5? 0x17: 0x27), 1, 0, 0, 0});
-					}
-					length = q.packet.getPayload().length;
-					newdata.putArray((byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length);
-					newdata.putArray(q.packet.getPayload());
-					break;
-				case 24:
-					payload = Arrays.copyOfRange(payload, 1, payload.length);
-					while (payload.length > 0) {
-						int size = payload[1] & 0xff;
-						payload = Arrays.copyOfRange(payload, 2, payload.length);
-						byte[] naldata = Arrays.copyOf(payload, size);
-						payload = Arrays.copyOfRange(payload, size, payload.length);
-						int nt = naldata[0] & 0x1f;
-						if (nt == 5 || nt == 1) {
-							if (newdata == null) {
-								nalType = nt;
-								// first byte: 0x17 for intra-frame, 0x27 for non-intra frame
-								// second byte: 0x01 for picture data
-								newdata = new ByteArrayBuilder(new byte[]{(byte) (nt == 5? 0x17: 0x27), 1, 0, 0, 0});
-							}
-							length = naldata.length;
-							newdata.putArray((byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length);
-							newdata.putArray(naldata);
-						}
-					}
-					break;
-				case 28:
-					boolean start = (q.packet.getPayload()[1] & 0x80) == 0x80;
-					boolean finish = (q.packet.getPayload()[1] & 0x40) == 0x40;
-					if (start && finish) {
-						log.warn("Packets with nal unit type 28 must not have start and finish bits together");
-						continue;
-					}
-					if (start) {
-						fuaStartedAndNotFinished = true;
-					}
-					if (!fuaStartedAndNotFinished) {
-						log.warn("Started packet sequence for nal unit type 28 not found");
-						continue;
-					}
-					if (newdata == null) {
-						nalType = q.packet.getPayload()[1] & 0x1f;
-						realNri = q.packet.getPayload()[0] & 0x60;
-						// first byte: 0x17 for intra-frame, 0x27 for non-intra frame
-						// second byte: 0x01 for picture data
-						newdata = new ByteArrayBuilder(new byte[]{(byte) (nalType == 5? 0x17: 0x27), 1, 0, 0, 0});
-					}
-					pendingData.add(new ByteArrayBuilder(Arrays.copyOfRange(q.packet.getPayload(), 2, q.packet.getPayload().length)));
-					if (finish) {
-						ByteArrayBuilder remaining = new ByteArrayBuilder((byte) (nalType | realNri));
-						for (ByteArrayBuilder pd: pendingData) {
-							remaining.putArray(pd.buildArray());
-						}
-						pendingData.clear();
-						length = remaining.getLength();
-						newdata.putArray((byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length);
-						newdata.putArray(remaining.buildArray());
-						fuaStartedAndNotFinished = false;
-					} else {
-						continue;
-					}
-					break;
-				default:
-					break;
-				}
+		return rtmpPackets;
+	}
+
+	/** Processes the packets of the reorder window that follow the last one processed. */
+	private void drainReorderWindow() {
+		while (reorderCount > 0) {
+			int slot = expectedSequenceNumber % REORDER_WINDOW;
+			if (reorderSequenceNumber[slot] != expectedSequenceNumber) {
+				return;
 			}
-			packetsQueue.clear();
-			
-			if (newdata != null) {
-				payloads.add(newdata);
+			reorderSequenceNumber[slot] = -1;
+			reorderCount--;
+			packetsReordered++;
+			process(reorderData[slot], 0, reorderLength[slot], reorderTs[slot], reorderMarker[slot]);
+			expectedSequenceNumber = (expectedSequenceNumber + 1) & 0xffff;
+		}
+	}
+
+	/** Gives up on the missing packets before the first one of the reorder window, and processes from there. */
+	private void skipToNextReordered() {
+		int missing = 1;
+		while (reorderSequenceNumber[(expectedSequenceNumber + missing) % REORDER_WINDOW]
+				!= ((expectedSequenceNumber + missing) & 0xffff)) {
+			missing++;
+		}
+		lose(missing);
+		expectedSequenceNumber = (expectedSequenceNumber + missing) & 0xffff;
+		drainReorderWindow();
+	}
+
+	private void lose(int count) {
+		log.debug(count + " video packets lost before " + ((expectedSequenceNumber + count) & 0xffff));
+		packetsLost += count;
+		lossPending = true;
+	}
+
+	/** Adds the payload of the next packet in sequence to the frame. */
+	private void process(byte[] buffer, int offset, int length, long ts, boolean marker) {
+		// lost packets belong to the frame in progress, to this one, or to both
+		boolean lost = lossPending;
+		lossPending = false;
+		if (frameStarted && ts != frameTs) {
+			// the packet with the marker was lost, or never sent
+			frameDamaged |= lost;
+			finishFrame();
+		}
+		frameDamaged |= lost;
+		frameStarted = true;
+		frameTs = ts;
+		putFrame(buffer, offset, length, buffer[offset] & 0x1f);
+		if (marker) {
+			finishFrame();
+		}
+	}
+
+	/** Emits the frame, unless it is incomplete or a keyframe is awaited. */
+	private void finishFrame() {
+		if (fuaStartedAndNotFinished) {
+			frameDamaged = true;
+		}
+		if (frameDamaged) {
+			if (frameLength > 0) {
+				log.debug("Dropping incomplete frame, ts=" + frameTs);
+				framesDropped++;
 			}
-			
-			if (!sentSeq && nalType != 5 && pps.length > 0 && sps.length > 0 || sps.length == 0 || pps.length == 0) {
-				if (System.currentTimeMillis() - lastFIRTime > 5000) {
-					lastFIRTime = System.currentTimeMillis();
-					requestFIR();
-				}
+			waitKeyframe = true;
+			requestKeyframe();
+		} else if (frameLength > 0) {
+			if (sps.length == 0 || pps.length == 0 || waitKeyframe && !frameKey) {
+				framesDropped++;
+				requestKeyframe();
 			} else {
-				if (pps.length > 0 && sps.length > 0 && !sentSeq && nalType == 5) {
-					sentSeq = true;
-				}
-				
+				waitKeyframe = false;
+
 				// calculate timestamp
 				if (startTs == -1) {
-					startTs = packet.getTimestamp();
+					startTs = frameTs;
 				}
 				if (startTm == -1) {
 					startTm = System.currentTimeMillis() - startRelativeTime;
 				}
 
-				long tm = startTm + (packet.getTimestamp() - startTs) / (codec.getSampleRate() / 1000); //FIXME was 132
-				if (nalType == 5 && payloads.size() > 0) {
-					ByteArrayBuilder data = new ByteArrayBuilder();
-					// first byte: 0x17 for intra-frame
-					// second byte: 0x00 for configuration data
-					data.putArray(new byte[]{0x17, 0, 0, 0, 0, 1});
-					data.putArray(Arrays.copyOfRange(sps, 1, 4));
-					data.putArray((byte) 0xff, (byte) 0xe1, (byte) (sps.length >>> 8), (byte) sps.length);
-					data.putArray(sps);
-					data.putArray((byte) 1, (byte) (pps.length >>> 8), (byte) pps.length);
-					data.putArray(pps);
-					payloads.add(0, data);
+				long tm = startTm + ((frameTs - startTs) & 0xffffffffL) / (clockRate / 1000);
+				frame[0] = (byte) (frameKey ? 0x17 : 0x27);
+				if (frameKey) {
+					rtmpPackets.add(new RTMPPacketInfo(sequenceHeader(), tm));
 				}
-				
-				for (ByteArrayBuilder bba: payloads) {
-					result.add(new RTMPPacketInfo(bba.buildArray(), tm));
+				rtmpPackets.add(new RTMPPacketInfo(Arrays.copyOf(frame, frameLength), tm));
+			}
+		}
+		clearFrame();
+	}
+
+	/**
+	 * Asks the SIP side for a keyframe, unless one was asked for less than {@link #KEYFRAME_REQUEST_INTERVAL} ago. Also
+	 * called by the receiver when it drops packets.
+	 */
+	public synchronized void requestKeyframe() {
+		long now = System.currentTimeMillis();
+		if (now - lastFIRTime > KEYFRAME_REQUEST_INTERVAL) {
+			lastFIRTime = now;
+			keyframeRequests++;
+			requestFIR();
+		}
+	}
+
+	/** Appends the NAL units of an RTP payload to the frame, each preceded by its 4 byte length. */
+	private void putFrame(byte[] buffer, int offset, int length, int nalType) {
+		switch (nalType) {
+		case 7: // SPS
+			// the NAL header, profile, constraints and level are copied to the sequence header
+			if (length < 4) {
+				log.warn("Ignoring SPS of " + length + " bytes");
+				break;
+			}
+			sps = Arrays.copyOfRange(buffer, offset, offset + length);
+			log.debug("SPS received: {}", sps);
+			break;
+		case 8: // PPS
+			pps = Arrays.copyOfRange(buffer, offset, offset + length);
+			log.debug("PPS received: {}", pps);
+			break;
+		case 9: // access unit delimiter
+			break;
+		case 24: // STAP-A
+			int end = offset + length;
+			int pos = offset + 1;
+			while (pos + 2 < end) {
+				int size = (buffer[pos] & 0xff) << 8 | buffer[pos + 1] & 0xff;
+				pos += 2;
+				if (size == 0 || pos + size > end) {
+					break;
 				}
+				putFrame(buffer, pos, size, buffer[pos] & 0x1f);
+				pos += size;
+			}
+			if (pos != end) {
+				log.warn("Malformed STAP-A packet");
+				frameDamaged = true;
 			}
+			break;
+		case 28: // FU-A
+			if (length < 2) {
+				frameDamaged = true;
+				return;
+			}
+			boolean start = (buffer[offset + 1] & 0x80) == 0x80;
+			boolean finish = (buffer[offset + 1] & 0x40) == 0x40;
+			if (start && finish) {
+				log.warn("Packets with nal unit type 28 must not have start and finish bits together");
+				frameDamaged = true;
+				return;
+			}
+			if (start) {
+				int realNalType = buffer[offset + 1] & 0x1f;
+				if (fuaStartedAndNotFinished) {
+					frameLength = fuaLengthOffset;
+					frameDamaged = true;
+				}
+				startFrame(realNalType);
+				fuaStartedAndNotFinished = true;
+				fuaLengthOffset = frameLength;
+				ensureFrameCapacity(5);
+				frameLength += 4;
+				frame[frameLength++] = (byte) (realNalType | buffer[offset] & 0xe0);
+			}
+			if (!fuaStartedAndNotFinished) {
+				log.warn("Started packet sequence for nal unit type 28 not found");
+				frameDamaged = true;
+				return;
+			}
+			ensureFrameCapacity(length - 2);
+			System.arraycopy(buffer, offset + 2, frame, frameLength, length - 2);
+			frameLength += length - 2;
+			if (finish) {
+				putInt(frame, fuaLengthOffset, frameLength - fuaLengthOffset - 4);
+				fuaStartedAndNotFinished = false;
+			}
+			break;
+		default:
+			if (nalType >= 1 && nalType <= 23) {
+				putNal(nalType, buffer, offset, length);
+			} else {
+				log.debug("Unsupported nal unit type " + nalType);
+			}
+			break;
+		}
+	}
+
+	private void putNal(int nalType, byte[] buffer, int offset, int length) {
+		startFrame(nalType);
+		ensureFrameCapacity(4 + length);
+		putInt(frame, frameLength, length);
+		System.arraycopy(buffer, offset, frame, frameLength + 4, length);
+		frameLength += 4 + length;
+	}
+
+	/** Writes the RTMP video header before the first NAL unit of a frame. */
+	private void startFrame(int nalType) {
+		if (nalType == 5) {
+			frameKey = true;
+		}
+		if (frameLength > 0) {
+			return;
+		}
+		ensureFrameCapacity(5);
+		// first byte: 0x17 for intra-frame, 0x27 for non-intra frame, set once the frame is complete
+		// second byte: 0x01 for picture data
+		frame[1] = 1;
+		frame[2] = frame[3] = frame[4] = 0;
+		frameLength = 5;
+	}
+
+	private void ensureFrameCapacity(int length) {
+		if (frameLength + length > frame.length) {
+			frame = Arrays.copyOf(frame, Math.max(frame.length * 2, frameLength + length));
 		}
-		
-		return result;
+	}
+
+	private void clearFrame() {
+		frameStarted = false;
+		frameDamaged = false;
+		frameLength = 0;
+		frameKey = false;
+		fuaStartedAndNotFinished = false;
+	}
+
+	/** RTMP AVC sequence header: an AVCDecoderConfigurationRecord with the last SPS and PPS received. */
+	private byte[] sequenceHeader() {
+		byte[] data = new byte[11 + 2 + sps.length + 3 + pps.length];
+		int i = 0;
+		// first byte: 0x17 for intra-frame
+		// second byte: 0x00 for configuration data
+		data[i++] = 0x17;
+		data[i++] = 0;
+		i += 3;
+		data[i++] = 1;
+		System.arraycopy(sps, 1, data, i, 3);
+		i += 3;
+		data[i++] = (byte) 0xff;
+		data[i++] = (byte) 0xe1;
+		data[i++] = (byte) (sps.length >>> 8);
+		data[i++] = (byte) sps.length;
+		System.arraycopy(sps, 0, data, i, sps.length);
+		i += sps.length;
+		data[i++] = 1;
+		data[i++] = (byte) (pps.length >>> 8);
+		data[i++] = (byte) pps.length;
+		System.arraycopy(pps, 0, data, i, pps.length);
+		return data;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
 	}
 	
 	protected void requestFIR() {
@@ -406,76 +604,4 @@ public class SIPVideoConverter {
 		
 	}
 	
-	private static class ByteArrayBuilder {
-		
-		private final List<BuilderElement> arrays;
-		private int totalLength = 0;
-		
-		public ByteArrayBuilder() {
-			arrays = new ArrayList<BuilderElement>();
-		}
-		
-		public ByteArrayBuilder(byte...array) {
-			this();
-			this.putArray(array);
-		}
-		
-		public void putArray(byte... array) {
-			if (array.length == 0) return;
-			arrays.add(new BuilderElement(array));
-			totalLength += array.length;
-		}
-		
-		public int getLength() {
-			return totalLength;
-		}
-		
-		public byte[] buildArray() {
-			if (totalLength == 0) return new byte[0];
-			byte[] result = new byte[totalLength];
-			int pos = 0;
-			for (BuilderElement e: arrays) {
-				System.arraycopy(e.array, 0, result, pos, e.array.length);
-				pos += e.array.length;
-			}
-			
-			if (arrays.size() > 1) {
-				clear();
-				putArray(result);
-			}
-			
-			return result;
-		}
-		
-		public void clear() {
-			arrays.clear();
-			totalLength = 0;
-		}
-		
-		private static class BuilderElement {
-			
-			public final byte[] array;
-
-			public BuilderElement(byte[] array) {
-				super();
-				this.array = array;
-			}
-			
-		}
-		
-	}
-	
-	private static class RtpPacketWrapper {
-		
-		public final RtpPacket packet;
-		
-		public final int nalType;
-
-		public RtpPacketWrapper(RtpPacket packet, int nalType) {
-			this.packet = packet;
-			this.nalType = nalType;
-		}
-		
-	}
-	
 }
@@ -1,12 +1,16 @@
 package org.red5.sip.app;
 
 import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
 
 import local.ua.MediaLauncher;
 
 import org.red5.codecs.SIPCodec;
+import org.red5.sip.net.rtmp.RTMPRoomClient;
+import org.red5.sip.net.rtp.RTCPSession;
 import org.red5.sip.net.rtp.RTPStreamVideoReceiver;
 import org.red5.sip.net.rtp.RTPStreamVideoSender;
+import org.red5.sip.util.PortPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,35 +18,81 @@ public class SIPVideoLauncher implements MediaLauncher {
 
 	protected static Logger log = LoggerFactory.getLogger(SIPVideoLauncher.class);
 	protected DatagramSocket socket;
+	protected DatagramChannel channel;
+	protected int localPort;
 	protected RTPStreamVideoReceiver receiver;
 	protected RTPStreamVideoSender sender;
+	protected RTCPSession rtcp;
 
 	public SIPVideoLauncher(int localPort, String remoteAddr, int remotePort, SIPTransport sipTransport,
 			IMediaReceiver mediaReceiver, SIPCodec codec) {
 		try {
-			socket = new DatagramSocket(localPort);
+			// bound through a pooled channel so that the receiver is serviced by the shared RTPSelector
+			this.localPort = localPort;
+			channel = PortPool.bind(localPort);
+			socket = channel.socket();
 			receiver = new RTPStreamVideoReceiver(sipTransport, mediaReceiver, codec, socket);
 			sender = new RTPStreamVideoSender(sipTransport, mediaReceiver, codec, socket, remoteAddr, remotePort);
 			mediaReceiver.setVideoSender(sender);
+			// RTCP on the odd port above, left free by the port pool; the session binds it through PortPool when started
+			final RTPStreamVideoSender videoSender = sender;
+			final RTMPRoomClient roomClient = sipTransport.roomClient;
+			rtcp = new RTCPSession(localPort + 1, remoteAddr, remotePort + 1, sender.getStatistics(),
+					receiver.getStatistics(), codec.getSampleRate(), new RTCPSession.Listener() {
+						public void onNack(int sequence) {
+							videoSender.retransmit(sequence);
+						}
+
+						public void onKeyframeRequest() {
+							// the video sent is the one of a Red5 stream, which is played again
+							roomClient.getVideoRouter().requestKeyframe();
+						}
+					});
 		} catch (Exception e) {
 			log.error("", e);
 		}
 	}
 
+	public RTPStreamVideoReceiver getReceiver() {
+		return receiver;
+	}
+
+	public RTPStreamVideoSender getSender() {
+		return sender;
+	}
+
+	public RTCPSession getRtcpSession() {
+		return rtcp;
+	}
+
 	@Override
 	public boolean startMedia() {
 		log.debug("startMedia()");
+		if (receiver == null || sender == null) {
+			log.error("Video media not started, setting it up failed");
+			return false;
+		}
 		receiver.start();
 		sender.start();
+		if (rtcp != null) {
+			rtcp.start();
+		}
 		return true;
 	}
 
 	@Override
 	public boolean stopMedia() {
 		log.debug("stopMedia()");
-		receiver.interrupt();
-		sender.halt();
-		socket.close();
+		if (rtcp != null) {
+			rtcp.stop();
+		}
+		if (receiver != null && receiver.isAlive()) {
+			receiver.interrupt();
+		}
+		if (sender != null) {
+			sender.halt();
+		}
+		PortPool.unbind(localPort, channel);
 		return false;
 	}
 
@@ -0,0 +1,54 @@
+package org.red5.sip.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations over fixed buckets, from 1 microsecond to 10 milliseconds: the range of the encoding and
+ * decoding of one media frame. Recording is lock and allocation free.
+ */
+public class Histogram {
+	/** Upper bounds of the buckets, in nanoseconds; the last bucket is unbounded. */
+	private static final long[] BOUNDS = { 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000,
+			2500000, 5000000, 10000000 };
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong sum = new AtomicLong();
+
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		sum.addAndGet(nanos);
+	}
+
+	/** Number of buckets, including the unbounded one. */
+	public int getBucketCount() {
+		return buckets.length();
+	}
+
+	/** Upper bound of <code>bucket</code> in seconds, infinite for the last one. */
+	public double getBound(int bucket) {
+		return bucket < BOUNDS.length ? BOUNDS[bucket] / 1e9 : Double.POSITIVE_INFINITY;
+	}
+
+	/** Number of durations recorded in <code>bucket</code> or a lower one. */
+	public long getCumulativeCount(int bucket) {
+		long count = 0;
+		for (int i = 0; i <= bucket; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	public long getCount() {
+		return getCumulativeCount(BOUNDS.length);
+	}
+
+	/** Sum of the recorded durations, in seconds. */
+	public double getSum() {
+		return sum.get() / 1e9;
+	}
+}
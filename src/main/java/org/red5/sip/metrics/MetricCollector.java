@@ -0,0 +1,15 @@
+package org.red5.sip.metrics;
+
+/**
+ * Receives the metrics of a {@link MetricSource}. Names follow the Prometheus conventions: lower case with
+ * underscores, counters ending in <code>_total</code> and durations in seconds.
+ */
+public interface MetricCollector {
+	/** A value that only grows, such as a number of packets. */
+	void counter(String name, String help, long value);
+
+	/** A value that goes up and down, such as a queue depth. */
+	void gauge(String name, String help, double value);
+
+	void histogram(String name, String help, Histogram histogram);
+}
@@ -0,0 +1,10 @@
+package org.red5.sip.metrics;
+
+/**
+ * Something reporting metrics, such as a room. Sources are polled when the metrics are read, so they only have to keep
+ * plain counters and never push anything.
+ */
+public interface MetricSource {
+	/** Reports the current value of every metric of this source to <code>collector</code>. */
+	void collect(MetricCollector collector);
+}
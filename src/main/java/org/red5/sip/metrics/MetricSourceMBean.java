@@ -0,0 +1,101 @@
+package org.red5.sip.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only MBean exposing the metrics of one {@link MetricSource}, one attribute per metric. A histogram is exposed as
+ * its <code>_count</code> and <code>_sum</code>. The source is polled on every read.
+ */
+class MetricSourceMBean implements DynamicMBean {
+	private final MetricSource source;
+
+	MetricSourceMBean(MetricSource source) {
+		this.source = source;
+	}
+
+	/** Polls the source, keeping the help of each attribute in <code>help</code> if not null. */
+	private Map<String, Object> poll(final Map<String, String> help) {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		source.collect(new MetricCollector() {
+			public void counter(String name, String description, long value) {
+				put(name, description, value);
+			}
+
+			public void gauge(String name, String description, double value) {
+				put(name, description, value);
+			}
+
+			public void histogram(String name, String description, Histogram histogram) {
+				put(name + "_count", description + " (count)", histogram.getCount());
+				put(name + "_sum", description + " (sum)", histogram.getSum());
+			}
+
+			private void put(String name, String description, Object value) {
+				String attribute = name.startsWith(Metrics.PREFIX) ? name.substring(Metrics.PREFIX.length()) : name;
+				values.put(attribute, value);
+				if (help != null) {
+					help.put(attribute, description);
+				}
+			}
+		});
+		return values;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Map<String, Object> values = poll(null);
+		if (!values.containsKey(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return values.get(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Object> values = poll(null);
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	/** There is no operation: always throws, as the MBean server expects for an unknown one. */
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		Map<String, String> help = new LinkedHashMap<String, String>();
+		Map<String, Object> values = poll(help);
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), help.get(e.getKey()),
+					true, false, false));
+		}
+		return new MBeanInfo(source.getClass().getName(), "red5sip metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0],
+				new MBeanNotificationInfo[0]);
+	}
+}
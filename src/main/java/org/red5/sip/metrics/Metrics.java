@@ -0,0 +1,193 @@
+package org.red5.sip.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the {@link MetricSource}s of the process (rooms, SIP stack, codecs). When started, every source is
+ * published as a JMX MBean under <code>org.red5.sip:type=&lt;label&gt;,name=&lt;value&gt;</code> and all of them
+ * are served in the Prometheus text format on <code>http://&lt;host&gt;:&lt;port&gt;/metrics</code>.
+ * <p>
+ * Metrics are disabled by default: nothing is registered and the media threads only pay for a null check where they
+ * would time a codec.
+ */
+public class Metrics {
+	private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+	/** Prefix of the name of every metric. */
+	public static final String PREFIX = "red5sip_";
+	private static final String JMX_DOMAIN = "org.red5.sip";
+	private static final String CODEC = "codec";
+
+	private static final Metrics instance = new Metrics();
+
+	private static volatile boolean enabled = false;
+
+	private final ConcurrentMap<String, Source> sources = new ConcurrentSkipListMap<String, Source>();
+	private final ConcurrentMap<String, CodecSource> codecs = new ConcurrentHashMap<String, CodecSource>();
+	private MBeanServer mbeanServer;
+	private HttpServer httpServer;
+
+	static class Source {
+		final String label;
+		final String value;
+		final MetricSource source;
+		ObjectName objectName;
+
+		Source(String label, String value, MetricSource source) {
+			this.label = label;
+			this.value = value;
+			this.source = source;
+		}
+	}
+
+	public static Metrics getInstance() {
+		return instance;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables the metrics, publishing them through JMX and, if <code>port</code> is positive, over HTTP.
+	 *
+	 * @param host
+	 *            address the HTTP endpoint is bound to, usually the loopback one
+	 */
+	public synchronized void start(String host, int port) throws IOException {
+		if (enabled) {
+			return;
+		}
+		mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		if (port > 0) {
+			httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+			httpServer.createContext("/metrics", new PrometheusHandler(this));
+			httpServer.start();
+			log.info("Metrics served on http://{}:{}/metrics", host, port);
+		}
+		enabled = true;
+	}
+
+	public synchronized void stop() {
+		if (!enabled) {
+			return;
+		}
+		enabled = false;
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		for (Source s : sources.values()) {
+			unregisterMBean(s);
+		}
+		sources.clear();
+		codecs.clear();
+	}
+
+	/**
+	 * Publishes the metrics of <code>source</code>, labelled with <code>label="value"</code>. Does nothing if the
+	 * metrics are disabled.
+	 */
+	public void register(String label, String value, MetricSource source) {
+		if (!enabled) {
+			return;
+		}
+		unregister(label, value);
+		Source s = new Source(label, value, source);
+		try {
+			s.objectName = new ObjectName(JMX_DOMAIN + ":type=" + label + ",name=" + ObjectName.quote(value));
+			mbeanServer.registerMBean(new MetricSourceMBean(source), s.objectName);
+		} catch (JMException e) {
+			log.warn("Unable to register the MBean of {}={}", label, value, e);
+			s.objectName = null;
+		}
+		sources.put(key(label, value), s);
+	}
+
+	public void unregister(String label, String value) {
+		Source s = sources.remove(key(label, value));
+		if (s != null) {
+			unregisterMBean(s);
+		}
+	}
+
+	/** Registered sources, ordered by label and value. */
+	List<Source> getSources() {
+		return new ArrayList<Source>(sources.values());
+	}
+
+	/**
+	 * Gets the histogram of the encoding times of one frame with <code>codec</code>, or null if the metrics are
+	 * disabled.
+	 */
+	public Histogram getEncodeTime(String codec) {
+		CodecSource s = getCodecSource(codec);
+		return s == null ? null : s.encodeTime;
+	}
+
+	/**
+	 * Gets the histogram of the decoding times of one frame with <code>codec</code>, or null if the metrics are
+	 * disabled.
+	 */
+	public Histogram getDecodeTime(String codec) {
+		CodecSource s = getCodecSource(codec);
+		return s == null ? null : s.decodeTime;
+	}
+
+	private CodecSource getCodecSource(String codec) {
+		if (!enabled) {
+			return null;
+		}
+		CodecSource s = codecs.get(codec);
+		if (s == null) {
+			CodecSource created = new CodecSource();
+			s = codecs.putIfAbsent(codec, created);
+			if (s == null) {
+				s = created;
+				register(CODEC, codec, s);
+			}
+		}
+		return s;
+	}
+
+	private void unregisterMBean(Source s) {
+		if (s.objectName == null) {
+			return;
+		}
+		try {
+			mbeanServer.unregisterMBean(s.objectName);
+		} catch (JMException e) {
+			log.debug("Unable to unregister the MBean {}", s.objectName, e);
+		}
+	}
+
+	private static String key(String label, String value) {
+		return label + '=' + value;
+	}
+
+	private static class CodecSource implements MetricSource {
+		final Histogram encodeTime = new Histogram();
+		final Histogram decodeTime = new Histogram();
+
+		public void collect(MetricCollector collector) {
+			collector.histogram(PREFIX + "codec_encode_seconds", "Time to encode one frame", encodeTime);
+			collector.histogram(PREFIX + "codec_decode_seconds", "Time to decode one frame", decodeTime);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.red5.sip.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the metrics of all the registered sources in the Prometheus text exposition format (version 0.0.4). The
+ * samples of a metric reported by several sources, e.g. one per room, are grouped under a single HELP/TYPE header.
+ */
+class PrometheusHandler implements HttpHandler {
+	private static final Logger log = LoggerFactory.getLogger(PrometheusHandler.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Metrics metrics;
+
+	PrometheusHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/** Samples of one metric. */
+	private static class Family {
+		final String type;
+		final String help;
+		final StringBuilder samples = new StringBuilder();
+
+		Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = scrape().getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (RuntimeException e) {
+			log.error("Unable to collect the metrics", e);
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	String scrape() {
+		final Map<String, Family> families = new LinkedHashMap<String, Family>();
+		for (Metrics.Source s : metrics.getSources()) {
+			final String labels = s.label + "=\"" + escape(s.value) + "\"";
+			s.source.collect(new MetricCollector() {
+				public void counter(String name, String help, long value) {
+					sample(family(name, "counter", help), name, labels, Long.toString(value));
+				}
+
+				public void gauge(String name, String help, double value) {
+					sample(family(name, "gauge", help), name, labels, format(value));
+				}
+
+				public void histogram(String name, String help, Histogram histogram) {
+					Family f = family(name, "histogram", help);
+					for (int i = 0; i < histogram.getBucketCount(); i++) {
+						sample(f, name + "_bucket", labels + ",le=\"" + format(histogram.getBound(i)) + "\"",
+								Long.toString(histogram.getCumulativeCount(i)));
+					}
+					sample(f, name + "_sum", labels, format(histogram.getSum()));
+					sample(f, name + "_count", labels, Long.toString(histogram.getCount()));
+				}
+
+				private Family family(String name, String type, String help) {
+					Family f = families.get(name);
+					if (f == null) {
+						f = new Family(type, help);
+						families.put(name, f);
+					}
+					return f;
+				}
+			});
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Family> e : families.entrySet()) {
+			Family f = e.getValue();
+			sb.append("# HELP ").append(e.getKey()).append(' ').append(f.help).append('\n');
+			sb.append("# TYPE ").append(e.getKey()).append(' ').append(f.type).append('\n');
+			sb.append(f.samples);
+		}
+		return sb.toString();
+	}
+
+	private static void sample(Family f, String name, String labels, String value) {
+		f.samples.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static String format(double value) {
+		if (Double.isInfinite(value)) {
+			return value > 0 ? "+Inf" : "-Inf";
+		}
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
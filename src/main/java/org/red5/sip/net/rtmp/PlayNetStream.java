@@ -12,6 +12,7 @@ import org.red5.server.stream.AbstractClientStream;
 import org.red5.server.stream.IStreamData;
 import org.red5.sip.app.IMediaSender;
 import org.red5.sip.app.IMediaStream;
+import org.red5.sip.net.rtp.RTPStreamForMultiplex;
 import org.red5.sip.net.rtp.RTPVideoStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,8 +33,9 @@ public class PlayNetStream extends AbstractClientStream implements IEventDispatc
 	private RTMPRoomClient client;
 	
 	private Number currentStreamID = null;
-	
-	private boolean keyframeReceived = false;
+
+	/** Last AVC sequence header of the stream, sent again to the converter when the video switches to the stream. */
+	private byte[] sequenceHeader = null;
 
 	public PlayNetStream(IMediaSender audioSender, IMediaSender videoSender, RTMPRoomClient client) {
 		this.audioSender = audioSender;
@@ -89,40 +91,44 @@ public class PlayNetStream extends AbstractClientStream implements IEventDispatc
 		}
 
 		if (rtmpEvent instanceof VideoData) {
-			Number newStreamId = client.getActiveVideoStreamID();
-			if (newStreamId == null) {
-				newStreamId = rtmpEvent.getHeader().getStreamId();
-				client.setActiveVideoStreamID(newStreamId);
+			Number newStreamId = rtmpEvent.getHeader().getStreamId();
+			boolean keyframe = ((VideoData) rtmpEvent).getFrameType() == FrameType.KEYFRAME;
+			byte[] data = null;
+			if (keyframe) {
+				// the stream sends its sequence header once: keep it, even while its video is not sent
+				data = getVideoData((VideoData) rtmpEvent);
+				if (data.length > 1 && data[0] == 0x17 && data[1] == 0) {
+					sequenceHeader = data;
+				}
 			}
-			if (!rtmpEvent.getHeader().getStreamId().equals(newStreamId)) {
-				log.trace("ignoring stream id=" + rtmpEvent.getHeader().getStreamId() + " current stream is " + newStreamId);
+			// the router only switches to a stream on a keyframe
+			int videoTs = client.getVideoRouter().route(newStreamId, getAudioLevel(), keyframe,
+					rtmpEvent.getTimestamp());
+			if (videoTs == -1) {
+				log.trace("ignoring stream id=" + newStreamId + " current stream is "
+						+ client.getVideoRouter().getActive());
+				currentStreamID = null;
 				return;
 			}
 			
-			if (!newStreamId.equals(currentStreamID)) {
+			boolean switched = !newStreamId.equals(currentStreamID);
+			if (switched) {
 				log.debug("switching video to a new stream: " + newStreamId);
 				currentStreamID = newStreamId;
-				if (videoStream != null) {
-					videoStream.getConverter().resetConverter();
+				if (sequenceHeader == null) {
+					// without one the keyframe can't be decoded: have the stream played again, which sends it
+					client.requestKeyframe(newStreamId.intValue());
 				}
 			}
-			
-			if (((VideoData) rtmpEvent).getFrameType() == FrameType.KEYFRAME) {
-				keyframeReceived = true;
+			if (data == null) {
+				data = getVideoData((VideoData) rtmpEvent);
 			}
 			
-			if (!keyframeReceived) {
-				log.debug("Keyframe is not received. Packet is ignored.");
-				return;
-			}
-			
-			int videoTs = rtmpEvent.getTimestamp();
-			IoBuffer videoData = ((VideoData) rtmpEvent).getData().asReadOnlyBuffer();
-			videoData.reset();
-			byte[] data = SerializeUtils.ByteBufferToByteArray(videoData);
-			
 			try {
 				if (videoStream != null) {
+					if (switched) {
+						videoStream.restart(videoTs, data == sequenceHeader ? null : sequenceHeader);
+					}
 					videoStream.send(videoTs, data, 0, data.length);
 				}
 			} catch (Exception e) {
@@ -143,4 +149,15 @@ public class PlayNetStream extends AbstractClientStream implements IEventDispatc
 			}
 		}
 	}
+
+	private static byte[] getVideoData(VideoData video) {
+		IoBuffer videoData = video.getData().asReadOnlyBuffer();
+		videoData.reset();
+		return SerializeUtils.ByteBufferToByteArray(videoData);
+	}
+
+	/** Audio level of the stream, as computed by the mixer; 0 without one. */
+	private float getAudioLevel() {
+		return audioStream instanceof RTPStreamForMultiplex ? ((RTPStreamForMultiplex) audioStream).getLevel() : 0f;
+	}
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package org.red5.sip.net.rtmp;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 
 import org.apache.mina.core.RuntimeIoException;
 import org.red5.client.net.rtmp.ClientExceptionHandler;
@@ -10,6 +11,7 @@ import org.red5.client.net.rtmp.RTMPClient;
 import org.red5.server.api.service.IPendingServiceCall;
 import org.red5.server.api.service.IPendingServiceCallback;
 import org.red5.server.net.rtmp.RTMPConnection;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,18 +31,10 @@ public abstract class RTMPControlClient extends RTMPClient implements ClientExce
 	}
 	private final Runnable updateTask = new Runnable() {
 		public void run() {
-			while (true) {
-				try {
-					Thread.sleep(UPDATE_MS);
-					getActiveRoomIds();
-				} catch (InterruptedException e) {
-					log.debug("updateThread was interrupted", e);
-					return;
-				}
-			}
+			getActiveRoomIds();
 		}
 	};
-	private Thread updateThread = null;
+	private ScheduledFuture<?> updateFuture = null;
 
 	public RTMPControlClient(String host, String context) {
 		super();
@@ -69,6 +63,13 @@ public abstract class RTMPControlClient extends RTMPClient implements ClientExce
 		this.conn = conn;
 	}
 
+	private synchronized void stopUpdates() {
+		if (updateFuture != null) {
+			updateFuture.cancel(false);
+			updateFuture = null;
+		}
+	}
+
 	private void reconnect() {
 		if (reconnect) {
 			try {
@@ -79,10 +80,7 @@ public abstract class RTMPControlClient extends RTMPClient implements ClientExce
 			log.debug("Try reconnect...");
 			this.start();
 		} else {
-			if (updateThread != null && updateThread.isAlive()) {
-				updateThread.interrupt();
-			}
-			updateThread = null;
+			stopUpdates();
 		}
 	}
 	
@@ -118,8 +116,8 @@ public abstract class RTMPControlClient extends RTMPClient implements ClientExce
 		case connect:
 			log.info("connect");
 			getActiveRoomIds();
-			updateThread = new Thread(updateTask, "RTMPControlClient updateThread");
-			updateThread.start();
+			stopUpdates();
+			updateFuture = MediaScheduler.getInstance().scheduleWithFixedDelay(updateTask, UPDATE_MS, UPDATE_MS);
 			break;
 		case getActiveRoomIds:
 			log.debug("getActiveRoomIds");
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 
 import org.apache.mina.core.RuntimeIoException;
 import org.apache.mina.core.buffer.IoBuffer;
@@ -37,6 +38,7 @@ import org.red5.server.stream.message.RTMPMessage;
 import org.red5.sip.app.IMediaReceiver;
 import org.red5.sip.app.IMediaSender;
 import org.red5.sip.app.ISipNumberListener;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,20 +69,12 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 	private boolean streamCreated = false;
 	private final Runnable updateTask = new Runnable() {
 		public void run() {
-			while (true) {
-				try {
-					Thread.sleep(UPDATE_MS);
-					updateSipTransport();
-				} catch (InterruptedException e) {
-					log.debug("updateThread was interrupted", e);
-					return;
-				}
-			}
+			updateSipTransport();
 		}
 	};
 	private Runnable afterCallConnectedTask;
 	private boolean callConnected;
-	private Thread updateThread = null;
+	private ScheduledFuture<?> updateFuture = null;
 
 	protected enum ServiceMethod {
 		connect, listRoomBroadcast, getBroadCastId, getPublicSID, createStream, setUserAVSettings
@@ -90,7 +84,11 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 	final private long roomId;
 	final private String context;
 	final private String host;
-	private Number activeVideoStreamID = null;
+	private final VideoRouter videoRouter = new VideoRouter(new VideoRouter.KeyframeRequester() {
+		public void requestKeyframe(int streamId) {
+			RTMPRoomClient.this.requestKeyframe(streamId);
+		}
+	});
 	private String destination;
 	private int sipUsersCount;
 
@@ -146,6 +144,7 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 			disconnect();
 		}
 		publishStreamId = null;
+		videoRouter.clear();
 	}
 
 	public void setAudioSender(IMediaSender audioSender) {
@@ -168,12 +167,23 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 		invoke("listRoomBroadcast", this);
 	}
 
-	public Number getActiveVideoStreamID() {
-		return activeVideoStreamID;
+	/** Gets the router picking the video stream sent to SIP. */
+	public VideoRouter getVideoRouter() {
+		return videoRouter;
 	}
-	
-	public void setActiveVideoStreamID(Number activeVideoStreamID) {
-		this.activeVideoStreamID = activeVideoStreamID;
+
+	/**
+	 * Asks Red5 for a keyframe of a played stream. RTMP has no such request, but playing a live stream again makes Red5
+	 * send the decoder configuration and the last keyframe it kept.
+	 */
+	protected void requestKeyframe(int streamId) {
+		for (Map.Entry<Long, Double> entry : clientStreamMap.entrySet()) {
+			if (entry.getValue().intValue() == streamId) {
+				log.debug("Requesting keyframe of stream {}", streamId);
+				play(entry.getValue(), "" + entry.getKey(), -2000, -1000);
+				return;
+			}
+		}
 	}
 
 	private void createPlayStream(long broadCastId) {
@@ -253,6 +263,13 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 		retryNumber = 0;
 	}
 
+	private synchronized void stopUpdates() {
+		if (updateFuture != null) {
+			updateFuture.cancel(false);
+			updateFuture = null;
+		}
+	}
+
 	private void reconnect() {
 		stop();
 		if (reconnect && ++retryNumber < MAX_RETRY_NUMBER) {
@@ -264,10 +281,7 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 			log.debug("Try reconnect...");
 			this.start();
 		} else {
-			if (updateThread != null && updateThread.isAlive()) {
-				updateThread.interrupt();
-			}
-			updateThread = null;
+			stopUpdates();
 		}
 	}
 	
@@ -375,9 +389,7 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 			conn.getStreamById(streamId).stop();
 			conn.removeClientStream(streamId);
 			conn.deleteStreamById(streamId);
-			if (streamId.equals(getActiveVideoStreamID())) {
-				setActiveVideoStreamID(-1);
-			}
+			videoRouter.remove(streamId);
 		}
 	}
 
@@ -472,8 +484,8 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 			break;
 		case setSipTransport:
 			log.info("setSipTransport");
-			updateThread = new Thread(updateTask, "RTMPRoomClient updateThread");
-			updateThread.start();
+			stopUpdates();
+			updateFuture = MediaScheduler.getInstance().scheduleWithFixedDelay(updateTask, UPDATE_MS, UPDATE_MS);
 			break;
 		case updateSipTransport:
 			log.debug("updateSipTransport");
@@ -535,13 +547,7 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 			return;
 		}
 
-		boolean silence = true;
-		for (byte anAudio : audio) {
-			if (anAudio != -1 && anAudio != -2 && anAudio != 126) {
-				silence = false;
-				break;
-			}
-		}
+		boolean silence = isSilence(audio, codec);
 		if (silence != this.silence && lastSendActivityMS + 500 < System.currentTimeMillis()) {
 			lastSendActivityMS = System.currentTimeMillis();
 			this.silence = silence;
@@ -577,6 +583,33 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 		publishStreamData(publishStreamId, message);
 	}
 	
+	/**
+	 * Whether a G.711 frame only holds the codes closest to zero, of either sign. The frames of other codecs are sound
+	 * unless empty.
+	 */
+	private static boolean isSilence(byte[] audio, int codec) {
+		// positive codes of the two smallest magnitudes; the sign is the top bit in both laws
+		byte smallest, next;
+		if (codec != FLASH_PCMU && codec != FLASH_PCMA) {
+			return audio.length == 0;
+		} else if (codec == FLASH_PCMA) {
+			// +8 and +24, -8 and -24 being 0x55 and 0x54
+			smallest = (byte) 0xD5;
+			next = (byte) 0xD4;
+		} else {
+			// +0 and +8, -0 and -8 being 0x7F and 0x7E
+			smallest = (byte) 0xFF;
+			next = (byte) 0xFE;
+		}
+		for (byte anAudio : audio) {
+			byte magnitude = (byte) (anAudio | 0x80);
+			if (magnitude != smallest && magnitude != next) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public void pushVideo(byte[] video, long ts) throws IOException {
 		if(publishStreamId == null) {
@@ -609,6 +642,17 @@ public class RTMPRoomClient extends RTMPClient implements INetStreamEventHandler
 		log.info("ChunkSize is not fully implemented: {}", chunkSize);
 	}
 
+	/** Whether the audio and video are being published to the room. */
+	public boolean isPublishing() {
+		return publishStreamId != null;
+	}
+
+	/** Number of messages queued on the RTMP connection, waiting to be written. */
+	public long getPendingMessages() {
+		RTMPConnection conn = this.conn;
+		return conn == null ? 0 : conn.getPendingMessages();
+	}
+
 	public String getDestination() {
 		return destination;
 	}
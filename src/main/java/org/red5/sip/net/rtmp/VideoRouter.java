@@ -0,0 +1,155 @@
+package org.red5.sip.net.rtmp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks which of the video streams of the room is sent to SIP: the one of the active speaker. Each stream reports its
+ * audio level, computed by the mixer, with every video frame. A stream louder than the current one by
+ * {@link #HYSTERESIS}, and at least {@link #MIN_LEVEL}, becomes the candidate; the video switches to it on its next
+ * keyframe, which is asked for right away, and not more often than every {@link #MIN_SWITCH_INTERVAL}.
+ * <p>
+ * The timestamps of the frames sent are made continuous across switches, the streams having unrelated clocks.
+ */
+public class VideoRouter {
+	private static final Logger log = LoggerFactory.getLogger(VideoRouter.class);
+
+	/** Level below which a stream is not considered speaking, RMS on a 16-bit scale. */
+	public static final float MIN_LEVEL = 200f;
+	/** Ratio of levels a candidate must reach over the current stream. */
+	public static final float HYSTERESIS = 1.5f;
+	/** Minimum time between two switches, in milliseconds. */
+	public static final long MIN_SWITCH_INTERVAL = 2000;
+	/** Minimum time between two keyframe requests for a stream, in milliseconds. */
+	public static final long KEYFRAME_REQUEST_INTERVAL = 2000;
+	/** Timestamp step of the first frame after a switch, in milliseconds. */
+	private static final int SWITCH_TIMESTAMP_STEP = 33;
+
+	/** Asks Red5 for a keyframe of a stream. */
+	public interface KeyframeRequester {
+		void requestKeyframe(int streamId);
+	}
+
+	private static class Source {
+		float level;
+		long lastKeyframeRequest;
+	}
+
+	private final KeyframeRequester requester;
+	private final Map<Integer, Source> sources = new HashMap<Integer, Source>();
+	private Integer active = null;
+	private Integer candidate = null;
+	private long lastSwitch = 0;
+	private int timestampOffset = 0;
+	private int lastTimestamp = 0;
+	private long switches = 0;
+
+	public VideoRouter(KeyframeRequester requester) {
+		this.requester = requester;
+	}
+
+	/**
+	 * Decides whether a video frame is sent.
+	 *
+	 * @param streamId
+	 *            the stream of the frame
+	 * @param level
+	 *            the current audio level of the stream
+	 * @param keyframe
+	 *            whether the frame is a keyframe
+	 * @param timestamp
+	 *            the timestamp of the frame
+	 * @return the timestamp to send the frame with, -1 if it is not sent
+	 */
+	public synchronized int route(Number streamId, float level, boolean keyframe, int timestamp) {
+		Integer id = streamId.intValue();
+		long now = System.currentTimeMillis();
+		Source source = sources.get(id);
+		if (source == null) {
+			source = new Source();
+			sources.put(id, source);
+		}
+		source.level = level;
+
+		if (!id.equals(active)) {
+			Source current = active == null ? null : sources.get(active);
+			float threshold = current == null ? 0 : Math.max(MIN_LEVEL, current.level * HYSTERESIS);
+			boolean louder = level >= threshold && (candidate == null || candidate.equals(id)
+					|| level > sources.get(candidate).level);
+			if (current != null && (!louder || now - lastSwitch < MIN_SWITCH_INTERVAL)) {
+				if (id.equals(candidate)) {
+					candidate = null;
+				}
+				return -1;
+			}
+			if (!keyframe) {
+				if (louder && !id.equals(candidate)) {
+					log.debug("Video candidate {}, level {}", id, level);
+					candidate = id;
+				}
+				if (id.equals(candidate) && now - source.lastKeyframeRequest >= KEYFRAME_REQUEST_INTERVAL) {
+					source.lastKeyframeRequest = now;
+					requester.requestKeyframe(id);
+				}
+				return -1;
+			}
+			log.debug("Switching video from {} to {}, level {}", active, id, level);
+			timestampOffset = lastTimestamp + (switches > 0 ? SWITCH_TIMESTAMP_STEP : 0) - timestamp;
+			active = id;
+			candidate = null;
+			lastSwitch = now;
+			switches++;
+		}
+		lastTimestamp = timestamp + timestampOffset;
+		return lastTimestamp;
+	}
+
+	/**
+	 * Asks for a keyframe of the stream sent, when the SIP side requests one, at most every
+	 * {@link #KEYFRAME_REQUEST_INTERVAL}.
+	 *
+	 * @return false if no stream is sent or a keyframe was requested too recently
+	 */
+	public synchronized boolean requestKeyframe() {
+		Source source = active == null ? null : sources.get(active);
+		long now = System.currentTimeMillis();
+		if (source == null || now - source.lastKeyframeRequest < KEYFRAME_REQUEST_INTERVAL) {
+			return false;
+		}
+		source.lastKeyframeRequest = now;
+		requester.requestKeyframe(active);
+		return true;
+	}
+
+	/** Forgets a closed stream; if it was the one sent, the next keyframe of any stream is sent. */
+	public synchronized void remove(Number streamId) {
+		Integer id = streamId.intValue();
+		sources.remove(id);
+		if (id.equals(candidate)) {
+			candidate = null;
+		}
+		if (id.equals(active)) {
+			active = null;
+		}
+	}
+
+	/** Forgets every stream, when the connection to Red5 is closed. */
+	public synchronized void clear() {
+		sources.clear();
+		active = null;
+		candidate = null;
+	}
+
+	/** The stream sent, null if none. */
+	public synchronized Integer getActive() {
+		return active;
+	}
+
+	/** Number of switches between streams. */
+	public synchronized long getSwitches() {
+		return switches;
+	}
+}
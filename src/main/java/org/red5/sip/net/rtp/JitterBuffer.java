@@ -0,0 +1,271 @@
+package org.red5.sip.net.rtp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive jitter buffer for one incoming RTP audio stream. Frames are stored by extended sequence number, so
+ * reordered packets are played in order and duplicates or packets arriving after their play-out time are dropped. The
+ * interarrival jitter is estimated as in RFC 3550 (6.4.1) and the play-out delay follows it: playback starts once the
+ * target delay is buffered, and a frame is dropped when the buffer grows past the target, so latency does not drift
+ * with the sender clock. Missing frames are filled in by a {@link Concealment}.
+ * <p>
+ * {@link #put} is called by the RTP receive thread and {@link #get} by the play-out tick; both are short and
+ * allocation free. They share a monitor on purpose: a frame is stored in a slot the play-out frees, and a sequence
+ * jump seen by {@link #put} moves the play-out position of {@link #get}, which a single-producer ring can't express
+ * without locking. Each holds it for a few array copies, 50 times a second, so it is barely ever contended.
+ */
+public class JitterBuffer {
+	protected static Logger log = LoggerFactory.getLogger(JitterBuffer.class);
+
+	/** Target delay in units of the measured jitter. */
+	private static final double JITTER_FACTOR = 3.0;
+	/** Frames above the target delay tolerated before one is dropped. */
+	private static final int ADAPT_MARGIN = 2;
+
+	/** Packet loss concealment hook, typically backed by the codec. */
+	public interface Concealment {
+		/**
+		 * Fills <code>out</code> with a replacement for a lost frame.
+		 *
+		 * @param last
+		 *            last frame played, or null if none was played yet
+		 * @param lastLength
+		 *            length of <code>last</code>
+		 * @param lostCount
+		 *            number of consecutive frames lost, including this one
+		 * @return length of the frame written to <code>out</code>
+		 */
+		int conceal(byte[] last, int lastLength, int lostCount, byte[] out);
+	}
+
+	private final int frameSize;
+	private final int capacity;
+	private final int samplesPerFrame;
+	private final double samplesPerNano;
+	private final int minDelay;
+	private final int maxDelay;
+	private final Concealment concealment;
+
+	private final byte[] slab;
+	private final int[] lengths;
+	private final long[] stamps;
+	private final byte[] last;
+	private int lastLength = 0;
+
+	private boolean started = false;
+	private boolean playing = false;
+	private long maxSeq;
+	private long nextPlay;
+	private int lostRun = 0;
+
+	private boolean hasTransit = false;
+	private double lastTransit;
+	private double jitter = 0;
+	private int targetDelay;
+
+	private long received = 0;
+	private long duplicates = 0;
+	private long late = 0;
+	private long concealed = 0;
+	private long underruns = 0;
+	private long dropped = 0;
+
+	/**
+	 * @param frameSize
+	 *            maximum payload size of one frame
+	 * @param capacity
+	 *            number of frames the buffer can hold
+	 * @param samplesPerFrame
+	 *            RTP timestamp increment of one frame
+	 * @param sampleRate
+	 *            RTP clock rate
+	 * @param minDelay
+	 *            minimal play-out delay, in frames
+	 * @param maxDelay
+	 *            maximal play-out delay, in frames
+	 */
+	public JitterBuffer(int frameSize, int capacity, int samplesPerFrame, int sampleRate, int minDelay,
+			int maxDelay, Concealment concealment) {
+		if (minDelay < 1 || maxDelay < minDelay || maxDelay >= capacity) {
+			throw new IllegalArgumentException("Invalid delay bounds: " + minDelay + ".." + maxDelay);
+		}
+		this.frameSize = frameSize;
+		this.capacity = capacity;
+		this.samplesPerFrame = samplesPerFrame;
+		this.samplesPerNano = sampleRate / 1e9;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.concealment = concealment;
+		this.slab = new byte[capacity * frameSize];
+		this.lengths = new int[capacity];
+		this.stamps = new long[capacity];
+		this.last = new byte[frameSize];
+		this.targetDelay = minDelay;
+		reset();
+	}
+
+	private void reset() {
+		for (int i = 0; i < capacity; i++) {
+			stamps[i] = -1;
+		}
+		started = false;
+		playing = false;
+		lostRun = 0;
+	}
+
+	/** Stores a received frame. */
+	public synchronized void put(int seq, long timestamp, byte[] data, int offset, int length) {
+		updateJitter(timestamp);
+
+		long ext;
+		if (!started) {
+			ext = seq;
+			maxSeq = ext;
+			nextPlay = ext;
+			started = true;
+		} else {
+			ext = maxSeq + (short) (seq - (int) (maxSeq & 0xffff));
+			if (ext >= nextPlay + capacity || ext < nextPlay - capacity) {
+				log.debug("Sequence jump from {} to {}, restarting", maxSeq, ext);
+				reset();
+				ext = seq;
+				maxSeq = ext;
+				nextPlay = ext;
+				started = true;
+			} else if (ext < nextPlay) {
+				late++;
+				return;
+			}
+			if (ext > maxSeq) {
+				maxSeq = ext;
+			}
+		}
+
+		int slot = (int) (ext % capacity);
+		if (stamps[slot] == ext) {
+			duplicates++;
+			return;
+		}
+		int len = Math.min(length, frameSize);
+		System.arraycopy(data, offset, slab, slot * frameSize, len);
+		lengths[slot] = len;
+		stamps[slot] = ext;
+		received++;
+	}
+
+	/** RFC 3550 interarrival jitter, in timestamp units. */
+	private void updateJitter(long timestamp) {
+		double transit = System.nanoTime() * samplesPerNano - timestamp;
+		if (hasTransit) {
+			double d = Math.abs(transit - lastTransit);
+			// ignore timestamp jumps, e.g. a new talk spurt or a restarted stream
+			if (d < capacity * samplesPerFrame) {
+				jitter += (d - jitter) / 16;
+			}
+		}
+		lastTransit = transit;
+		hasTransit = true;
+		int delay = 1 + (int) Math.ceil(JITTER_FACTOR * jitter / samplesPerFrame);
+		targetDelay = Math.max(minDelay, Math.min(maxDelay, delay));
+	}
+
+	/**
+	 * Takes the frame due now.
+	 *
+	 * @return length of the frame written to <code>dst</code>, or -1 if nothing must be played (buffering)
+	 */
+	public synchronized int get(byte[] dst) {
+		if (!started) {
+			return -1;
+		}
+		long depth = maxSeq - nextPlay + 1;
+		if (!playing) {
+			if (depth < targetDelay) {
+				return -1;
+			}
+			playing = true;
+		}
+		if (depth <= 0) {
+			underruns++;
+			playing = false;
+			return -1;
+		}
+		if (depth > targetDelay + ADAPT_MARGIN) {
+			stamps[(int) (nextPlay % capacity)] = -1;
+			nextPlay++;
+			dropped++;
+		}
+
+		int slot = (int) (nextPlay % capacity);
+		int len;
+		if (stamps[slot] == nextPlay) {
+			len = lengths[slot];
+			System.arraycopy(slab, slot * frameSize, dst, 0, len);
+			System.arraycopy(slab, slot * frameSize, last, 0, len);
+			lastLength = len;
+			stamps[slot] = -1;
+			lostRun = 0;
+		} else {
+			lostRun++;
+			concealed++;
+			len = concealment.conceal(lastLength > 0 ? last : null, lastLength, lostRun, dst);
+		}
+		nextPlay++;
+		return len;
+	}
+
+	/** Frames currently buffered ahead of the play-out point. */
+	public synchronized int getDepth() {
+		return started ? (int) Math.max(0, maxSeq - nextPlay + 1) : 0;
+	}
+
+	/** Estimated interarrival jitter, in RTP timestamp units. */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	/** Estimated interarrival jitter, in seconds. */
+	public synchronized double getJitterSeconds() {
+		return jitter / samplesPerNano / 1e9;
+	}
+
+	/** Current target delay, in frames. */
+	public synchronized int getTargetDelay() {
+		return targetDelay;
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/** Frames received after their play-out time. */
+	public synchronized long getLate() {
+		return late;
+	}
+
+	/** Lost frames replaced by concealment. */
+	public synchronized long getConcealed() {
+		return concealed;
+	}
+
+	public synchronized long getUnderruns() {
+		return underruns;
+	}
+
+	/** Frames dropped to bring the delay back to the target. */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "JitterBuffer [received=" + received + ", duplicates=" + duplicates + ", late=" + late + ", concealed="
+				+ concealed + ", underruns=" + underruns + ", dropped=" + dropped + ", jitter=" + jitter
+				+ ", targetDelay=" + targetDelay + "]";
+	}
+}
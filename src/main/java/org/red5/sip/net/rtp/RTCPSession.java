@@ -0,0 +1,427 @@
+package org.red5.sip.net.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import local.net.RtpPacket;
+import local.net.RtpSocket;
+
+import org.red5.sip.util.MediaScheduler;
+import org.red5.sip.util.PortPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zoolu.tools.Random;
+
+/**
+ * RTCP of an RTP session (RFC 3550), on the port above the RTP one. Every {@link #REPORT_INTERVAL} a sender report,
+ * or a receiver report while nothing has been sent, is sent with the CNAME. The reports received give the loss, jitter
+ * and round trip time seen by the other side. Generic NACKs and keyframe requests (PLI and FIR, RFC 4585 and 5104) are
+ * handed over to the {@link Listener}, and keyframes are requested from the other side with {@link #requestKeyframe()}.
+ */
+public class RTCPSession {
+	private static final Logger log = LoggerFactory.getLogger(RTCPSession.class);
+
+	/** Time between two reports, in milliseconds. */
+	public static final int REPORT_INTERVAL = 5000;
+	private static final int PACKET_SIZE = 1500;
+
+	private static final int SR = 200;
+	private static final int RR = 201;
+	private static final int SDES = 202;
+	private static final int BYE = 203;
+	private static final int RTPFB = 205;
+	private static final int PSFB = 206;
+	private static final int FMT_NACK = 1;
+	private static final int FMT_PLI = 1;
+	private static final int FMT_FIR = 4;
+	/** Seconds from 1900, the NTP epoch, to 1970. */
+	private static final long NTP_OFFSET = 2208988800L;
+
+	private static final String CNAME = cname();
+
+	/** Feedback received from the other side, called from the selector thread. */
+	public interface Listener {
+		/** The packet <code>sequence</code> was reported lost. */
+		void onNack(int sequence);
+
+		/** A keyframe was requested, by PLI or FIR. */
+		void onKeyframeRequest();
+	}
+
+	private final int localPort;
+	private final String remoteAddr;
+	private final int remotePort;
+	private final RTPSendStatistics sent;
+	private final RTPReceiveStatistics received;
+	private final int clockRate;
+	private final Listener listener;
+	/** SSRC of the reports when nothing is sent. */
+	private final long ssrc = Random.nextLong() & 0xffffffffL;
+	private final byte[] packet = new byte[PACKET_SIZE];
+	private DatagramChannel channel;
+	private InetSocketAddress remote;
+	private RTPSelector.Registration registration;
+	private ScheduledFuture<?> reportTask;
+	private int firSequence = 0;
+
+	// last sender report received
+	private volatile long lastSenderReport = 0;
+	private volatile long lastSenderReportTime;
+
+	// last report block received about our stream
+	private volatile int fractionLost = 0;
+	private volatile long cumulativeLost = 0;
+	private volatile long jitter = 0;
+	private volatile double roundTripTime = -1;
+
+	private final AtomicLong reportsSent = new AtomicLong();
+	private final AtomicLong reportsReceived = new AtomicLong();
+	private final AtomicLong nacksReceived = new AtomicLong();
+	private final AtomicLong keyframeRequestsReceived = new AtomicLong();
+	private final AtomicLong keyframeRequestsSent = new AtomicLong();
+
+	/**
+	 * @param localPort
+	 *            the local RTCP port, bound through {@link PortPool}
+	 * @param sent
+	 *            statistics of the stream sent, null if the session only receives
+	 * @param received
+	 *            statistics of the stream received
+	 * @param clockRate
+	 *            RTP clock of the session, in Hz
+	 * @param listener
+	 *            receives the feedback of the other side, may be null
+	 */
+	public RTCPSession(int localPort, String remoteAddr, int remotePort, RTPSendStatistics sent,
+			RTPReceiveStatistics received, int clockRate, Listener listener) {
+		this.localPort = localPort;
+		this.remoteAddr = remoteAddr;
+		this.remotePort = remotePort;
+		this.sent = sent;
+		this.received = received;
+		this.clockRate = clockRate;
+		this.listener = listener;
+	}
+
+	/** Starts receiving and reporting. */
+	public synchronized void start() {
+		try {
+			remote = new InetSocketAddress(InetAddress.getByName(remoteAddr), remotePort);
+			channel = PortPool.bind(localPort);
+			registration = RTPSelector.getInstance().register(new RtpSocket(channel),
+					new RtpPacket(new byte[PACKET_SIZE], 0), new RTPSelector.Listener() {
+						public void onReceivedPacket(RtpSocket socket, RtpPacket packet) {
+							onReceived(packet.getPacket(), packet.getLength());
+						}
+					});
+		} catch (IOException e) {
+			log.error("Unable to start RTCP on port " + localPort, e);
+			stop();
+			return;
+		}
+		reportTask = MediaScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sendReport();
+			}
+		}, REPORT_INTERVAL);
+		log.debug("RTCP on port {} to {}", localPort, remote);
+	}
+
+	/** Sends a BYE and releases the port. */
+	public synchronized void stop() {
+		if (reportTask != null) {
+			reportTask.cancel(false);
+			reportTask = null;
+		}
+		if (registration != null) {
+			RTPSelector.getInstance().unregister(registration);
+			registration = null;
+			int length = writeReport(0);
+			length = writeCname(length);
+			length = writeBye(length);
+			send(length);
+		}
+		if (channel != null) {
+			PortPool.unbind(localPort, channel);
+			channel = null;
+		}
+	}
+
+	/**
+	 * Asks the other side for a keyframe, with a PLI and a FIR for the endpoints only supporting one of them.
+	 *
+	 * @return false if no packet has been received yet, the SSRC to refresh being unknown
+	 */
+	public synchronized boolean requestKeyframe() {
+		long media = received.getSsrc();
+		if (registration == null || media == -1) {
+			return false;
+		}
+		int length = writeReport(0);
+		length = writeCname(length);
+		length = writeHeader(length, FMT_PLI, PSFB, 2);
+		length = put32(length, getSsrc());
+		length = put32(length, media);
+		length = writeHeader(length, FMT_FIR, PSFB, 4);
+		length = put32(length, getSsrc());
+		length = put32(length, 0);
+		length = put32(length, media);
+		length = put32(length, (firSequence++ & 0xff) << 24);
+		send(length);
+		keyframeRequestsSent.incrementAndGet();
+		return true;
+	}
+
+	/** Fraction of our packets lost, from the last report of the other side. */
+	public double getFractionLost() {
+		return fractionLost / 256.0;
+	}
+
+	/** Number of our packets lost, from the last report of the other side. */
+	public long getCumulativeLost() {
+		return cumulativeLost;
+	}
+
+	/** Interarrival jitter of our packets in seconds, from the last report of the other side. */
+	public double getJitterSeconds() {
+		return (double) jitter / clockRate;
+	}
+
+	/** Round trip time in seconds, -1 until a report about one of our sender reports is received. */
+	public double getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	public long getReportsSent() {
+		return reportsSent.get();
+	}
+
+	public long getReportsReceived() {
+		return reportsReceived.get();
+	}
+
+	/** Number of packets reported lost by generic NACKs. */
+	public long getNacksReceived() {
+		return nacksReceived.get();
+	}
+
+	public long getKeyframeRequestsReceived() {
+		return keyframeRequestsReceived.get();
+	}
+
+	public long getKeyframeRequestsSent() {
+		return keyframeRequestsSent.get();
+	}
+
+	/** Sends a report now, besides the ones sent every {@link #REPORT_INTERVAL}. */
+	synchronized void sendReport() {
+		if (registration == null) {
+			return;
+		}
+		int length = writeReport(0);
+		length = writeCname(length);
+		send(length);
+		reportsSent.incrementAndGet();
+	}
+
+	private long getSsrc() {
+		return sent == null ? ssrc : sent.getSsrc();
+	}
+
+	/** Writes a sender report if packets were sent, a receiver report otherwise. */
+	private int writeReport(int offset) {
+		long now = System.currentTimeMillis();
+		boolean sender = sent != null && sent.getPackets() > 0;
+		long source = received.getSsrc();
+		int count = source == -1 ? 0 : 1;
+		offset = writeHeader(offset, count, sender ? SR : RR, (sender ? 6 : 1) + 6 * count);
+		offset = put32(offset, getSsrc());
+		if (sender) {
+			long seconds = now / 1000 + NTP_OFFSET;
+			long fraction = ((now % 1000) << 32) / 1000;
+			offset = put32(offset, seconds);
+			offset = put32(offset, fraction);
+			offset = put32(offset, sent.getTimestamp(now));
+			offset = put32(offset, sent.getPackets());
+			offset = put32(offset, sent.getOctets());
+		}
+		if (count > 0) {
+			long lost = Math.max(-0x800000, Math.min(0x7fffff, received.getCumulativeLost()));
+			long lastReport = lastSenderReport;
+			long delay = lastReport == 0 ? 0 : (now - lastSenderReportTime) * 65536 / 1000;
+			offset = put32(offset, source);
+			offset = put32(offset, (received.nextFractionLost() << 24) | (lost & 0xffffff));
+			offset = put32(offset, received.getExtendedHighestSequence());
+			offset = put32(offset, received.getJitter());
+			offset = put32(offset, lastReport);
+			offset = put32(offset, delay);
+		}
+		return offset;
+	}
+
+	private int writeCname(int offset) {
+		int start = offset;
+		int length = Math.min(CNAME.length(), 255);
+		// SSRC, CNAME item and at least one null octet ending the list, padded to 32 bits
+		int words = (4 + 2 + length + 4) / 4;
+		offset = writeHeader(offset, 1, SDES, words);
+		offset = put32(offset, getSsrc());
+		packet[offset++] = 1;
+		packet[offset++] = (byte) length;
+		for (int i = 0; i < length; i++) {
+			packet[offset++] = (byte) CNAME.charAt(i);
+		}
+		int end = start + 4 * (words + 1);
+		while (offset < end) {
+			packet[offset++] = 0;
+		}
+		return offset;
+	}
+
+	private int writeBye(int offset) {
+		offset = writeHeader(offset, 1, BYE, 1);
+		return put32(offset, getSsrc());
+	}
+
+	/** Writes a packet header; <code>length</code> is in 32-bit words, minus one. */
+	private int writeHeader(int offset, int count, int type, int length) {
+		packet[offset] = (byte) (0x80 | count);
+		packet[offset + 1] = (byte) type;
+		packet[offset + 2] = (byte) (length >> 8);
+		packet[offset + 3] = (byte) length;
+		return offset + 4;
+	}
+
+	private int put32(int offset, long value) {
+		packet[offset] = (byte) (value >> 24);
+		packet[offset + 1] = (byte) (value >> 16);
+		packet[offset + 2] = (byte) (value >> 8);
+		packet[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	private void send(int length) {
+		DatagramChannel channel = this.channel;
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.send(ByteBuffer.wrap(packet, 0, length), remote);
+		} catch (IOException e) {
+			log.debug("Sending RTCP failed: {}", e.getMessage());
+		}
+	}
+
+	/** Parses a compound packet. */
+	private void onReceived(byte[] data, int length) {
+		int offset = 0;
+		// a PLI and a FIR in the same compound packet are one request
+		boolean keyframeRequested = false;
+		while (offset + 4 <= length) {
+			if ((data[offset] & 0xc0) != 0x80) {
+				log.debug("Ignoring RTCP packet of version {}", (data[offset] & 0xff) >> 6);
+				break;
+			}
+			int count = data[offset] & 0x1f;
+			int type = data[offset + 1] & 0xff;
+			int end = offset + 4 * ((((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff)) + 1);
+			if (end > length) {
+				log.debug("Ignoring truncated RTCP packet of type {}", type);
+				break;
+			}
+			switch (type) {
+				case SR:
+					if (end - offset >= 28) {
+						// middle 32 bits of the NTP timestamp
+						lastSenderReport = ((get32(data, offset + 8) << 16) | (get32(data, offset + 12) >>> 16))
+								& 0xffffffffL;
+						lastSenderReportTime = System.currentTimeMillis();
+						readReportBlocks(data, offset + 28, count, end);
+					}
+					break;
+				case RR:
+					readReportBlocks(data, offset + 8, count, end);
+					break;
+				case RTPFB:
+					if (count == FMT_NACK) {
+						for (int i = offset + 12; i + 4 <= end; i += 4) {
+							int lost = ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+							int mask = ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+							nack(lost);
+							for (int bit = 0; bit < 16; bit++) {
+								if ((mask & (1 << bit)) != 0) {
+									nack((lost + bit + 1) & 0xffff);
+								}
+							}
+						}
+					}
+					break;
+				case PSFB:
+					if (count == FMT_PLI || count == FMT_FIR) {
+						log.debug("Keyframe requested by {}", count == FMT_PLI ? "PLI" : "FIR");
+						keyframeRequested = true;
+					}
+					break;
+				default:
+					break;
+			}
+			offset = end;
+		}
+		if (keyframeRequested) {
+			keyframeRequestsReceived.incrementAndGet();
+			if (listener != null) {
+				listener.onKeyframeRequest();
+			}
+		}
+	}
+
+	private void nack(int sequence) {
+		nacksReceived.incrementAndGet();
+		if (listener != null) {
+			listener.onNack(sequence);
+		}
+	}
+
+	/** Reads the report blocks, keeping the one about our stream. */
+	private void readReportBlocks(byte[] data, int offset, int count, int end) {
+		reportsReceived.incrementAndGet();
+		long own = getSsrc();
+		for (int i = 0; i < count && offset + 24 <= end; i++, offset += 24) {
+			if (get32(data, offset) != own) {
+				continue;
+			}
+			fractionLost = data[offset + 4] & 0xff;
+			// 24-bit signed
+			cumulativeLost = (get32(data, offset + 4) << 40) >> 40;
+			jitter = get32(data, offset + 12);
+			long lastReport = get32(data, offset + 16);
+			long delay = get32(data, offset + 20);
+			if (lastReport != 0) {
+				long now = System.currentTimeMillis();
+				long arrival = ((((now / 1000 + NTP_OFFSET) & 0xffff) << 16) | ((((now % 1000) << 32) / 1000) >>> 16));
+				int rtt = (int) (arrival - lastReport - delay);
+				if (rtt >= 0) {
+					roundTripTime = rtt / 65536.0;
+				}
+			}
+		}
+	}
+
+	private static long get32(byte[] data, int offset) {
+		return ((data[offset] & 0xffL) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+
+	private static String cname() {
+		try {
+			return "red5sip@" + InetAddress.getLocalHost().getHostAddress();
+		} catch (IOException e) {
+			return "red5sip@127.0.0.1";
+		}
+	}
+}
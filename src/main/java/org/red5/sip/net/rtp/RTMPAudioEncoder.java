@@ -0,0 +1,224 @@
+package org.red5.sip.net.rtp;
+
+import java.io.IOException;
+
+import local.media.G711;
+
+import org.red5.codecs.SIPCodec;
+import org.red5.codecs.asao.Encoder;
+import org.red5.codecs.asao.EncoderMap;
+import org.red5.sip.app.IMediaReceiver;
+import org.red5.sip.metrics.Histogram;
+import org.red5.sip.metrics.Metrics;
+import org.red5.sip.util.ArraySampleBuffers;
+
+import com.laszlosystems.libresample4j.Resampler;
+
+/**
+ * Converts the audio frames received from SIP into the audio published to RTMP. G.711 is understood by Flash and is
+ * passed through untouched; the other codecs are decoded and encoded again. Rooms may also ask for Nellymoser, which
+ * the Flash clients decode at a higher sample rate.
+ */
+public abstract class RTMPAudioEncoder {
+	private static final int PCMU = 0;
+	private static final int PCMA = 8;
+
+	/**
+	 * Converts one frame of the SIP codec and pushes the result, if any, to <code>receiver</code>.
+	 * 
+	 * @param ts
+	 *            RTMP timestamp of the frame, in milliseconds
+	 */
+	public abstract void push(byte[] frame, long ts, IMediaReceiver receiver) throws IOException;
+
+	/**
+	 * Gets the encoder for the audio received with <code>sipCodec</code>.
+	 * 
+	 * @param nellymoser
+	 *            whether to encode to Nellymoser at the rate of {@link RTPStreamMultiplexingSender#sampling} rather than
+	 *            to G.711
+	 */
+	public static RTMPAudioEncoder forCodec(SIPCodec sipCodec, boolean nellymoser) {
+		if (nellymoser) {
+			return new NellymoserTranscoder(sipCodec, RTPStreamMultiplexingSender.sampling.rate);
+		}
+		return forCodec(sipCodec);
+	}
+
+	/** Gets the encoder for the audio received with <code>sipCodec</code>. */
+	public static RTMPAudioEncoder forCodec(SIPCodec sipCodec) {
+		switch (sipCodec.getCodecId()) {
+			case PCMU:
+				return new Passthrough(IMediaReceiver.FLASH_PCMU);
+			case PCMA:
+				return new Passthrough(IMediaReceiver.FLASH_PCMA);
+			default:
+				return new G711Transcoder(sipCodec);
+		}
+	}
+
+	/** Pushes G.711 frames as they are received. */
+	static class Passthrough extends RTMPAudioEncoder {
+		private final int codec;
+
+		Passthrough(int codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public void push(byte[] frame, long ts, IMediaReceiver receiver) throws IOException {
+			receiver.pushAudio(frame, ts, codec);
+		}
+
+		@Override
+		public String toString() {
+			return "G.711 passthrough";
+		}
+	}
+
+	/** Decodes the frames of an 8 kHz codec such as G.729 or iLBC and pushes them as mu-law. */
+	static class G711Transcoder extends RTMPAudioEncoder {
+		private final SIPCodec sipCodec;
+		private final float[] pcm;
+		private final byte[] ulaw;
+
+		G711Transcoder(SIPCodec sipCodec) {
+			this.sipCodec = sipCodec;
+			pcm = new float[sipCodec.getIncomingDecodedFrameSize()];
+			ulaw = new byte[pcm.length];
+		}
+
+		@Override
+		public void push(byte[] frame, long ts, IMediaReceiver receiver) throws IOException {
+			sipCodec.codecToPcm(frame, pcm);
+			G711.linear2ulaw(pcm, 0, pcm.length, ulaw, 0);
+			receiver.pushAudio(ulaw, ts, IMediaReceiver.FLASH_PCMU);
+		}
+
+		@Override
+		public String toString() {
+			return sipCodec.getCodecName() + " to G.711 mu-law";
+		}
+	}
+
+	/**
+	 * Decodes the SIP frames, resamples them and pushes them as Nellymoser. The resampled audio is cut into frames of
+	 * 256 samples, so that a push carries as many 64 byte Nellymoser frames as completed by the SIP frame; the
+	 * remainder is kept for the next one.
+	 */
+	static class NellymoserTranscoder extends RTMPAudioEncoder {
+		private static final int DECODED_FRAME_SIZE = 256;
+		private static final int ENCODED_FRAME_SIZE = 64;
+		private static final int DEFAULT_RATE = 22050;
+		/** Peak below which a frame is reported as silence, matching the G.711 codes closest to zero. */
+		private static final float SILENCE_PEAK = 16f;
+		private static final byte[] SILENCE = new byte[0];
+
+		private final SIPCodec sipCodec;
+		private final int rate;
+		private final int codec;
+		private final float[] pcm;
+		private final Resampler resampler;
+		private final double factor;
+		private final ArraySampleBuffers resampleBuffers = new ArraySampleBuffers();
+		private final float[] resampled;
+		private final float[] pending = new float[DECODED_FRAME_SIZE];
+		private int pendingLength = 0;
+		/** Packets by number of Nellymoser frames, as pushAudio sends whole arrays. */
+		private final byte[][] packets;
+		private final Encoder encoder = new Encoder();
+		private EncoderMap encoderMap = null;
+		private final Histogram decodeTime;
+		private final Histogram encodeTime;
+
+		NellymoserTranscoder(SIPCodec sipCodec, int rate) {
+			if (flashCodec(rate) == -1) {
+				rate = DEFAULT_RATE;
+			}
+			this.sipCodec = sipCodec;
+			this.rate = rate;
+			this.codec = flashCodec(rate);
+			pcm = new float[sipCodec.getIncomingDecodedFrameSize()];
+			if (sipCodec.getSampleRate() == rate) {
+				factor = 1;
+				resampler = null;
+				resampled = pcm;
+			} else {
+				factor = rate / (double) sipCodec.getSampleRate();
+				resampler = new Resampler(true, factor, factor);
+				resampled = new float[(int) Math.ceil(pcm.length * factor) + resampler.getFilterWidth()];
+			}
+			packets = new byte[(resampled.length + DECODED_FRAME_SIZE - 1) / DECODED_FRAME_SIZE + 1][];
+			for (int i = 0; i < packets.length; i++) {
+				packets[i] = new byte[i * ENCODED_FRAME_SIZE];
+			}
+			decodeTime = Metrics.getInstance().getDecodeTime(sipCodec.getCodecName());
+			encodeTime = Metrics.getInstance().getEncodeTime("nellymoser");
+		}
+
+		/** Gets the first byte of the RTMP audio data for Nellymoser at <code>rate</code>, -1 if Flash can't play it. */
+		static int flashCodec(int rate) {
+			switch (rate) {
+				case 8000:
+					return 0x52;
+				case 16000:
+					return 0x42;
+				case 11025:
+					return 0x66;
+				case 22050:
+					return 0x6A;
+				case 44100:
+					return 0x6E;
+				default:
+					return -1;
+			}
+		}
+
+		@Override
+		public void push(byte[] frame, long ts, IMediaReceiver receiver) throws IOException {
+			long start = decodeTime != null ? System.nanoTime() : 0;
+			sipCodec.codecToPcm(frame, pcm);
+			if (decodeTime != null) {
+				decodeTime.record(System.nanoTime() - start);
+			}
+			float peak = 0;
+			for (float sample : pcm) {
+				peak = Math.max(peak, Math.abs(sample));
+			}
+
+			int length = pcm.length;
+			if (resampler != null) {
+				resampleBuffers.set(pcm, 0, pcm.length, resampled, 0, resampled.length);
+				resampler.process(factor, resampleBuffers, false);
+				length = resampled.length - resampleBuffers.getOutputBufferLength();
+			}
+
+			start = encodeTime != null ? System.nanoTime() : 0;
+			byte[] packet = packets[(pendingLength + length) / DECODED_FRAME_SIZE];
+			int offset = 0;
+			for (int i = 0; i < packet.length; i += ENCODED_FRAME_SIZE) {
+				int copy = DECODED_FRAME_SIZE - pendingLength;
+				System.arraycopy(resampled, offset, pending, pendingLength, copy);
+				offset += copy;
+				pendingLength = 0;
+				encoderMap = encoder.encode(encoderMap, pending, 0, packet, i);
+			}
+			System.arraycopy(resampled, offset, pending, pendingLength, length - offset);
+			pendingLength += length - offset;
+			if (encodeTime != null && packet.length > 0) {
+				encodeTime.record(System.nanoTime() - start);
+			}
+
+			if (peak < SILENCE_PEAK) {
+				receiver.pushAudio(SILENCE, ts, codec);
+			} else if (packet.length > 0) {
+				receiver.pushAudio(packet, ts, codec);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return sipCodec.getCodecName() + " to Nellymoser " + rate + " Hz";
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.red5.sip.net.rtp;
+
+/**
+ * Reception statistics of an RTP stream, kept as in RFC 3550 appendix A for the receiver reports of its
+ * {@link RTCPSession}: extended highest sequence number, packets expected and lost, and interarrival jitter. A change
+ * of SSRC starts the statistics over.
+ */
+public class RTPReceiveStatistics {
+	private final int clockRate;
+	private long ssrc = -1;
+	private int maxSequence;
+	private int cycles;
+	private int baseSequence;
+	private long received;
+	private long expectedPrior;
+	private long receivedPrior;
+	private long lastTransit;
+	private double jitter;
+
+	/**
+	 * @param clockRate
+	 *            RTP clock of the stream, in Hz
+	 */
+	public RTPReceiveStatistics(int clockRate) {
+		this.clockRate = clockRate;
+	}
+
+	/** Counts a packet received now. */
+	public synchronized void onPacketReceived(long ssrc, int sequence, long timestamp) {
+		long transit = (long) (System.nanoTime() / 1e9 * clockRate) - timestamp;
+		if (ssrc != this.ssrc) {
+			this.ssrc = ssrc;
+			baseSequence = sequence;
+			maxSequence = sequence;
+			cycles = 0;
+			received = 0;
+			expectedPrior = 0;
+			receivedPrior = 0;
+			jitter = 0;
+		} else {
+			int delta = (sequence - maxSequence) & 0xffff;
+			if (delta < 0x8000) {
+				if (sequence < maxSequence) {
+					cycles += 0x10000;
+				}
+				maxSequence = sequence;
+			}
+			// timestamps wrap at 32 bits
+			long d = Math.abs((int) (transit - lastTransit));
+			jitter += (d - jitter) / 16;
+		}
+		lastTransit = transit;
+		received++;
+	}
+
+	/** SSRC of the stream, -1 until a packet is received. */
+	public synchronized long getSsrc() {
+		return ssrc;
+	}
+
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	public synchronized long getExtendedHighestSequence() {
+		return (cycles + maxSequence) & 0xffffffffL;
+	}
+
+	/** Packets lost since the first one, negative when duplicates were received. */
+	public synchronized long getCumulativeLost() {
+		return getExpected() - received;
+	}
+
+	/** Interarrival jitter in RTP timestamp units. */
+	public synchronized long getJitter() {
+		return (long) jitter;
+	}
+
+	/** Interarrival jitter in seconds. */
+	public synchronized double getJitterSeconds() {
+		return jitter / clockRate;
+	}
+
+	/**
+	 * Fraction of the packets lost since the previous call, in 1/256, as reported in a reception report block; starts
+	 * the next reporting interval.
+	 */
+	public synchronized int nextFractionLost() {
+		long expected = getExpected();
+		long expectedInterval = expected - expectedPrior;
+		long lostInterval = expectedInterval - (received - receivedPrior);
+		expectedPrior = expected;
+		receivedPrior = received;
+		if (expectedInterval == 0 || lostInterval <= 0) {
+			return 0;
+		}
+		return (int) ((lostInterval << 8) / expectedInterval);
+	}
+
+	private long getExpected() {
+		return (long) cycles + maxSequence - baseSequence + 1;
+	}
+}
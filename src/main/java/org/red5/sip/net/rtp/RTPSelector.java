@@ -0,0 +1,160 @@
+package org.red5.sip.net.rtp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import local.net.RtpPacket;
+import local.net.RtpSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives RTP packets of many sockets from a single thread. Sockets must be backed by a {@link DatagramChannel}; they
+ * are switched to non-blocking mode on registration. Each registration owns one {@link RtpPacket} that is reused for
+ * every packet, so listeners must consume (or copy) it before returning.
+ */
+public class RTPSelector implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(RTPSelector.class);
+
+	/** Packets read from one socket before the other ready sockets get their turn. */
+	private static final int MAX_READS_PER_KEY = 16;
+
+	private static RTPSelector instance;
+
+	public interface Listener {
+		void onReceivedPacket(RtpSocket socket, RtpPacket packet);
+	}
+
+	/** A socket registered with the selector. */
+	public static class Registration {
+		private final RtpSocket socket;
+		private final RtpPacket packet;
+		private final Listener listener;
+		private volatile SelectionKey key;
+		private volatile boolean cancelled = false;
+
+		private Registration(RtpSocket socket, RtpPacket packet, Listener listener) {
+			this.socket = socket;
+			this.packet = packet;
+			this.listener = listener;
+		}
+	}
+
+	private final Selector selector;
+	private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+	private final Thread thread;
+
+	public static synchronized RTPSelector getInstance() {
+		if (instance == null) {
+			try {
+				instance = new RTPSelector();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open RTP selector", e);
+			}
+		}
+		return instance;
+	}
+
+	private RTPSelector() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, "RTPSelector");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Starts receiving on <code>socket</code>; <code>listener</code> is called from the selector thread for every
+	 * packet, with <code>packet</code> holding its data.
+	 */
+	public Registration register(RtpSocket socket, RtpPacket packet, Listener listener) throws IOException {
+		DatagramChannel channel = socket.getDatagramChannel();
+		if (channel == null) {
+			throw new IllegalArgumentException("RTP socket is not backed by a DatagramChannel");
+		}
+		channel.configureBlocking(false);
+		Registration registration = new Registration(socket, packet, listener);
+		pending.add(registration);
+		selector.wakeup();
+		return registration;
+	}
+
+	/** Stops receiving for <code>registration</code>; the channel itself is not closed. */
+	public void unregister(Registration registration) {
+		registration.cancelled = true;
+		SelectionKey key = registration.key;
+		if (key != null) {
+			key.cancel();
+			selector.wakeup();
+		}
+	}
+
+	public int getRegisteredCount() {
+		return selector.keys().size();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				registerPending();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable()) {
+						read((Registration) key.attachment());
+					}
+				}
+			} catch (Throwable t) {
+				log.error("RTP selector loop failed", t);
+			}
+		}
+	}
+
+	private void registerPending() {
+		Registration registration;
+		int count = pending.size();
+		for (int i = 0; i < count && (registration = pending.poll()) != null; i++) {
+			if (registration.cancelled) {
+				continue;
+			}
+			try {
+				registration.key = registration.socket.getDatagramChannel().register(selector, SelectionKey.OP_READ,
+						registration);
+				// unregistered while the key was created
+				if (registration.cancelled) {
+					registration.key.cancel();
+				}
+			} catch (ClosedChannelException e) {
+				log.debug("RTP channel closed before registration");
+			} catch (CancelledKeyException e) {
+				// a pooled channel whose previous key is not flushed yet: retry after the next selection
+				pending.add(registration);
+				selector.wakeup();
+			}
+		}
+	}
+
+	private void read(Registration registration) {
+		try {
+			for (int i = 0; i < MAX_READS_PER_KEY && !registration.cancelled
+					&& registration.socket.poll(registration.packet); i++) {
+				registration.listener.onReceivedPacket(registration.socket, registration.packet);
+			}
+		} catch (IOException e) {
+			log.debug("RTP receive failed, unregistering: {}", e.getMessage());
+			registration.key.cancel();
+		} catch (Exception e) {
+			log.error("RTP listener failed", e);
+		}
+	}
+}
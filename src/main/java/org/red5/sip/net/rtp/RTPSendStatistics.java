@@ -0,0 +1,51 @@
+package org.red5.sip.net.rtp;
+
+/**
+ * What an RTP sender has sent, for the sender reports of its {@link RTCPSession}: SSRC, packet and octet counts, and
+ * the RTP timestamp of the last packet with the time it was sent.
+ */
+public class RTPSendStatistics {
+	private final int clockRate;
+	private long ssrc;
+	private long packets = 0;
+	private long octets = 0;
+	private long lastTimestamp = 0;
+	private long lastSendTime = 0;
+
+	/**
+	 * @param clockRate
+	 *            RTP clock of the stream, in Hz
+	 */
+	public RTPSendStatistics(int clockRate) {
+		this.clockRate = clockRate;
+	}
+
+	public synchronized void setSsrc(long ssrc) {
+		this.ssrc = ssrc & 0xffffffffL;
+	}
+
+	public synchronized long getSsrc() {
+		return ssrc;
+	}
+
+	/** Counts a packet sent now with RTP timestamp <code>timestamp</code>. */
+	public synchronized void onPacketSent(long timestamp, int payloadLength) {
+		packets++;
+		octets += payloadLength;
+		lastTimestamp = timestamp;
+		lastSendTime = System.currentTimeMillis();
+	}
+
+	public synchronized long getPackets() {
+		return packets;
+	}
+
+	public synchronized long getOctets() {
+		return octets;
+	}
+
+	/** RTP timestamp corresponding to the wallclock time <code>now</code>, extrapolated from the last packet. */
+	public synchronized long getTimestamp(long now) {
+		return (lastTimestamp + (now - lastSendTime) * clockRate / 1000) & 0xffffffffL;
+	}
+}
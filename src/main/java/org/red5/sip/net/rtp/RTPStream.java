@@ -3,7 +3,6 @@ package org.red5.sip.net.rtp;
 import static org.red5.sip.net.rtp.RTPStreamSender.RTP_HEADER_SIZE;
 import local.net.RtpPacket;
 
-import org.red5.codecs.asao.ByteStream;
 import org.red5.sip.app.IMediaStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +29,8 @@ public class RTPStream implements IMediaStream {
 	int encodingOffset = 0;
 	// Indicates whether the current asao buffer was processed.
 	boolean asao_buffer_processed = false;
+	// Encoded frame, reused for every packet.
+	byte[] codedBuffer;
 
 	public RTPStream(Number streamId, long syncSource, RTPStreamSender sender) {
 		this.syncSource = syncSource;
@@ -39,6 +40,7 @@ public class RTPStream implements IMediaStream {
 		this.rtpPacket.setPayloadType(sender.sipCodec.getCodecId());
 		this.tempBuffer = new float[RTPStreamSender.NELLYMOSER_DECODED_PACKET_SIZE];
 		this.encodingBuffer = new float[sender.sipCodec.getOutgoingDecodedFrameSize()];
+		this.codedBuffer = new byte[sender.sipCodec.getOutgoingEncodedFrameSize()];
 	}
 
 	public void send(long timestamp, byte[] asaoBuffer, int offset, int num) {
@@ -87,7 +89,6 @@ public class RTPStream implements IMediaStream {
 
 		int copyingSize = 0;
 		int finalCopySize = 0;
-		byte[] codedBuffer = new byte[sender.sipCodec.getOutgoingEncodedFrameSize()];
 
 		try {
 			if ((tempBufferRemaining + encodingOffset) >= sender.sipCodec.getOutgoingDecodedFrameSize()) {
@@ -116,9 +117,7 @@ public class RTPStream implements IMediaStream {
 
 				asao_buffer_processed = true;
 
-				ByteStream audioStream = new ByteStream(asaoBuffer, 1, RTPStreamSender.NELLYMOSER_ENCODED_PACKET_SIZE);
-
-				sender.decoderMap = sender.decoder.decode(sender.decoderMap, audioStream.bytes, 1, tempBuffer, 0);
+				sender.decoderMap = sender.decoder.decode(sender.decoderMap, asaoBuffer, 1, tempBuffer, 0);
 
 				tempBufferRemaining = tempBuffer.length;
 
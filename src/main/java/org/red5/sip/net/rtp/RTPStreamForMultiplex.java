@@ -11,14 +11,19 @@ import org.slf4j.LoggerFactory;
 
 public class RTPStreamForMultiplex implements IMediaStream {
 	protected static Logger log = LoggerFactory.getLogger(RTPStreamForMultiplex.class);
+	/** Smoothing of the level when it rises, per decoded frame. */
+	private static final float LEVEL_ATTACK = 0.5f;
+	/** Smoothing of the level when it falls, per decoded frame: about half a second. */
+	private static final float LEVEL_RELEASE = 0.05f;
 	private Number streamId;
-	private boolean ready = false;
+	private volatile boolean ready = false;
+	private volatile float level = 0f;
 	protected DecoderMap decoderMap = null;
 	private BytesBuffer buffer = new BytesBuffer(NELLYMOSER_ENCODED_PACKET_SIZE, 200) {
 		@Override
 		protected void onBufferOverflow() {
 			super.onBufferOverflow();
-			log.error("Stream {} buffer overflow. Buffer was cleared", streamId);
+			log.warn("Stream {} buffer overflow, oldest frame dropped ({} so far)", streamId, getOverflows());
 		}
 
 		@Override
@@ -39,31 +44,60 @@ public class RTPStreamForMultiplex implements IMediaStream {
 	}
 
 	public void send(long timestamp, byte[] asaoBuffer, int offset, int num) {
-		log.trace("Stream {} send:: num: {} ready {}", streamId, num, ready);
+		if (log.isTraceEnabled()) {
+			// the arguments would be boxed into an array on every frame
+			log.trace("Stream {} send:: num: {} ready {}", streamId, num, ready);
+		}
 		for (int i = 0; i < num; i += NELLYMOSER_ENCODED_PACKET_SIZE) {
-			synchronized (this) {
-				buffer.push(asaoBuffer, offset + i, NELLYMOSER_ENCODED_PACKET_SIZE);
-			}
-			Thread.yield();
+			buffer.push(asaoBuffer, offset + i, NELLYMOSER_ENCODED_PACKET_SIZE);
 		}
-		synchronized (this) {
-			if (!ready && buffer.bufferUsage() > READY) {
-				ready = true;
-			}
+		if (!ready && buffer.bufferUsage() > READY) {
+			ready = true;
 		}
 	}
 
-	protected synchronized boolean ready() {
+	protected boolean ready() {
 		return ready;
 	}
 
-	protected synchronized float bufferUsage() {
+	protected float bufferUsage() {
 		return buffer.bufferUsage();
 	}
 
-	protected synchronized int read(byte[] dst, int offset) {
+	/** Audio level of the stream: smoothed RMS of the decoded samples, on a 16-bit scale. */
+	public float getLevel() {
+		return level;
+	}
+
+	/** Consumer side: tracks the level of a decoded frame, rising fast and falling slowly. */
+	protected void updateLevel(float[] samples) {
+		float sum = 0f;
+		for (float sample : samples) {
+			sum += sample * sample;
+		}
+		float rms = (float) Math.sqrt(sum / samples.length);
+		level += (rms - level) * (rms > level ? LEVEL_ATTACK : LEVEL_RELEASE);
+	}
+
+	/** Consumer side: lets the level fall while the stream is not mixed. */
+	protected void decayLevel() {
+		level -= level * LEVEL_RELEASE;
+	}
+
+	public long getOverflows() {
+		return buffer.getOverflows();
+	}
+
+	public long getUnderruns() {
+		return buffer.getUnderruns();
+	}
+
+	/** Consumer side: called from the mixer tick only. */
+	protected int read(byte[] dst, int offset) {
 		int read = buffer.take(dst, offset);
-		log.trace("Stream {} read:: ready: {} read {}", streamId, ready, read);
+		if (log.isTraceEnabled()) {
+			log.trace("Stream {} read:: ready: {} read {}", streamId, ready, read);
+		}
 		return read;
 	}
 
@@ -1,22 +1,27 @@
 package org.red5.sip.net.rtp;
 
-import static org.red5.sip.util.BytesBuffer.READY;
-
 import java.lang.ref.WeakReference;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import local.net.RtpPacket;
 import local.net.RtpSocket;
 
 import org.apache.mina.util.ConcurrentHashSet;
 import org.red5.codecs.SIPCodec;
-import org.red5.codecs.asao.ByteStream;
 import org.red5.codecs.asao.Decoder;
 import org.red5.sip.app.IMediaReceiver;
 import org.red5.sip.app.IMediaSender;
 import org.red5.sip.app.IMediaStream;
+import org.red5.sip.metrics.Histogram;
+import org.red5.sip.metrics.Metrics;
+import org.red5.sip.util.ArraySampleBuffers;
+import org.red5.sip.util.MediaScheduler;
 import org.red5.sip.util.ResampleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +60,8 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 	protected static final int NELLYMOSER_ENCODED_PACKET_SIZE = 64;// *
 																	// sampling.blocks;
 
+	private static final Number DISABLED_STREAM_ID = 0;
+
 	RtpSocket rtpSocket = null;
 
 	/**
@@ -79,13 +86,44 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 	// Temporary buffer with received PCM audio from FlashPlayer.
 	private float[] tempBuffer;
 	private float[] multiplexedBuffer;
+	private float[] decodedBuffer;
+	private byte[] asaoBuffer;
+	private byte[] codedBuffer;
 
 	private Resampler resampler;
+	private ArraySampleBuffers resampleBuffers;
 	private double factor = 1;
 
-	private Thread sendThread = new Thread(this, "RTPStreamMultiplexingSender sendThread");
+	private ScheduledFuture<?> sendTask;
+	// Held by a mixing tick, and by halt() to wait for the tick in progress before handing the socket back.
+	private final Object tickLock = new Object();
+
+	// Max number of frames the mixer may be late before dropping them instead of catching up.
+	private static final int MAX_CATCH_UP_FRAMES = 5;
+
+	// Monotonic clock of the mixer: frame n is due at startNanos + n * ptimeNanos.
+	private long startNanos;
+	private long ptimeNanos;
+	private long framesSent = 0;
+
+	private volatile long drift = 0;
+	private final AtomicLong lateTicks = new AtomicLong();
+	private final AtomicLong underrunTicks = new AtomicLong();
+	private final AtomicLong skippedFrames = new AtomicLong();
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private RTPSendStatistics statistics;
+	// Buffer overflows and underruns of the deleted streams.
+	private final AtomicLong retiredOverflows = new AtomicLong();
+	private final AtomicLong retiredUnderruns = new AtomicLong();
+
+	// Codec timings, null when the metrics are disabled.
+	private Histogram encodeTime;
+	private Histogram decodeTime;
 
 	ConcurrentHashSet<WeakReference<RTPStreamForMultiplex>> streamSet = new ConcurrentHashSet<WeakReference<RTPStreamForMultiplex>>();
+	// Copy of streamSet for the mixing tick, which iterates it without allocating an iterator.
+	private volatile WeakReference<?>[] streams = new WeakReference<?>[0];
 	// Set<RTPStreamForMultiplex> streamSet = Collections.synchronizedSet(new
 	// WeakHashSet<RTPStreamForMultiplex>());
 
@@ -98,9 +136,6 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 	// Offset of encoding buffer.
 	int encodingOffset = 0;
 
-	// Indicates whether the current asao buffer was processed.
-	boolean asao_buffer_processed = false;
-
 	// Indicates whether the handling buffers have already
 	// been initialized.
 	boolean hasInitilializedBuffers = false;
@@ -159,6 +194,7 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 		mediaReceiver.setAudioSender(this);
 		this.sipCodec = sipCodec;
 		this.doSync = do_sync;
+		this.statistics = new RTPSendStatistics(sipCodec.getSampleRate());
 
 		try {
 			if (src_socket == null) {
@@ -174,27 +210,43 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 	}
 
 	public void start() {
+		prepare();
+		sendTask = MediaScheduler.getInstance().scheduleAtFixedRate(this, sipCodec.getOutgoingPacketization());
+	}
+
+	/** Sets the mixer up for a new session, without scheduling its ticks. */
+	void prepare() {
 		packetBuffer = new byte[sipCodec.getOutgoingEncodedFrameSize() + RTP_HEADER_SIZE];
 		rtpPacket = new RtpPacket(packetBuffer, 0);
 		rtpPacket.setPayloadType(sipCodec.getCodecId());
+		statistics.setSsrc(rtpPacket.getSscr());
 
 		seqn = 0;
 		time = 0;
+		framesSent = 0;
+		ptimeNanos = TimeUnit.MILLISECONDS.toNanos(sipCodec.getOutgoingPacketization());
+		startNanos = System.nanoTime();
 
 		println("start()", "using blocks of " + (packetBuffer.length - RTP_HEADER_SIZE) + " bytes.");
 
 		decoder = new Decoder();
-
-		sendThread.start();
+		encodeTime = Metrics.getInstance().getEncodeTime(sipCodec.getCodecName());
+		decodeTime = Metrics.getInstance().getDecodeTime("nellymoser");
 	}
 
 	@Override
 	public IMediaStream createStream(Number streamId) {
 		RTPStreamForMultiplex stream = new RTPStreamForMultiplex(streamId);
 		streamSet.add(new WeakReference<RTPStreamForMultiplex>(stream));
+		updateStreams();
 		return stream;
 	}
 
+	/** Copies streamSet for the mixing tick, after it changed. */
+	private synchronized void updateStreams() {
+		streams = streamSet.toArray(new WeakReference<?>[0]);
+	}
+
 	@Override
 	public void deleteStream(Number streamId) {
 		for (Iterator<WeakReference<RTPStreamForMultiplex>> iterator = streamSet.iterator(); iterator.hasNext();) {
@@ -203,34 +255,60 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 			try {
 				if (stream != null && stream.getStreamId() == streamId) {
 					iterator.remove();
+					retiredOverflows.addAndGet(stream.getOverflows());
+					retiredUnderruns.addAndGet(stream.getUnderruns());
 				}
 			} catch (NullPointerException ignored) {
 
 			}
 		}
+		updateStreams();
 	}
 
-	private void doRtpDelay(float bufferUsage) {
-		// TODO: make proper pause correction.
-		// Pause should not exceed packetization and prevent emtying of buffer
-		try {
-			long pause = sipCodec.getOutgoingPacketization() - 1;
-			if (bufferUsage > .5f) {
-				pause -= 5;
-			}
-			if (bufferUsage > READY) {
-				pause -= 1;
+	/**
+	 * One mixing tick, run by the media scheduler every packetization period. Frame <i>n</i> is due at
+	 * <code>startNanos + n * ptime</code> on the monotonic clock: early ticks are skipped, and after a stall longer
+	 * than MAX_CATCH_UP_FRAMES the missed frames are dropped (advancing the RTP timestamp) instead of being sent in a
+	 * burst. Exactly one frame is sent per due tick; when the streams do not have enough audio the frame is completed
+	 * with silence.
+	 */
+	public void run() {
+		synchronized (tickLock) {
+			if (rtpSocket == null) {
+				return;
 			}
-			log.trace("Sleep pause: " + pause);
-			Thread.sleep(pause, 800000);
-		} catch (Exception e) {
+			tick();
 		}
 	}
 
-	public void run() {
+	private void tick() {
+		long lateness = System.nanoTime() - (startNanos + (framesSent + 1) * ptimeNanos);
+		if (lateness < -ptimeNanos / 2) {
+			return;
+		}
+		drift = lateness;
+		if (lateness > ptimeNanos / 2) {
+			lateTicks.incrementAndGet();
+		}
+		if (lateness > MAX_CATCH_UP_FRAMES * ptimeNanos) {
+			long skipped = lateness / ptimeNanos;
+			framesSent += skipped;
+			time += skipped * sipCodec.getOutgoingDecodedFrameSize();
+			skippedFrames.addAndGet(skipped);
+			log.debug("Mixer stalled, skipping {} frames", skipped);
+		}
+		framesSent++;
+		mix();
+	}
+
+	/** Mixes the streams into one frame and sends it. */
+	void mix() {
 		if (!hasInitilializedBuffers) {
 			multiplexedBuffer = new float[NELLYMOSER_DECODED_PACKET_SIZE];
 			encodingBuffer = new float[sipCodec.getOutgoingDecodedFrameSize()];
+			decodedBuffer = new float[NELLYMOSER_DECODED_PACKET_SIZE];
+			asaoBuffer = new byte[NELLYMOSER_ENCODED_PACKET_SIZE];
+			codedBuffer = new byte[sipCodec.getOutgoingEncodedFrameSize()];
 
 			if (sipCodec.getSampleRate() == sampling.rate) {
 				tempBuffer = new float[NELLYMOSER_DECODED_PACKET_SIZE];
@@ -238,170 +316,194 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 			} else {
 				factor = sipCodec.getSampleRate() / (double) sampling.rate;
 				resampler = new Resampler(true, factor, factor);
+				resampleBuffers = new ArraySampleBuffers();
 				tempBuffer = new float[(int) (NELLYMOSER_DECODED_PACKET_SIZE * factor)];
 			}
 			hasInitilializedBuffers = true;
 		}
 
-		float[] decodedBuffer = new float[NELLYMOSER_DECODED_PACKET_SIZE];
-		byte[] asaoBuffer = new byte[NELLYMOSER_ENCODED_PACKET_SIZE];
-
-		Number disableStream = 0;
-
-		while (rtpSocket != null) {
-			float bufferUsage = 0;
-			int multiplexingCount = 0;
-			try {
-				for (Iterator<WeakReference<RTPStreamForMultiplex>> i = streamSet.iterator(); i.hasNext();) {
-					int len = -1;
-					WeakReference<RTPStreamForMultiplex> ref = i.next();
-					RTPStreamForMultiplex stream = ref.get();
-					if (stream != null) {
-						if (stream.ready() && !stream.getStreamId().equals(disableStream)) {
-							len = stream.read(asaoBuffer, 0);
-							bufferUsage = Math.max(bufferUsage, stream.bufferUsage());
-							log.trace("Stream id {}, buffer {}", stream.getStreamId(), stream.bufferUsage());
-						} else {
-							continue;
-						}
-					} else {
-						i.remove();
-						continue;
+		try {
+			while (encodingOffset < encodingBuffer.length) {
+				if (tempBufferRemaining == 0) {
+					if (!multiplex()) {
+						// underrun: complete the frame with silence
+						Arrays.fill(encodingBuffer, encodingOffset, encodingBuffer.length, 0f);
+						encodingOffset = encodingBuffer.length;
+						underrunTicks.incrementAndGet();
+						break;
 					}
-					if (len != -1) {
-						ByteStream audioStream = new ByteStream(asaoBuffer, 1, NELLYMOSER_ENCODED_PACKET_SIZE);
-						stream.decoderMap = decoder.decode(stream.decoderMap, audioStream.bytes, 0, decodedBuffer, 0);
-						// fillDecodedBuffer(asaoBuffer, decodedBuffer);
-						if (multiplexingCount > 0) {
-							ResampleUtils.multiplex(multiplexedBuffer, decodedBuffer);
-						} else {
-							System.arraycopy(decodedBuffer, 0, multiplexedBuffer, 0, decodedBuffer.length);
-						}
-						multiplexingCount++;
+					if (resampler == null) {
+						System.arraycopy(multiplexedBuffer, 0, tempBuffer, 0, tempBuffer.length);
+					} else {
+						resampler.process(factor, resampleBuffers.set(multiplexedBuffer, 0, multiplexedBuffer.length,
+								tempBuffer, 0, tempBuffer.length), true);
 					}
-					Thread.yield();
+					tempBufferRemaining = tempBuffer.length;
 				}
-			} catch (Exception e) {
-				log.error("Exception", e);
+				int copyingSize = Math.min(tempBufferRemaining, encodingBuffer.length - encodingOffset);
+				System.arraycopy(tempBuffer, tempBuffer.length - tempBufferRemaining, encodingBuffer, encodingOffset,
+						copyingSize);
+				encodingOffset += copyingSize;
+				tempBufferRemaining -= copyingSize;
 			}
-			if (multiplexingCount > 0) {
-				log.trace("Send: multiplexed: " + multiplexingCount + ", total streams: " + streamSet.size());
-				// ResampleUtils.normalize(multiplexedBuffer,
-				// 1.0f/multiplexingCount);
-				ResampleUtils.normalize(multiplexedBuffer, multiplexedBuffer.length);
-				try {
-					asao_buffer_processed = false;
-					do {
-						int encodedBytes = fillRtpPacketBuffer();
-						if (encodedBytes == 0) {
-							break;
-						}
-						if (encodingOffset == sipCodec.getOutgoingDecodedFrameSize()) {
-							rtpSocketSend(rtpPacket);
-							doRtpDelay(bufferUsage);
-							encodingOffset = 0;
-						}
-					} while (!asao_buffer_processed);
-				} catch (Exception e) {
-					log.error("Error preparing RTP packet", e);
-				}
+			encodingOffset = 0;
+			long encodeStart = encodeTime != null ? System.nanoTime() : 0;
+			int encodedBytes = sipCodec.pcmToCodec(encodingBuffer, codedBuffer);
+			if (encodeTime != null) {
+				encodeTime.record(System.nanoTime() - encodeStart);
 			}
-
+			if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
+				System.arraycopy(codedBuffer, 0, packetBuffer, RTP_HEADER_SIZE, codedBuffer.length);
+				rtpSocketSend(rtpPacket);
+			}
+		} catch (Exception e) {
+			log.error("Error preparing RTP packet", e);
 		}
 	}
 
 	/**
-	 * Fill the buffer of RtpPacket with necessary data.
+	 * Decodes one Nellymoser frame of every ready stream and mixes them into multiplexedBuffer.
+	 * 
+	 * @return false if no stream had data
 	 */
-	private int fillRtpPacketBuffer() {
+	private boolean multiplex() {
+		int multiplexingCount = 0;
+		for (WeakReference<?> ref : streams) {
+			RTPStreamForMultiplex stream = (RTPStreamForMultiplex) ref.get();
+			if (stream == null) {
+				streamSet.remove(ref);
+				updateStreams();
+				continue;
+			}
+			if (!stream.ready() || stream.getStreamId().equals(DISABLED_STREAM_ID)
+					|| stream.read(asaoBuffer, 0) == -1) {
+				stream.decayLevel();
+				continue;
+			}
+			if (log.isTraceEnabled()) {
+				log.trace("Stream id {}, buffer {}", stream.getStreamId(), stream.bufferUsage());
+			}
+			long decodeStart = decodeTime != null ? System.nanoTime() : 0;
+			stream.decoderMap = decoder.decode(stream.decoderMap, asaoBuffer, 0, decodedBuffer, 0);
+			if (decodeTime != null) {
+				decodeTime.record(System.nanoTime() - decodeStart);
+			}
+			// for the video router, which follows the active speaker
+			stream.updateLevel(decodedBuffer);
+			if (multiplexingCount > 0) {
+				ResampleUtils.multiplex(multiplexedBuffer, decodedBuffer);
+			} else {
+				System.arraycopy(decodedBuffer, 0, multiplexedBuffer, 0, decodedBuffer.length);
+			}
+			multiplexingCount++;
+		}
+		if (multiplexingCount > 0) {
+			log.trace("Send: multiplexed: {}, total streams: {}", multiplexingCount, streamSet.size());
+			ResampleUtils.normalize(multiplexedBuffer, multiplexedBuffer.length);
+		}
+		return multiplexingCount > 0;
+	}
 
-		int copyingSize = 0;
-		int finalCopySize = 0;
-		byte[] codedBuffer = new byte[sipCodec.getOutgoingEncodedFrameSize()];
+	/** Stops the mixing ticks; once returned, no tick uses the socket any more. */
+	public void halt() {
+		if (sendTask != null) {
+			sendTask.cancel(false);
+			sendTask = null;
+		}
 
-		try {
+		synchronized (tickLock) {
+			if (rtpSocket == null) {
+				return;
+			}
 
-			if ((tempBufferRemaining + encodingOffset) >= sipCodec.getOutgoingDecodedFrameSize()) {
+			DatagramSocket socket = rtpSocket.getDatagramSocket();
 
-				copyingSize = encodingBuffer.length - encodingOffset;
+			rtpSocket.close();
 
-				System.arraycopy(tempBuffer, tempBuffer.length - tempBufferRemaining, encodingBuffer, encodingOffset, copyingSize);
+			if (socketIsLocal && socket != null) {
+				socket.close();
+			}
 
-				encodingOffset = sipCodec.getOutgoingDecodedFrameSize();
-				tempBufferRemaining -= copyingSize;
-				finalCopySize = sipCodec.getOutgoingDecodedFrameSize();
-			} else {
-				if (tempBufferRemaining > 0) {
-					System.arraycopy(tempBuffer, tempBuffer.length - tempBufferRemaining
-							, encodingBuffer, encodingOffset, tempBufferRemaining);
+			rtpSocket = null;
+		}
 
-					encodingOffset += tempBufferRemaining;
-					finalCopySize += tempBufferRemaining;
-					tempBufferRemaining = 0;
+		println("halt", "Terminated");
+	}
 
-				}
+	/** Lateness of the last mixing tick against its deadline, in nanoseconds. */
+	public long getDrift() {
+		return drift;
+	}
 
-				// Process next buffer
-				asao_buffer_processed = true;
-				if (resampler == null) {
-					System.arraycopy(multiplexedBuffer, 0, tempBuffer, 0, tempBuffer.length);
-				} else {
-					resampler.process(factor, multiplexedBuffer, 0, multiplexedBuffer.length, true, tempBuffer, 0,
-							tempBuffer.length);
-				}
-				// tempBuffer = ResampleUtils.normalize(tempBuffer, 256); //
-				// normalise volume
+	/** Number of ticks run more than half a packetization period after their deadline. */
+	public long getLateTicks() {
+		return lateTicks.get();
+	}
 
-				tempBufferRemaining = tempBuffer.length;
+	/** Number of frames completed with silence because no stream had enough audio. */
+	public long getUnderrunTicks() {
+		return underrunTicks.get();
+	}
 
-				if (tempBuffer.length <= 0) {
+	/** Number of frames dropped after a stall of the mixer. */
+	public long getSkippedFrames() {
+		return skippedFrames.get();
+	}
 
-					println("fillRtpPacketBuffer", "Asao decoder Error.");
-				}
+	/** Number of RTP packets sent. */
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
 
-				// Try to complete the encodingBuffer with necessary data.
+	/** Number of RTP packets dropped because the send buffer of the socket was full. */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
 
-				if ((encodingOffset + tempBufferRemaining) > sipCodec.getOutgoingDecodedFrameSize()) {
-					copyingSize = encodingBuffer.length - encodingOffset;
-				} else {
-					copyingSize = tempBufferRemaining;
-				}
+	/** Statistics of the RTP packets sent, for RTCP. */
+	public RTPSendStatistics getStatistics() {
+		return statistics;
+	}
 
-				System.arraycopy(tempBuffer, 0, encodingBuffer, encodingOffset, copyingSize);
+	/** Number of streams mixed. */
+	public int getStreamCount() {
+		return streamSet.size();
+	}
 
-				encodingOffset += copyingSize;
-				tempBufferRemaining -= copyingSize;
-				finalCopySize += copyingSize;
+	/** Number of streams with enough audio buffered to be mixed. */
+	public int getActiveStreamCount() {
+		int count = 0;
+		for (WeakReference<RTPStreamForMultiplex> ref : streamSet) {
+			RTPStreamForMultiplex stream = ref.get();
+			if (stream != null && stream.ready() && !stream.getStreamId().equals(DISABLED_STREAM_ID)) {
+				count++;
 			}
+		}
+		return count;
+	}
 
-			if (encodingOffset == encodingBuffer.length) {
-				int encodedBytes = sipCodec.pcmToCodec(encodingBuffer, codedBuffer);
-				if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
-					System.arraycopy(codedBuffer, 0, packetBuffer, RTP_HEADER_SIZE, codedBuffer.length);
-				}
+	/** Number of frames dropped because the buffer of their stream was full. */
+	public long getBufferOverflows() {
+		long count = retiredOverflows.get();
+		for (WeakReference<RTPStreamForMultiplex> ref : streamSet) {
+			RTPStreamForMultiplex stream = ref.get();
+			if (stream != null) {
+				count += stream.getOverflows();
 			}
-
-		} catch (Exception e) {
-			log.error("Exception", e);
 		}
-
-		return finalCopySize;
+		return count;
 	}
 
-	public void halt() {
-
-		DatagramSocket socket = rtpSocket.getDatagramSocket();
-
-		rtpSocket.close();
-
-		if (socketIsLocal && socket != null) {
-			socket.close();
+	/** Number of reads from an empty stream buffer. */
+	public long getBufferUnderruns() {
+		long count = retiredUnderruns.get();
+		for (WeakReference<RTPStreamForMultiplex> ref : streamSet) {
+			RTPStreamForMultiplex stream = ref.get();
+			if (stream != null) {
+				count += stream.getUnderruns();
+			}
 		}
-
-		rtpSocket = null;
-		sendThread = null;
-
-		println("halt", "Terminated");
+		return count;
 	}
 
 	private void rtpSocketSend(RtpPacket rtpPacket) {
@@ -410,8 +512,14 @@ public class RTPStreamMultiplexingSender implements IMediaSender, Runnable {
 			rtpPacket.setSequenceNumber(seqn++);
 			rtpPacket.setPayloadLength(sipCodec.getOutgoingEncodedFrameSize());
 			rtpPacket.setPayloadType(sipCodec.getCodecId());
-			rtpSocket.send(rtpPacket);
-			time += sipCodec.getOutgoingPacketization();
+			if (rtpSocket.send(rtpPacket)) {
+				packetsSent.incrementAndGet();
+				statistics.onPacketSent(time, sipCodec.getOutgoingEncodedFrameSize());
+			} else {
+				// the frame is lost, the following ones keep their timestamps
+				packetsDropped.incrementAndGet();
+			}
+			time += sipCodec.getOutgoingDecodedFrameSize();
 		} catch (Exception e) {
 			log.error("Error sending RTP packet", e);
 		}
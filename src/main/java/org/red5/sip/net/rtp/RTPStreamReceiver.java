@@ -1,16 +1,17 @@
 package org.red5.sip.net.rtp;
 
-import static org.red5.sip.util.BytesBuffer.READY;
-
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ScheduledFuture;
 
 import local.net.RtpPacket;
 import local.net.RtpSocket;
 
 import org.red5.codecs.SIPCodec;
 import org.red5.sip.app.IMediaReceiver;
-import org.red5.sip.util.BytesBuffer;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,8 +29,17 @@ public class RTPStreamReceiver extends Thread {
 											// created here
 	private boolean running = false;
 	private long timeStamp = 0;
-	private int frameCounter = 0;
-	private final Object sync = new Object();
+	private volatile int frameCounter = 0;
+	private static final int BUFFER_LENGTH = 100;
+	private static final int MIN_DELAY = 2; // frames
+	private static final int MAX_DELAY = BUFFER_LENGTH / 2; // frames
+	private JitterBuffer buffer;
+	private byte[] codedBuffer;
+	private RTMPAudioEncoder encoder;
+	private ScheduledFuture<?> sendTask;
+	private final Object registrationLock = new Object();
+	private RTPSelector.Registration registration = null;
+	private RTPReceiveStatistics statistics;
 
 	/**
 	 * Constructs a RtpStreamReceiver.
@@ -44,11 +54,12 @@ public class RTPStreamReceiver extends Thread {
 
 	public RTPStreamReceiver(SIPCodec sipCodec, IMediaReceiver rtmpUser, int local_port) {
 		try {
-			DatagramSocket socket = new DatagramSocket(local_port);
+			DatagramChannel channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(local_port));
 
 			socketIsLocal = true;
 
-			init(sipCodec, rtmpUser, socket);
+			init(sipCodec, rtmpUser, channel.socket(), RTMPAudioEncoder.forCodec(sipCodec));
 		} catch (Exception e) {
 			log.error("Exception", e);
 		}
@@ -66,14 +77,52 @@ public class RTPStreamReceiver extends Thread {
 	 */
 
 	public RTPStreamReceiver(SIPCodec sipCodec, IMediaReceiver rtmpUser, DatagramSocket socket) {
-		init(sipCodec, rtmpUser, socket);
+		init(sipCodec, rtmpUser, socket, RTMPAudioEncoder.forCodec(sipCodec));
+	}
+
+	/**
+	 * Constructs a RtpStreamReceiver.
+	 * 
+	 * @param sipCodec
+	 *            codec to be used on audio session
+	 * @param rtmpUser
+	 *            the stream sink
+	 * @param socket
+	 *            the local receiver DatagramSocket
+	 * @param encoder
+	 *            converts the received frames into the audio pushed to <code>rtmpUser</code>
+	 */
+
+	public RTPStreamReceiver(SIPCodec sipCodec, IMediaReceiver rtmpUser, DatagramSocket socket,
+			RTMPAudioEncoder encoder) {
+		init(sipCodec, rtmpUser, socket, encoder);
 	}
 
 	/** Inits the RtpStreamReceiver */
 
-	private void init(SIPCodec sipCodec, IMediaReceiver rtmpUser, DatagramSocket socket) {
+	private void init(SIPCodec sipCodec, IMediaReceiver rtmpUser, DatagramSocket socket, RTMPAudioEncoder encoder) {
 		this.sipCodec = sipCodec;
 		this.rtmpUser = rtmpUser;
+		this.encoder = encoder;
+		this.statistics = new RTPReceiveStatistics(sipCodec.getSampleRate());
+
+		this.codedBuffer = new byte[sipCodec.getIncomingEncodedFrameSize()];
+		final byte[] blankFrame = new byte[Math.max(sipCodec.getIncomingEncodedFrameSize(),
+				sipCodec.getOutgoingEncodedFrameSize())];
+		sipCodec.getCodecBlankPacket(blankFrame, 0);
+		this.buffer = new JitterBuffer(sipCodec.getIncomingEncodedFrameSize(), BUFFER_LENGTH,
+				sipCodec.getIncomingDecodedFrameSize(), sipCodec.getSampleRate(), MIN_DELAY, MAX_DELAY,
+				new JitterBuffer.Concealment() {
+					/** Repeats the last frame once, then plays silence. */
+					public int conceal(byte[] last, int lastLength, int lostCount, byte[] out) {
+						if (lostCount == 1 && last != null) {
+							System.arraycopy(last, 0, out, 0, lastLength);
+							return lastLength;
+						}
+						System.arraycopy(blankFrame, 0, out, 0, out.length);
+						return out.length;
+					}
+				});
 
 		if (socket != null) {
 			rtp_socket = new RtpSocket(socket);
@@ -89,10 +138,70 @@ public class RTPStreamReceiver extends Thread {
 	/** Stops running */
 
 	public void halt() {
-		running = false;
+		synchronized (registrationLock) {
+			running = false;
+			if (registration != null) {
+				RTPSelector.getInstance().unregister(registration);
+				registration = null;
+				release();
+			}
+		}
 	}
 
-	/** Runs it in a new Thread. */
+	/** Number of RTP packets received. */
+	public long getPacketsReceived() {
+		return frameCounter;
+	}
+
+	/** Statistics of the RTP packets received, for RTCP. */
+	public RTPReceiveStatistics getStatistics() {
+		return statistics;
+	}
+
+	/** Jitter buffer of the incoming audio, for statistics. */
+	public JitterBuffer getJitterBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Pushes the frame due now to RTMP; run by the media scheduler every packetization period. The jitter buffer
+	 * decides whether a frame is played, concealed or held back.
+	 */
+	private void sendFrame() {
+		if (buffer.get(codedBuffer) == -1) {
+			return;
+		}
+		timeStamp += sipCodec.getIncomingPacketization();
+		try {
+			encoder.push(codedBuffer, timeStamp, rtmpUser);
+		} catch (IOException e) {
+			log.error("rtmpUser.pushAudio", e);
+		}
+	}
+
+	/** Stores a received packet in the jitter buffer. */
+	private void onReceivedPacket(RtpPacket rtpPacket) {
+		frameCounter++;
+
+		if (running) {
+
+			byte[] packetBuffer = rtpPacket.getPacket();
+			int offset = rtpPacket.getHeaderLength();
+			int payloadType = rtpPacket.getPayloadType();
+
+			if (payloadType < 20) {
+				statistics.onPacketReceived(rtpPacket.getSscr(), rtpPacket.getSequenceNumber(),
+						rtpPacket.getTimestamp());
+				buffer.put(rtpPacket.getSequenceNumber(), rtpPacket.getTimestamp(), packetBuffer, offset,
+						sipCodec.getIncomingEncodedFrameSize());
+			}
+		}
+	}
+
+	/**
+	 * Starts receiving. A socket backed by a DatagramChannel is serviced by the shared RTPSelector and this thread ends
+	 * immediately; a plain DatagramSocket is read by this thread until halted.
+	 */
 
 	public void run() {
 		if (rtp_socket == null) {
@@ -102,83 +211,43 @@ public class RTPStreamReceiver extends Thread {
 
 		running = true;
 
-		final int BUFFER_LENGTH = 100;
-		final BytesBuffer buffer = new BytesBuffer(sipCodec.getIncomingEncodedFrameSize(), BUFFER_LENGTH);
-
-		Thread sendThread = new Thread(new Runnable() {
+		sendTask = MediaScheduler.getInstance().scheduleAtFixedRate(new Runnable() {
 			public void run() {
-				boolean ready = false;
-                float bufferUsage = 0;
-				byte[] codedBuffer = null;
-				while (running) {
-					synchronized (sync) {
-                        bufferUsage = buffer.bufferUsage();
-						if (!ready) {
-							if (bufferUsage > READY) {
-								ready = true;
-							}
-						} else {
-							if (bufferUsage == 0) {
-                                /* Sending while buffer not empty */
-								ready = false;
-							}
-						}
-						if (ready) {
-							codedBuffer = new byte[sipCodec.getIncomingEncodedFrameSize()];
-							buffer.take(codedBuffer, 0);
-						}
-					}
-					if (ready) {
-						timeStamp += sipCodec.getIncomingPacketization();
-						try {
-							rtmpUser.pushAudio(codedBuffer, timeStamp, 130);
-							try {
-
-								long pause = sipCodec.getOutgoingPacketization();
-								if (bufferUsage > .5f) {
-									pause -= 5;
-								}
-								if (bufferUsage > READY) {
-									pause -= 1;
-								}
-								log.trace("Sleep pause: " + pause);
-								Thread.sleep(pause, 800000);
-							} catch (InterruptedException e) {
-								log.debug("InterruptedException: ", e);
-							}
-						} catch (IOException e) {
-							log.error("rtmpUser.pushAudio", e);
-						}
+				sendFrame();
+			}
+		}, sipCodec.getIncomingPacketization());
+
+		RtpPacket rtpPacket = new RtpPacket(new byte[sipCodec.getIncomingEncodedFrameSize() + RTP_HEADER_SIZE], 0);
+
+		if (rtp_socket.getDatagramChannel() != null) {
+			synchronized (registrationLock) {
+				if (running) {
+					try {
+						registration = RTPSelector.getInstance().register(rtp_socket, rtpPacket,
+								new RTPSelector.Listener() {
+									public void onReceivedPacket(RtpSocket socket, RtpPacket packet) {
+										RTPStreamReceiver.this.onReceivedPacket(packet);
+									}
+								});
+						return;
+					} catch (IOException e) {
+						running = false;
+						log.error("Exception", e);
 					}
-					Thread.yield();
 				}
+				release();
 			}
-		}, "RTPStreamReceiver sendThread");
-
-		sendThread.start();
+			return;
+		}
 
 		try {
 
 			rtp_socket.getDatagramSocket().setSoTimeout(SO_TIMEOUT);
-			RtpPacket rtpPacket = new RtpPacket(new byte[sipCodec.getIncomingEncodedFrameSize() + RTP_HEADER_SIZE], 0);
 			while (running) {
 
 				try {
 					rtp_socket.receive(rtpPacket);
-					frameCounter++;
-
-					if (running) {
-
-						byte[] packetBuffer = rtpPacket.getPacket();
-						int offset = rtpPacket.getHeaderLength();
-						int payloadType = rtpPacket.getPayloadType();
-
-						if (payloadType < 20) {
-							synchronized (sync) {
-								buffer.push(packetBuffer, offset, sipCodec.getIncomingEncodedFrameSize());
-							}
-						}
-					}
+					onReceivedPacket(rtpPacket);
 				} catch (java.io.InterruptedIOException e) {
 				}
 			}
@@ -188,6 +257,13 @@ public class RTPStreamReceiver extends Thread {
 			log.error("Exception", e);
 		}
 
+		release();
+	}
+
+	/** Stops sending to RTMP and releases the socket. */
+	private void release() {
+		sendTask.cancel(false);
+
 		// Close RtpSocket and local DatagramSocket.
 		DatagramSocket socket = rtp_socket.getDatagramSocket();
 		rtp_socket.close();
@@ -201,5 +277,6 @@ public class RTPStreamReceiver extends Thread {
 
 		log.debug("run:: Terminated.");
 		log.debug("run:: Frames = {}.", frameCounter);
+		log.debug("run:: {}", buffer);
 	}
 }
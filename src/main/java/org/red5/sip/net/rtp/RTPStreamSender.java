@@ -178,7 +178,9 @@ public class RTPStreamSender implements IMediaSender {
 	private synchronized void rtpSocketSend(RtpPacket rtpPacket) {
 		try {
 			rtpSocket.send(rtpPacket);
-			println("rtpSocketSend", rtpPacket.getSscr() + " : " + rtpPacket.getTimestamp());
+			if (log.isDebugEnabled()) {
+				println("rtpSocketSend", rtpPacket.getSscr() + " : " + rtpPacket.getTimestamp());
+			}
 		} catch (Exception e) {
 		}
 	}
@@ -1,8 +1,11 @@
 package org.red5.sip.net.rtp;
 
+import java.io.IOException;
 import java.net.DatagramSocket;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import local.net.RtpPacket;
 import local.net.RtpSocket;
@@ -12,18 +15,36 @@ import org.red5.sip.app.IMediaReceiver;
 import org.red5.sip.app.SIPTransport;
 import org.red5.sip.app.SIPVideoConverter;
 import org.red5.sip.app.SIPVideoConverter.RTMPPacketInfo;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Receives the H.264 video of a call and pushes it to RTMP. The received packets are copied into a fixed pool of
+ * buffers and handed over to the converter, which runs on the shared media scheduler and returns each buffer to the
+ * pool once converted. When the pool is exhausted, because RTMP publishing can't keep up, packets are dropped until
+ * the start of the next keyframe, which is requested from the SIP side.
+ */
 public class RTPStreamVideoReceiver extends Thread {
 	protected static Logger log = LoggerFactory.getLogger(RTPStreamVideoReceiver.class);
+	/** Largest video RTP packet received, larger ones are truncated. */
+	private static final int MAX_PACKET_SIZE = 2048;
+	/** Packets waiting for the converter, enough for a large keyframe. */
+	private static final int QUEUE_SIZE = 512;
+	/** Packets converted in one run on the media scheduler, before giving its worker back to the audio ticks. */
+	private static final int BATCH_SIZE = 16;
 	protected RtpSocket rtpSocket;
 	protected IMediaReceiver mediaReceiver;
 	protected SIPCodec codec;
 	private boolean running;
-	private ConverterThread converterThread;
+	private volatile Converter converter;
 	private SIPTransport sipTransport;
 	private DatagramSocket socket;
+	private RTPSelector.Registration registration;
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final RTPReceiveStatistics statistics;
 
 	public RTPStreamVideoReceiver(SIPTransport sipTransport, IMediaReceiver mediaReceiver, SIPCodec codec,
 			DatagramSocket socket) {
@@ -32,12 +53,43 @@ public class RTPStreamVideoReceiver extends Thread {
 		this.socket = socket;
 		this.codec = codec;
 		this.sipTransport = sipTransport;
+		this.statistics = new RTPReceiveStatistics(codec.getSampleRate());
+	}
+
+	/** Number of RTP packets received. */
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	/** Number of RTP packets dropped because the converter was behind. */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	/** Number of times the queue of the converter filled up, each one dropping packets up to the next keyframe. */
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	/** Statistics of the RTP packets received, for RTCP. */
+	public RTPReceiveStatistics getStatistics() {
+		return statistics;
+	}
+
+	/** Gets the converter of the received video, null until the receiver is started. */
+	public SIPVideoConverter getVideoConverter() {
+		Converter converter = this.converter;
+		return converter == null ? null : converter.converter;
 	}
 
 	@Override
 	public void interrupt() {
 		running = false;
-		converterThread.interrupt();
+		if (registration != null) {
+			RTPSelector.getInstance().unregister(registration);
+			registration = null;
+		}
+		converter.stop();
 		rtpSocket.close();
 	}
 
@@ -45,13 +97,27 @@ public class RTPStreamVideoReceiver extends Thread {
 	public void run() {
 		running = true;
 		rtpSocket = new RtpSocket(socket);
-		converterThread = new ConverterThread(sipTransport);
-		converterThread.start();
+		converter = new Converter(sipTransport);
+		if (rtpSocket.getDatagramChannel() != null) {
+			// serviced by the shared selector
+			try {
+				registration = RTPSelector.getInstance().register(rtpSocket,
+						new RtpPacket(new byte[MAX_PACKET_SIZE], 0), new RTPSelector.Listener() {
+							public void onReceivedPacket(RtpSocket socket, RtpPacket packet) {
+								converter.addPacket(packet);
+							}
+						});
+			} catch (IOException e) {
+				log.error("Unable to register the RTP socket, shutting down", e);
+				interrupt();
+			}
+			return;
+		}
 		try {
+			RtpPacket rtpPacket = new RtpPacket(new byte[MAX_PACKET_SIZE], 0);
 			while (running) {
-				RtpPacket rtpPacket = new RtpPacket(new byte[codec.getIncomingDecodedFrameSize()], 0);
 				rtpSocket.receive(rtpPacket);
-				converterThread.addPacket(rtpPacket);
+				converter.addPacket(rtpPacket);
 			}
 		} catch (Exception e) {
 			log.error("Unexpected exception while running, shutting down", e);
@@ -59,54 +125,141 @@ public class RTPStreamVideoReceiver extends Thread {
 		}
 	}
 
-	private class ConverterThread extends Thread {
-		private final Queue<RtpPacket> packetQueue;
-		private boolean running;
+	/**
+	 * Whether a packet starts a keyframe: SPS, an aggregate holding an SPS or an IDR slice, or the first packet of an
+	 * IDR slice.
+	 */
+	private static boolean isKeyframeStart(RtpPacket packet) {
+		if (packet.getPayloadLength() < 2) {
+			return false;
+		}
+		byte[] buffer = packet.getPacket();
+		int offset = packet.getHeaderLength();
+		switch (buffer[offset] & 0x1f) {
+			case 5:
+			case 7:
+				return true;
+			case 24:
+				// STAP-A: NAL units each preceded by their 16-bit size
+				int end = offset + packet.getPayloadLength();
+				for (int i = offset + 1; i + 2 < end; i += 2 + ((buffer[i] & 0xff) << 8 | buffer[i + 1] & 0xff)) {
+					int type = buffer[i + 2] & 0x1f;
+					if (type == 5 || type == 7) {
+						return true;
+					}
+				}
+				return false;
+			case 28:
+				return (buffer[offset + 1] & 0x80) != 0 && (buffer[offset + 1] & 0x1f) == 5;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Converts the received packets on the shared media scheduler, one at a time and in arrival order, at most
+	 * {@link #BATCH_SIZE} per run. The packets are copied into pooled buffers and queued; the queue and the pool are
+	 * bounded by {@link #QUEUE_SIZE}.
+	 */
+	private class Converter implements Runnable {
+		private final BlockingQueue<RtpPacket> pool = new ArrayBlockingQueue<RtpPacket>(QUEUE_SIZE);
+		private final BlockingQueue<RtpPacket> queue = new ArrayBlockingQueue<RtpPacket>(QUEUE_SIZE);
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private volatile boolean running;
 		private SIPVideoConverter converter;
+		/** Receiving side: dropping packets until a keyframe starts. */
+		private boolean dropping = false;
+		/** The packet starting the keyframe after an overflow; the converter drops what it has so far. */
+		private volatile RtpPacket resume = null;
 
-		public ConverterThread(SIPTransport sipTransport) {
-			log.debug("... ConverterThread constructor !!!");
-			packetQueue = new ConcurrentLinkedQueue<RtpPacket>();
+		public Converter(SIPTransport sipTransport) {
+			log.debug("... Converter constructor !!!");
+			for (int i = 0; i < QUEUE_SIZE; i++) {
+				pool.add(new RtpPacket(new byte[MAX_PACKET_SIZE], 0));
+			}
 			converter = new SIPVideoConverter(sipTransport);
+			running = true;
 		}
 
+		/** Queues a copy of <code>packet</code>, which may be reused as soon as this returns. */
 		public void addPacket(RtpPacket packet) {
 			if (!running) {
 				return;
 			}
-			packetQueue.add(packet);
+			packetsReceived.incrementAndGet();
+			statistics.onPacketReceived(packet.getSscr(), packet.getSequenceNumber(), packet.getTimestamp());
+			boolean resuming = false;
+			if (dropping) {
+				// resume on a keyframe, once the converter has caught up with half of the queue
+				if (!isKeyframeStart(packet) || queue.size() > QUEUE_SIZE / 2) {
+					packetsDropped.incrementAndGet();
+					return;
+				}
+				dropping = false;
+				resuming = true;
+			}
+			RtpPacket copy = pool.poll();
+			if (copy == null) {
+				log.debug("Video queue full, dropping packets up to the next keyframe");
+				overflows.incrementAndGet();
+				packetsDropped.incrementAndGet();
+				dropping = true;
+				// rather than wait for the next periodic one
+				converter.requestKeyframe();
+				return;
+			}
+			System.arraycopy(packet.getPacket(), 0, copy.getPacket(), 0, packet.getLength());
+			copy.setPayloadLength(packet.getPayloadLength());
+			if (resuming) {
+				resume = copy;
+			}
+			queue.add(copy);
+			schedule();
+		}
+
+		private void schedule() {
+			if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+				MediaScheduler.getInstance().execute(this);
+			}
 		}
 
-		@Override
 		public void run() {
-			running = true;
-			while (running) {
-				try {
-					if (sipTransport.getSipUsersCount() > 0) {
-						RtpPacket packet = packetQueue.poll();
-						if (packet != null) {
-							mediaReceiver.setVideoReceivingEnabled(true);
-							for (RTMPPacketInfo packetInfo : converter.rtp2rtmp(packet, codec)) {
-								mediaReceiver.pushVideo(packetInfo.data, packetInfo.ts);
-							}
-						}
-					} else {
-						mediaReceiver.setVideoReceivingEnabled(false);
-						packetQueue.clear();
+			try {
+				RtpPacket packet;
+				for (int n = 0; n < BATCH_SIZE && running && (packet = queue.poll()) != null; n++) {
+					if (packet == resume) {
+						resume = null;
+						converter.resynchronize();
 					}
-					if (packetQueue.size() == 0) {
-						Thread.sleep(50);
+					convert(packet);
+					pool.add(packet);
+				}
+			} finally {
+				// what is left runs again behind the tasks queued meanwhile
+				scheduled.set(false);
+				if (running) {
+					schedule();
+				}
+			}
+		}
+
+		private void convert(RtpPacket packet) {
+			try {
+				if (sipTransport.getSipUsersCount() > 0) {
+					mediaReceiver.setVideoReceivingEnabled(true);
+					for (RTMPPacketInfo packetInfo : converter.rtp2rtmp(packet, codec)) {
+						mediaReceiver.pushVideo(packetInfo.data, packetInfo.ts);
 					}
-				} catch (Exception e) {
-					log.error("", e);
+				} else {
+					mediaReceiver.setVideoReceivingEnabled(false);
 				}
+			} catch (Exception e) {
+				log.error("", e);
 			}
 		}
 
-		@Override
-		public void interrupt() {
+		public void stop() {
 			running = false;
-			packetQueue.clear();
 		}
 	}
 }
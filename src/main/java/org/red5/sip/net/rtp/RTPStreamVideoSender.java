@@ -2,6 +2,7 @@ package org.red5.sip.net.rtp;
 
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.red5.codecs.SIPCodec;
 import org.red5.sip.app.IMediaReceiver;
@@ -10,24 +11,40 @@ import org.red5.sip.app.IMediaStream;
 import org.red5.sip.app.SIPTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zoolu.tools.Random;
 
 import local.net.RtpPacket;
 import local.net.RtpSocket;
 
+/**
+ * Sends the H.264 video of the room to SIP under a single SSRC, whichever stream it comes from. The last
+ * {@link #RETRANSMISSION_CACHE_SIZE} packets are kept to be sent again when the other side reports them lost by RTCP.
+ */
 public class RTPStreamVideoSender implements IMediaSender {
 
 	private static Logger log = LoggerFactory.getLogger(RTPStreamVideoSender.class);
+	/** Packets kept for retransmission, about a second of video. */
+	private static final int RETRANSMISSION_CACHE_SIZE = 512;
+	private static final int MAX_PACKET_SIZE = 2048;
 	private SIPCodec codec;
 	private SIPTransport sipTransport;
 	private IMediaReceiver mediaReceiver;
 	private RtpSocket rtpSocket;
 	private int seqn = 0;
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong retransmissions = new AtomicLong();
+	private final long ssrc = Random.nextLong() & 0xffffffffL;
+	private final RTPSendStatistics statistics;
+	private final RtpPacket[] sentPackets = new RtpPacket[RETRANSMISSION_CACHE_SIZE];
 	
 	public RTPStreamVideoSender(SIPTransport sipTransport, IMediaReceiver mediaReceiver, SIPCodec codec, 
 			DatagramSocket srcSocket, String destAddr, int destPort) {
 		this.codec = codec;
 		this.sipTransport = sipTransport;
 		this.mediaReceiver = mediaReceiver;
+		this.statistics = new RTPSendStatistics(codec.getSampleRate());
+		statistics.setSsrc(ssrc);
 		
 		try {
 			rtpSocket = new RtpSocket(srcSocket, InetAddress.getByName(destAddr), destPort);
@@ -55,19 +72,78 @@ public class RTPStreamVideoSender implements IMediaSender {
 		rtpSocket = null;
 	}
 	
+	/** Number of RTP packets sent. */
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
+
+	/** Number of RTP packets dropped because the send buffer of the socket was full. */
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	/** Number of RTP packets sent again after a NACK. */
+	public long getRetransmissions() {
+		return retransmissions.get();
+	}
+
+	/** Statistics of the RTP packets sent, for RTCP. */
+	public RTPSendStatistics getStatistics() {
+		return statistics;
+	}
+
 	public void send(RtpPacket packet) {
 		if (rtpSocket == null) {
 			return;
 		}
+		packet.setSscr(ssrc);
 		packet.setSequenceNumber(seqn++);
+		if (rtpSocketSend(packet)) {
+			statistics.onPacketSent(packet.getTimestamp(), packet.getPayloadLength());
+		}
+		// a packet dropped by the socket can still be sent again on a NACK
+		keep(packet);
+	}
+
+	/**
+	 * Sends the packet <code>sequence</code> again, as it was sent (RTX is not negotiated).
+	 * 
+	 * @return false if the packet is no longer kept
+	 */
+	public synchronized boolean retransmit(int sequence) {
+		RtpPacket packet = sentPackets[sequence % RETRANSMISSION_CACHE_SIZE];
+		if (rtpSocket == null || packet == null || packet.getSequenceNumber() != sequence) {
+			return false;
+		}
 		rtpSocketSend(packet);
+		retransmissions.incrementAndGet();
+		return true;
+	}
+
+	/** Copies a sent packet into the retransmission cache. */
+	private synchronized void keep(RtpPacket packet) {
+		int index = packet.getSequenceNumber() % RETRANSMISSION_CACHE_SIZE;
+		RtpPacket copy = sentPackets[index];
+		if (copy == null) {
+			copy = new RtpPacket(new byte[MAX_PACKET_SIZE], 0);
+			sentPackets[index] = copy;
+		}
+		int length = Math.min(packet.getLength(), MAX_PACKET_SIZE);
+		System.arraycopy(packet.getPacket(), 0, copy.getPacket(), 0, length);
+		copy.setPayloadLength(length - packet.getHeaderLength());
 	}
 	
-	private synchronized void rtpSocketSend(RtpPacket rtpPacket) {
+	private synchronized boolean rtpSocketSend(RtpPacket rtpPacket) {
 		try {
-			rtpSocket.send(rtpPacket);
+			if (!rtpSocket.send(rtpPacket)) {
+				packetsDropped.incrementAndGet();
+				return false;
+			}
+			packetsSent.incrementAndGet();
+			return true;
 		} catch (Exception e) {
 			log.error("", e);
+			return false;
 		}
 	}
 
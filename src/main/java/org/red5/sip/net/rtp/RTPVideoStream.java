@@ -1,7 +1,6 @@
 package org.red5.sip.net.rtp;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 import local.net.RtpPacket;
 
@@ -10,6 +9,7 @@ import org.red5.sip.app.IMediaReceiver;
 import org.red5.sip.app.IMediaStream;
 import org.red5.sip.app.SIPTransport;
 import org.red5.sip.app.SIPVideoConverter;
+import org.red5.sip.util.MediaScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,7 +21,7 @@ public class RTPVideoStream implements IMediaStream {
 	private SIPCodec codec;
 	private SIPTransport sipTransport;
 	private boolean running;
-	private ConverterThread converterThread;
+	private Executor executor;
 	private IMediaReceiver mediaReceiver;
 	
 	public RTPVideoStream(SIPTransport sipTransport, IMediaReceiver mediaReceiver, RTPStreamVideoSender sender, SIPCodec codec) {
@@ -30,8 +30,7 @@ public class RTPVideoStream implements IMediaStream {
 		this.sipTransport = sipTransport;
 		this.mediaReceiver = mediaReceiver;
 		converter = new SIPVideoConverter(sipTransport);
-		converterThread = new ConverterThread();
-		converterThread.start();
+		executor = MediaScheduler.getInstance().newSerialExecutor();
 		running = true;
 	}
 	
@@ -40,7 +39,32 @@ public class RTPVideoStream implements IMediaStream {
 		if (!running) {
 			throw new IllegalStateException("Stream is not started");
 		}
-		converterThread.addData(data, timestamp);
+		final long ts = timestamp;
+		final byte[] frame = data;
+		executor.execute(new Runnable() {
+			public void run() {
+				convert(ts, frame);
+			}
+		});
+	}
+
+	/**
+	 * Starts the conversion over, when the video sent to SIP switches to this stream: the converter is reset, then
+	 * given <code>sequenceHeader</code>, the AVC configuration of the stream, if not null. Runs on the conversion thread,
+	 * before the frames sent next.
+	 */
+	public void restart(final long timestamp, final byte[] sequenceHeader) {
+		if (!running) {
+			throw new IllegalStateException("Stream is not started");
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				converter.resetConverter();
+				if (sequenceHeader != null) {
+					convert(timestamp, sequenceHeader);
+				}
+			}
+		});
 	}
 
 	@Override
@@ -52,58 +76,22 @@ public class RTPVideoStream implements IMediaStream {
 		return converter;
 	}
 
-	private class ConverterThread extends Thread {
-
-		private Queue<QueueItem> queue;
-		
-		public ConverterThread() {
-			queue = new ConcurrentLinkedQueue<QueueItem>();
-		}
-		
-		public void addData(byte[] data, long ts) {
-			queue.add(new QueueItem(ts, data));
+	private void convert(long ts, byte[] data) {
+		if (!running) {
+			return;
 		}
-		
-		@Override
-		public void run() {
-			while (running) {
-				try {
-					if (sipTransport.getSipUsersCount() > 0 && mediaReceiver.isVideoReceivingEnabled()) {
-						QueueItem item = queue.poll();
-						if (item != null) {
-							if (log.isTraceEnabled()) {
-								log.trace("+++ Video - ts: {} length: {} data: {}", item.ts, item.data.length, item.data);
-							}
-							for (RtpPacket packet: converter.rtmp2rtp(item.data, item.ts, codec)) {
-								sender.send(packet);
-							}
-						}
-					} else {
-						queue.clear();
-					}
-					
-					if (queue.size() == 0) {
-						Thread.sleep(50);
-					}
-				} catch (Exception e) {
-					log.error("", e);
+		try {
+			if (sipTransport.getSipUsersCount() > 0 && mediaReceiver.isVideoReceivingEnabled()) {
+				if (log.isTraceEnabled()) {
+					log.trace("+++ Video - ts: {} length: {} data: {}", ts, data.length, data);
+				}
+				for (RtpPacket packet: converter.rtmp2rtp(data, ts, codec)) {
+					sender.send(packet);
 				}
 			}
+		} catch (Exception e) {
+			log.error("", e);
 		}
-		
-		private class QueueItem {
-			
-			public final long ts;
-			public final byte[] data;
-			
-			public QueueItem(long ts, byte[] data) {
-				super();
-				this.ts = ts;
-				this.data = data;
-			}
-			
-		}
-		
 	}
 	
 }
@@ -0,0 +1,45 @@
+package org.red5.sip.util;
+
+import com.laszlosystems.libresample4j.SampleBuffers;
+
+/**
+ * Reusable array backed {@link SampleBuffers}. The array variant of <code>Resampler.process</code> wraps its arguments
+ * in new buffers and a result object on every call; keeping one instance of this class per resampler and re-pointing it
+ * with {@link #set} resamples a frame without allocating.
+ */
+public class ArraySampleBuffers implements SampleBuffers {
+	private float[] in;
+	private int inOffset;
+	private int inEnd;
+	private float[] out;
+	private int outOffset;
+	private int outEnd;
+
+	public ArraySampleBuffers set(float[] in, int inOffset, int inLength, float[] out, int outOffset, int outLength) {
+		this.in = in;
+		this.inOffset = inOffset;
+		this.inEnd = inOffset + inLength;
+		this.out = out;
+		this.outOffset = outOffset;
+		this.outEnd = outOffset + outLength;
+		return this;
+	}
+
+	public int getInputBufferLength() {
+		return inEnd - inOffset;
+	}
+
+	public int getOutputBufferLength() {
+		return outEnd - outOffset;
+	}
+
+	public void produceInput(float[] array, int offset, int length) {
+		System.arraycopy(in, inOffset, array, offset, length);
+		inOffset += length;
+	}
+
+	public void consumeOutput(float[] array, int offset, int length) {
+		System.arraycopy(array, offset, out, outOffset, length);
+		outOffset += length;
+	}
+}
@@ -1,86 +1,128 @@
 package org.red5.sip.util;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Lock-free single-producer/single-consumer ring of fixed size frames. All frames live in one preallocated slab.
+ * {@link #push} must only be called from one thread and {@link #take} (and {@link #clean}) from another one, which
+ * lets the RTP/RTMP I/O threads hand frames to the pacing ticks without locking. When the ring is full the oldest frame
+ * is dropped to make room for the new one.
+ */
 public class BytesBuffer {
 	private static Logger log = LoggerFactory.getLogger(BytesBuffer.class);
 	public static final float READY = .05f;
-	
+
 	private final int buffersCount;
 	private final int arrayLength;
-	private byte[][] buffer;
-	private int[] bufLen;
-	private int start, end;
+	private final byte[] slab;
+	private final int[] bufLen;
+
+	/** Index of the next frame to take. Moved by the consumer, and by the producer when it drops the oldest frame. */
+	private final PaddedAtomicLong head = new PaddedAtomicLong();
+	/** Index of the next frame to push. Only moved by the producer. */
+	private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong underruns = new AtomicLong();
 
 	public BytesBuffer(int arrayLength, int buffersCount) {
 		this.buffersCount = buffersCount;
 		this.arrayLength = arrayLength;
-		this.buffer = new byte[buffersCount][arrayLength];
+		this.slab = new byte[buffersCount * arrayLength];
 		this.bufLen = new int[buffersCount];
-		clean();
 	}
 
+	/** Called by the producer after the oldest frame has been dropped to make room. */
 	protected void onBufferOverflow() {
-		log.debug("onBufferOverflow:: start: {} end: {} buffersCount: {}", start, end, buffersCount);
-		clean();
+		log.debug("onBufferOverflow:: buffersCount: {} overflows: {}", buffersCount, overflows.get());
 	}
 
+	/** Called by the consumer when it takes the last frame of the ring. */
 	protected void onBufferEmpty() {
-		log.debug("onBufferEmpty:: start: {} end: {} buffersCount: {}", start, end, buffersCount);
+		log.debug("onBufferEmpty:: buffersCount: {}", buffersCount);
 	}
 
+	/** Drops every buffered frame. Consumer side only. */
 	public void clean() {
-		end = 0;
-		start = -1;
+		long h;
+		do {
+			h = head.get();
+		} while (!head.compareAndSet(h, Math.max(h, tail.get())));
 	}
 
 	public int available() {
-        if(start >= 0) {
-		    return (end > start) ? (end - start) : (buffersCount - start + end);
-        } else {
-            return 0;
-        }
+		long t = tail.get();
+		long n = t - head.get();
+		return n <= 0 ? 0 : (int) Math.min(n, buffersCount);
 	}
 
+	/** Fraction of the ring in use; wait-free, may be called from any thread. */
 	public float bufferUsage() {
 		return available() * 1.0f / buffersCount;
 	}
 
+	/** Number of frames dropped because the ring was full. */
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	/** Number of {@link #take} calls that found the ring empty. */
+	public long getUnderruns() {
+		return underruns.get();
+	}
+
 	public void push(byte[] array, int offset, int length) {
-		log.trace("push:: start: {} end: {} offset: {} length: {} arr.length: {}", start, end, offset, length, array.length);
-		if (end == start) {
-			onBufferOverflow();
-		}
 		if (arrayLength < length) {
 			throw new IllegalArgumentException("Array length too much: " + length);
 		}
-		System.arraycopy(array, offset, buffer[end], 0, length);
-		bufLen[end++] = length;
-		if (end == buffersCount) {
-			end = 0;
+		long t = tail.get();
+		long h = head.get();
+		boolean dropped = false;
+		while (t - h >= buffersCount) {
+			if (head.compareAndSet(h, h + 1)) {
+				dropped = true;
+				break;
+			}
+			h = head.get();
 		}
-		if (start == -1) {
-			start = 0;
+		int slot = (int) (t % buffersCount);
+		System.arraycopy(array, offset, slab, slot * arrayLength, length);
+		bufLen[slot] = length;
+		tail.lazySet(t + 1);
+		if (dropped) {
+			overflows.incrementAndGet();
+			onBufferOverflow();
 		}
-		log.trace("push:: start: {} end: {}", start, end);
 	}
 
 	public int take(byte[] dst, int offset) {
-		log.trace("take:: start: {} end: {} offset: {} arr.length: {}", start, end, offset, dst.length);
-		int res = -1;
-		if (start >= 0) {
-			System.arraycopy(buffer[start], 0, dst, offset, Math.min(bufLen[start], dst.length - offset));
-			res = bufLen[start++];
-			if (start == buffersCount) {
-				start = 0;
+		while (true) {
+			long h = head.get();
+			long t = tail.get();
+			if (h >= t) {
+				underruns.incrementAndGet();
+				return -1;
 			}
-			if (start == end) {
-				clean();
-				onBufferEmpty();
+			int slot = (int) (h % buffersCount);
+			int res = bufLen[slot];
+			System.arraycopy(slab, slot * arrayLength, dst, offset, Math.min(res, dst.length - offset));
+			// the producer may have dropped this frame and reused its slot while it was copied
+			if (head.compareAndSet(h, h + 1)) {
+				if (tail.get() == h + 1) {
+					onBufferEmpty();
+				}
+				return res;
 			}
 		}
-		log.trace("take:: start: {} end: {} ", start, end);
-		return res;
+	}
+
+	/** Keeps the head and tail counters on separate cache lines. */
+	@SuppressWarnings("unused")
+	private static class PaddedAtomicLong extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+		private long p1, p2, p3, p4, p5, p6, p7;
 	}
 }
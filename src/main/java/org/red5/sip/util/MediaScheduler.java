@@ -0,0 +1,140 @@
+package org.red5.sip.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared scheduler for the media pipeline. A fixed pool of workers (one per core) drives the periodic ticks of all
+ * rooms (mixing, RTP to RTMP pacing, RTMP updates, registrations) instead of every component owning a sleeping
+ * thread. Tasks must not block: they are expected to do one tick of work and return.
+ */
+public class MediaScheduler {
+	private static final Logger log = LoggerFactory.getLogger(MediaScheduler.class);
+
+	/** Tasks a serial executor runs in a row before giving its worker back to the other tasks. */
+	private static final int SERIAL_BATCH_SIZE = 16;
+
+	private static MediaScheduler instance = new MediaScheduler(Runtime.getRuntime().availableProcessors());
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	public static MediaScheduler getInstance() {
+		return instance;
+	}
+
+	public MediaScheduler(int workers) {
+		executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MediaScheduler worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MAX_PRIORITY);
+				return t;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Runs <code>task</code> every <code>periodMs</code> milliseconds. Ticks are scheduled against absolute time, so a
+	 * late tick does not shift the following ones. An exception thrown by the task is logged and does not cancel it.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMs) {
+		return executor.scheduleAtFixedRate(new SafeTask(task), periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs <code>task</code> with <code>delayMs</code> milliseconds between the end of one run and the start of the
+	 * next one. An exception thrown by the task is logged and does not cancel it.
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelayMs, long delayMs) {
+		return executor.scheduleWithFixedDelay(new SafeTask(task), initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/** Runs <code>task</code> once, <code>delayMs</code> milliseconds from now. */
+	public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+		return executor.schedule(new SafeTask(task), delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/** Runs <code>task</code> once on the shared workers. */
+	public void execute(Runnable task) {
+		executor.execute(new SafeTask(task));
+	}
+
+	/**
+	 * Creates an executor that runs its tasks one at a time, in submission order, on the shared workers. It replaces a
+	 * dedicated consumer thread polling a queue. A long queue is run in batches, so that it does not hold a worker the
+	 * periodic ticks are waiting for.
+	 */
+	public Executor newSerialExecutor() {
+		return new SerialExecutor();
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	private static class SafeTask implements Runnable {
+		private final Runnable task;
+
+		SafeTask(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Media task failed", t);
+			}
+		}
+	}
+
+	private class SerialExecutor implements Executor, Runnable {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+				executor.execute(this);
+			}
+		}
+
+		public void run() {
+			try {
+				Runnable task;
+				for (int n = 0; n < SERIAL_BATCH_SIZE && (task = tasks.poll()) != null; n++) {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						log.error("Media task failed", t);
+					}
+				}
+			} finally {
+				// what is left runs again behind the tasks queued meanwhile
+				scheduled.set(false);
+				schedule();
+			}
+		}
+	}
+}
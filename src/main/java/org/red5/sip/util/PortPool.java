@@ -0,0 +1,178 @@
+package org.red5.sip.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of local ports. Ports are handed out least recently released first, so a port freed by a closed room
+ * is the last one to be reused. With a step of 2 only even ports are allocated and the odd port above each one stays
+ * free for RTCP.
+ * <p>
+ * UDP channels bound by {@link #bind(int)} are not closed by {@link #unbind(int, DatagramChannel)} but kept for the next
+ * user of the same port, so room churn does not re-bind sockets.
+ */
+public class PortPool {
+	private static final Logger log = LoggerFactory.getLogger(PortPool.class);
+
+	private static final Map<Integer, DatagramChannel> idleChannels = new HashMap<Integer, DatagramChannel>();
+	/** Receives the datagrams discarded by {@link #drain(DatagramChannel)}; guarded by itself. */
+	private static final ByteBuffer drainBuffer = ByteBuffer.allocate(2048);
+
+	private final String name;
+	private final int minPort;
+	private final int maxPort;
+	private final Deque<Integer> free = new ArrayDeque<Integer>();
+	private int inUse = 0;
+
+	/**
+	 * @param name
+	 *            used in logs
+	 * @param minPort
+	 *            first port of the range (inclusive)
+	 * @param maxPort
+	 *            last port of the range (inclusive)
+	 * @param step
+	 *            distance between two allocated ports, 2 for RTP/RTCP pairs
+	 */
+	public PortPool(String name, int minPort, int maxPort, int step) {
+		if (minPort <= 0 || maxPort > 65535 || maxPort < minPort || step < 1) {
+			throw new IllegalArgumentException("Invalid " + name + " port range " + minPort + "-" + maxPort);
+		}
+		this.name = name;
+		this.minPort = minPort;
+		this.maxPort = maxPort;
+		for (int port = minPort; port + step - 1 <= maxPort; port += step) {
+			free.add(port);
+		}
+		log.info("{} ports: {}-{}, {} available", name, minPort, maxPort, free.size());
+	}
+
+	/**
+	 * Parses a <code>min-max</code> range, falling back to <code>defaultMin</code> and
+	 * <code>defaultMin + defaultCount * step - 1</code>.
+	 */
+	public static PortPool parse(String name, String range, int defaultMin, int defaultCount, int step) {
+		int min = defaultMin;
+		int max = defaultMin + defaultCount * step - 1;
+		if (range != null && range.trim().length() > 0) {
+			try {
+				String[] bounds = range.trim().split("-");
+				min = Integer.parseInt(bounds[0].trim());
+				max = Integer.parseInt(bounds[1].trim());
+			} catch (RuntimeException e) {
+				log.error("Can't parse " + name + " port range \"" + range + "\", using " + min + "-" + max, e);
+			}
+		}
+		return new PortPool(name, min, max, step);
+	}
+
+	/**
+	 * @return a free port
+	 * @throws IllegalStateException
+	 *             when every port of the range is in use
+	 */
+	public synchronized int acquire() {
+		Integer port = free.pollFirst();
+		if (port == null) {
+			throw new IllegalStateException("No free " + name + " port in " + minPort + "-" + maxPort + " (" + inUse
+					+ " in use)");
+		}
+		inUse++;
+		return port;
+	}
+
+	public synchronized void release(int port) {
+		if (port < minPort || port > maxPort || free.contains(port)) {
+			log.warn("Ignoring release of {} port {}", name, port);
+			return;
+		}
+		inUse--;
+		free.addLast(port);
+	}
+
+	public synchronized int getInUse() {
+		return inUse;
+	}
+
+	public synchronized int getAvailable() {
+		return free.size();
+	}
+
+	/** Returns a UDP channel bound to <code>port</code>, reusing the one kept by a previous user of the port. */
+	public static DatagramChannel bind(int port) throws IOException {
+		DatagramChannel channel;
+		synchronized (idleChannels) {
+			channel = idleChannels.remove(port);
+		}
+		if (channel != null && channel.isOpen()) {
+			drain(channel);
+			return channel;
+		}
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(port));
+		return channel;
+	}
+
+	/** Hands back a channel obtained from {@link #bind(int)}; it stays bound for the next user of the port. */
+	public static void unbind(int port, DatagramChannel channel) {
+		if (channel == null || !channel.isOpen()) {
+			return;
+		}
+		DatagramChannel previous;
+		synchronized (idleChannels) {
+			previous = idleChannels.put(port, channel);
+		}
+		if (previous != null && previous != channel) {
+			close(previous);
+		}
+	}
+
+	/** Closes every idle channel, on shutdown. */
+	public static void closeIdleChannels() {
+		synchronized (idleChannels) {
+			for (DatagramChannel channel : idleChannels.values()) {
+				close(channel);
+			}
+			idleChannels.clear();
+		}
+	}
+
+	/** Discards datagrams left over from the previous user of the channel. */
+	private static void drain(DatagramChannel channel) throws IOException {
+		synchronized (channel.blockingLock()) {
+			boolean blocking = channel.isBlocking();
+			if (blocking && channel.isRegistered()) {
+				return;
+			}
+			if (blocking) {
+				channel.configureBlocking(false);
+			}
+			synchronized (drainBuffer) {
+				drainBuffer.clear();
+				while (channel.receive(drainBuffer) != null) {
+					drainBuffer.clear();
+				}
+			}
+			if (blocking) {
+				channel.configureBlocking(true);
+			}
+		}
+	}
+
+	private static void close(DatagramChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Closing idle channel failed", e);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.net;
+
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/** NioSelector serves the non-blocking I/O of many channels from a single thread.
+  * <p> Each channel is registered together with a NioSelectorListener, that is fired
+  * by the selector thread each time the channel is ready.
+  * Registrations and changes of interest operations requested by other threads
+  * are queued and run by the selector thread before the next selection.
+  */
+public class NioSelector extends Thread
+{
+   /** Logger */
+   private static final Logger log=LoggerFactory.getLogger(NioSelector.class);
+
+   /** The selector shared by default */
+   static NioSelector default_selector=null;
+
+   /** The Selector */
+   Selector selector;
+
+   /** Tasks to be run by the selector thread */
+   Queue<Runnable> tasks;
+
+   /** Whether it has been halted */
+   volatile boolean stop;
+
+
+   /** Gets the selector shared by default, starting it if needed */
+   public static synchronized NioSelector getDefaultSelector() throws IOException
+   {  if (default_selector==null || !default_selector.isAlive()) default_selector=new NioSelector("NioSelector");
+      return default_selector;
+   }
+
+
+   /** Costructs and starts a new NioSelector */
+   public NioSelector(String name) throws IOException
+   {  super(name);
+      selector=Selector.open();
+      tasks=new ConcurrentLinkedQueue<Runnable>();
+      stop=false;
+      setDaemon(true);
+      start();
+   }
+
+
+   /** Runs <i>task</i> in the selector thread */
+   public void execute(Runnable task)
+   {  tasks.add(task);
+      if (Thread.currentThread()!=this) selector.wakeup();
+   }
+
+
+   /** Registers <i>channel</i> for the <i>ops</i> interest operations.
+     * The channel is set non-blocking. */
+   public void register(final SelectableChannel channel, final int ops, final NioSelectorListener listener) throws IOException
+   {  channel.configureBlocking(false);
+      execute(new Runnable()
+      {  public void run()
+         {  try
+            {  channel.register(selector,ops,listener);
+            }
+            catch (ClosedChannelException e)
+            {  log.debug("Channel closed before registration");
+            }
+         }
+      });
+   }
+
+
+   /** Changes the interest operations of <i>channel</i> */
+   public void setInterestOps(final SelectableChannel channel, final int ops)
+   {  if (Thread.currentThread()==this)
+      {  setInterestOps(channel.keyFor(selector),ops);
+         return;
+      }
+      // else
+      execute(new Runnable()
+      {  public void run()
+         {  setInterestOps(channel.keyFor(selector),ops);
+         }
+      });
+   }
+
+
+   /** Gets the number of registered channels */
+   public int getChannelCount()
+   {  return selector.keys().size();
+   }
+
+
+   /** Stops running */
+   public void halt()
+   {  stop=true;
+      selector.wakeup();
+   }
+
+
+   /** Runs the selector */
+   public void run()
+   {  while (!stop)
+      {  try
+         {  runTasks();
+            selector.select();
+            Iterator<SelectionKey> i=selector.selectedKeys().iterator();
+            while (i.hasNext())
+            {  SelectionKey key=i.next();
+               i.remove();
+               if (!key.isValid()) continue;
+               // else
+               try
+               {  ((NioSelectorListener)key.attachment()).onSelected(this,key);
+               }
+               catch (Exception e)
+               {  log.error("Selector listener failed",e);
+               }
+            }
+         }
+         catch (Throwable t)
+         {  log.error("Selector loop failed",t);
+         }
+      }
+      try {  selector.close();  } catch (IOException e) {}
+   }
+
+
+   /** Runs the queued tasks */
+   private void runTasks()
+   {  Runnable task;
+      while ((task=tasks.poll())!=null)
+      {  try
+         {  task.run();
+         }
+         catch (Exception e)
+         {  log.error("Selector task failed",e);
+         }
+      }
+   }
+
+
+   /** Changes the interest operations of <i>key</i>, if still valid */
+   private static void setInterestOps(SelectionKey key, int ops)
+   {  if (key!=null && key.isValid()) key.interestOps(ops);
+   }
+
+
+   /** Gets a String representation of the Object */
+   public String toString()
+   {  return getName()+"["+selector.keys().size()+" channels]";
+   }
+}
@@ -112,7 +112,12 @@ public class Call implements InviteDialogListener {
 	/** Waits for an incoming call */
 	public void listen() {
 		dialog = new InviteDialog(sip_provider, this);
-		dialog.listen();
+		if (sip_provider.isUserRouting() && contact_url != null) {
+			// shared provider: only capture the INVITEs addressed to our contact user
+			dialog.listen(new NameAddress(contact_url).getAddress().getUserName());
+		} else {
+			dialog.listen();
+		}
 	}
 
 	/** Starts a new call, inviting a remote user (<i>callee</i>) */
@@ -115,12 +115,12 @@ public abstract class Dialog extends DialogInfo implements SipProviderListener {
 
 		// remove the sip_provider listener when going to "terminated" state
 		if (isTerminated()) {
-			if (dialog_id != null && sip_provider.getListeners().containsKey(dialog_id))
+			if (dialog_id != null && sip_provider.hasListener(dialog_id))
 				sip_provider.removeSipProviderListener(dialog_id);
 		} else
 		// add sip_provider listener when going to "early" or "confirmed" state
 		if (isEarly() || isConfirmed()) {
-			if (dialog_id != null && !sip_provider.getListeners().containsKey(dialog_id))
+			if (dialog_id != null && !sip_provider.hasListener(dialog_id))
 				sip_provider.addSipProviderListener(dialog_id, this);
 		}
 	}
@@ -240,7 +240,7 @@ public abstract class Dialog extends DialogInfo implements SipProviderListener {
 		// update dialog_id and sip_provider listener
 		DialogIdentifier new_id = new DialogIdentifier(call_id, local_tag, remote_tag);
 		if (dialog_id == null || !dialog_id.equals(new_id)) {
-			if (dialog_id != null && sip_provider != null && sip_provider.getListeners().containsKey(dialog_id))
+			if (dialog_id != null && sip_provider != null && sip_provider.hasListener(dialog_id))
 				sip_provider.removeSipProviderListener(dialog_id);
 			dialog_id = new_id;
 			log.error("new dialog id: " + dialog_id);
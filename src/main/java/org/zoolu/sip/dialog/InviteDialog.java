@@ -194,12 +194,22 @@ public class InviteDialog extends Dialog implements TransactionClientListener, I
 
 	/** Starts a new InviteTransactionServer. */
 	public void listen() {
+		listen(null);
+	}
+
+	/**
+	 * Waits for an incoming INVITE addressed to <i>user</i>; if <i>user</i> is null any incoming INVITE is captured.
+	 */
+	public void listen(String user) {
 		if (!statusIs(D_INIT))
 			return;
 		// else
 		changeStatus(D_WAITING);
 		invite_ts = new InviteTransactionServer(sip_provider, this);
-		invite_ts.listen();
+		if (user != null)
+			invite_ts.listen(user);
+		else
+			invite_ts.listen();
 	}
 
 	/**
@@ -24,6 +24,7 @@
 package org.zoolu.sip.message;
 
 
+import java.nio.charset.Charset;
 import java.util.Vector;
 
 import org.zoolu.net.UdpPacket;
@@ -98,6 +99,55 @@ public abstract class BaseMessage
    /** The message string */
    private String message;
 
+   /** Header index of <i>message</i>, built on first use (a new one is built when the message changes) */
+   private HeaderIndex header_index=null;
+
+   /** Gets the header index of the current message string */
+   private HeaderIndex index()
+   {  HeaderIndex idx=header_index;
+      if (idx==null || idx.str!=message)
+      {  idx=new HeaderIndex(message);
+         header_index=idx;
+      }
+      return idx;
+   }
+
+   /** Charset of the encoded messages */
+   private static final Charset UTF_8=Charset.forName("UTF-8");
+
+   /** A message string and its encoded form */
+   private static final class Encoded
+   {  final String str;
+      final byte[] bytes;
+      Encoded(String str, byte[] bytes) {  this.str=str; this.bytes=bytes;  }
+   }
+
+   /** Encoded form of the message, computed on first send */
+   private Encoded encoded=null;
+
+   /** Header index the cached identifiers were computed from */
+   private HeaderIndex ids_index=null;
+
+   /** Cached TransactionIdentifier */
+   private TransactionIdentifier transaction_id=null;
+
+   /** Cached DialogIdentifier */
+   private DialogIdentifier dialog_id=null;
+
+   /** Cached MethodIdentifier */
+   private MethodIdentifier method_id=null;
+
+   /** Drops the cached identifiers if the message has changed since they were computed */
+   private void checkIds()
+   {  HeaderIndex idx=index();
+      if (ids_index!=idx)
+      {  transaction_id=null;
+         dialog_id=null;
+         method_id=null;
+         ids_index=idx;
+      }
+   }
+
 
    /** Inits empty Message */
    private void init()
@@ -117,13 +167,13 @@ public abstract class BaseMessage
    /** Costructs a new Message */
    public BaseMessage(byte[] data, int offset, int len)
    {  init();
-      message=new String(data,offset,len);
+      message=new String(data,offset,len,UTF_8);
    }
    
    /** Costructs a new Message */
    public BaseMessage(UdpPacket packet)
    {  init();
-      message=new String(packet.getData(),packet.getOffset(),packet.getLength());
+      message=new String(packet.getData(),packet.getOffset(),packet.getLength(),UTF_8);
    }
 
    /** Costructs a new Message */
@@ -136,6 +186,12 @@ public abstract class BaseMessage
    public BaseMessage(BaseMessage msg)
    {  //message=new String(msg.message);
       message=msg.message;
+      header_index=msg.header_index;
+      encoded=msg.encoded;
+      ids_index=msg.ids_index;
+      transaction_id=msg.transaction_id;
+      dialog_id=msg.dialog_id;
+      method_id=msg.method_id;
       remote_addr=msg.remote_addr;
       remote_port=msg.remote_port;
       transport_proto=msg.transport_proto;
@@ -157,6 +213,20 @@ public abstract class BaseMessage
    public String toString()
    {  return message;
    }
+
+   /** Gets the message encoded as UTF-8, ready to be sent.
+     * The bytes are kept until the message changes, so that retransmissions
+     * send the very same bytes without encoding the message again;
+     * the returned array must not be modified. */
+   public byte[] getBytes()
+   {  String str=message;
+      Encoded e=encoded;
+      if (e==null || (e.str!=str && !e.str.equals(str)))
+      {  e=new Encoded(str,str.getBytes(UTF_8));
+         encoded=e;
+      }
+      return e.bytes;
+   }
    
    /** Gets remote ip address */
    public String getRemoteAddress()
@@ -205,32 +275,41 @@ public abstract class BaseMessage
    
    /** Gets the inique DialogIdentifier for an INCOMING message */
    public DialogIdentifier getDialogId()
-   {  String call_id=getCallIdHeader().getCallId();
-      String local_tag, remote_tag;
-      if (isRequest()) {  local_tag=getToHeader().getTag(); remote_tag=getFromHeader().getTag(); }
-      else {  local_tag=getFromHeader().getTag(); remote_tag=getToHeader().getTag(); }
-      return new DialogIdentifier(call_id,local_tag,remote_tag);
+   {  checkIds();
+      if (dialog_id==null)
+      {  String call_id=getCallIdHeader().getCallId();
+         String local_tag, remote_tag;
+         if (isRequest()) {  local_tag=getToHeader().getTag(); remote_tag=getFromHeader().getTag(); }
+         else {  local_tag=getFromHeader().getTag(); remote_tag=getToHeader().getTag(); }
+         dialog_id=new DialogIdentifier(call_id,local_tag,remote_tag);
+      }
+      return dialog_id;
    }
 
 
    /** Gets the inique TransactionIdentifier */
    public TransactionIdentifier getTransactionId()
-   {  String call_id=getCallIdHeader().getCallId();
-      ViaHeader top_via=getViaHeader();
-      String branch=null;
-      if (top_via.hasBranch()) branch=top_via.getBranch();
-      String sent_by=top_via.getSentBy();
-      CSeqHeader cseqh=getCSeqHeader();
-      long seqn=cseqh.getSequenceNumber();      
-      String method=cseqh.getMethod();
-      return new TransactionIdentifier(call_id,seqn,method,sent_by,branch);
+   {  checkIds();
+      if (transaction_id==null)
+      {  String call_id=getCallIdHeader().getCallId();
+         ViaHeader top_via=getViaHeader();
+         String branch=null;
+         if (top_via.hasBranch()) branch=top_via.getBranch();
+         String sent_by=top_via.getSentBy();
+         CSeqHeader cseqh=getCSeqHeader();
+         long seqn=cseqh.getSequenceNumber();
+         String method=cseqh.getMethod();
+         transaction_id=new TransactionIdentifier(call_id,seqn,method,sent_by,branch);
+      }
+      return transaction_id;
    }
 
 
    /** Gets the MethodIdentifier */
    public MethodIdentifier getMethodId()
-   {  String method=getCSeqHeader().getMethod();
-      return new MethodIdentifier(method);
+   {  checkIds();
+      if (method_id==null) method_id=new MethodIdentifier(getCSeqHeader().getMethod());
+      return method_id;
    }
 
 
@@ -239,15 +318,8 @@ public abstract class BaseMessage
    /** Whether Message is a Request */
    public boolean isRequest() throws NullPointerException
    {  // Req-Line = Method ' ' SIP-URL ' ' "SIP/2.0" CRLF
-      if (message==null || isResponse()) return false;
-      String firstline=(new SipParser(message)).getLine();
-      String version=(new SipParser(firstline)).skipString().skipString().getString();
-      if (version==null || version.length()<4) return false;
-      version=version.substring(0,4);     
-      String target="SIP/"; 
-      //if (version.compareToIgnoreCase(target)==0) return true; 
-      if (version.equalsIgnoreCase(target)) return true;
-      return false;
+      if (message==null) return false;
+      return index().request;
    }
    
    /** Whether Message is a <i>method</i> request */
@@ -403,29 +475,28 @@ public abstract class BaseMessage
    
    /** Removes Request\Status Line of the Message */
    protected void removeFirstLine()
-   {  message=message.substring((new SipParser(message)).indexOfNextHeader());
+   {  HeaderIndex idx=index();
+      if (idx.request || idx.response) message=message.substring(idx.headers_begin);
    }
      
    /** Whether Message has any headers of specified name */   
    public boolean hasHeader(String name)
-   {  Header hd=getHeader(name);
-      if (hd==null) return false;
-      else return true;
+   {  return index().indexOf(name,true)>=0;
    }
    
    /** Gets the first Header of specified name (Returns null if no Header is found) */
    public Header getHeader(String hname)
-   {  SipParser par=new SipParser(message);
-      return par.getHeader(hname);
+   {  HeaderIndex idx=index();
+      int i=idx.indexOf(hname,true);
+      return (i>=0)? idx.getHeader(i,hname) : null;
    }
 
    /** Gets a Vector of all Headers of specified name (Returns empty Vector if no Header is found) */
    public Vector<Header> getHeaders(String hname)
    {  Vector<Header> v=new Vector<Header>();
-      SipParser par=new SipParser(message);
-      Header h;
-      while ((h=par.getHeader(hname))!=null)
-      {  v.addElement(h);
+      HeaderIndex idx=index();
+      for (int i=0; i<idx.count; i++)
+      {  if (idx.isHeader(i,hname)) v.addElement(idx.getHeader(i,hname));
       }
       return v; 
    }
@@ -451,32 +522,20 @@ public abstract class BaseMessage
    /** Adds a one or more Headers at the top/bottom.
      * The bottom is considered before the Content-Length and Content-Type headers */
    protected void addHeaders(String str, boolean top) 
-   {  int i,aux;
-      if (top)
-      {  if (this.hasRequestLine() || this.hasStatusLine())
-         {  SipParser par=new SipParser(message);
-            par.goToNextHeader();
-            i=par.getPos();
-         }
-         else i=0;   
-      }
+   {  HeaderIndex idx=index();
+      int i;
+      if (top) i=idx.headers_begin;
       else
-      {  SipParser par=new SipParser(message);
-         // index the end of headers
-         i=par.goToEndOfLastHeader().goToNextLine().getPos();         
-         par=new SipParser(message);
+      {  // index the end of headers
+         i=idx.headers_end;
          // if Content_Length is present, jump before
-         aux=par.indexOfHeader(SipHeaders.Content_Length);
-         if (aux<i) i=aux;
+         int aux=idx.indexOf(SipHeaders.Content_Length,true);
+         if (aux>=0 && idx.begin[aux]<i) i=idx.begin[aux];
          // if Content_Type is present, jump before
-         aux=par.indexOfHeader(SipHeaders.Content_Type);
-         if (aux<i) i=aux; 
+         aux=idx.indexOf(SipHeaders.Content_Type,true);
+         if (aux>=0 && idx.begin[aux]<i) i=idx.begin[aux]; 
       }            
-      String head=message.substring(0,i);
-      String tail=message.substring(i);
-      String new_message=head.concat(str);
-      new_message=new_message.concat(tail);
-      message=new_message;
+      addHeaders(str,i);
    }
 
    /** Adds Headers on position <i>index</i> within the Message */
@@ -500,13 +559,10 @@ public abstract class BaseMessage
    /** Adds Headers before the first header <i>refer_header</i>
      * . <p>If there is no header of such type, they are added at top */
    protected void addHeadersBefore(String str, String refer_header) 
-   {  if (!hasHeader(refer_header)) addHeaders(str,true);
-      else
-      {  SipParser par=new SipParser(message);
-         par.goTo(refer_header);
-         int here=par.getPos();
-         message=message.substring(0,here)+str+message.substring(here);
-      }
+   {  HeaderIndex idx=index();
+      int i=idx.indexOf(refer_header,true);
+      if (i<0) addHeaders(str,true);
+      else addHeaders(str,idx.begin[i]);
    }
 
    /** Adds Header after the first header <i>refer_header</i>
@@ -524,13 +580,10 @@ public abstract class BaseMessage
    /** Adds Headers after the first header <i>refer_header</i>
      * . <p>If there is no header of such type, they are added at bottom */
    protected void addHeadersAfter(String str, String refer_header) 
-   {  if (!hasHeader(refer_header)) addHeaders(str,false);
-      else
-      {  SipParser par=new SipParser(message);
-         par.goTo(refer_header);
-         int here=par.indexOfNextHeader();
-         message=message.substring(0,here)+str+message.substring(here);
-      }
+   {  HeaderIndex idx=index();
+      int i=idx.indexOf(refer_header,true);
+      if (i<0) addHeaders(str,false);
+      else addHeaders(str,idx.next[i]);
    }
 
    /** Removes first Header of specified name */
@@ -540,21 +593,10 @@ public abstract class BaseMessage
 
    /** Removes first (or last) Header of specified name */
    public void removeHeader(String hname, boolean first)
-   {  String[] target={'\n'+hname, '\r'+hname};
-      SipParser par=new SipParser(message);
-      par.goTo(target);
-      if (!par.hasMore()) return;
-      if (!first)
-         while(true)
-         {  int next=par.indexOf(target);
-            if (next<0) break;
-            par.setPos(next);
-         }
-      par.skipChar();
-      String head=message.substring(0,par.getPos());
-      par.goToNextHeader();
-      String tail=message.substring(par.getPos());
-      message=head.concat(tail);
+   {  HeaderIndex idx=index();
+      int i=idx.indexOf(hname,first);
+      if (i<0) return;
+      message=message.substring(0,idx.begin[i]).concat(message.substring(idx.next[i]));
    }
    
    /** Sets the new Header (removing any previous headers of the same name) */
@@ -565,29 +607,32 @@ public abstract class BaseMessage
 
    /** Sets the Header <i>hd</i> removing any previous headers of the same type */
    public void setHeader(Header hd) 
-   {  String hname=hd.getName();
-      if (hasHeader(hname))
-      {  int index=(new SipParser(message)).indexOfHeader(hname);
-         removeAllHeaders(hname);
-         addHeaders(hd.toString(),index);
-      }
-      else
-         addHeader(hd,false);               
+   {  if (!replaceAllHeaders(hd.getName(),hd.toString())) addHeader(hd,false);               
    }          
 
    /** Removes all Headers of specified name */
    public void removeAllHeaders(String hname) 
-   {  String[] target={'\n'+hname, '\r'+hname};
-      SipParser par=new SipParser(message);
-      par.goTo(target);
-      while (par.hasMore())
-      {  par.skipChar();
-         String head=message.substring(0,par.getPos());
-         String tail=message.substring(par.indexOfNextHeader());
-         message=head.concat(tail);
-         par=new SipParser(message,par.getPos()-1);
-         par.goTo(target);
-      }         
+   {  replaceAllHeaders(hname,"");
+   }
+
+   /** Replaces all Headers of specified name with <i>str</i>, placed where the first one was, in one copy of the message.
+     * @return false (and leaves the message unchanged) if there is no such header */
+   private boolean replaceAllHeaders(String hname, String str) 
+   {  HeaderIndex idx=index();
+      int first=idx.indexOf(hname,true);
+      if (first<0) return false;
+      StringBuilder sb=new StringBuilder(message.length()+str.length());
+      sb.append(message,0,idx.begin[first]).append(str);
+      int pos=idx.next[first];
+      for (int i=first+1; i<idx.count; i++)
+      {  if (idx.isHeader(i,hname))
+         {  sb.append(message,pos,idx.begin[i]);
+            pos=idx.next[i];
+         }
+      }
+      sb.append(message,pos,message.length());
+      message=sb.toString();
+      return true;
    }
    
    /** Sets MultipleHeader <i>mheader</i> */
@@ -598,14 +643,7 @@ public abstract class BaseMessage
 
    /** Sets MultipleHeader <i>mheader</i> */
    public void setHeaders(MultipleHeader mheader) 
-   {  String hname=mheader.getName();
-      if (hasHeader(hname))
-      {  int index=(new SipParser(message)).indexOfHeader(hname);
-         removeAllHeaders(hname);
-         addHeaders(mheader.toString(),index);
-      }
-      else
-         addHeaders(mheader,false);            
+   {  if (!replaceAllHeaders(mheader.getName(),mheader.toString())) addHeaders(mheader,false);            
    }          
 
 
@@ -1132,8 +1170,7 @@ public abstract class BaseMessage
    }  
    /** Removes the message body (if it exists) and the final empty line */
    public void removeBody() 
-   {  int pos=(new SipParser(message)).goToEndOfLastHeader().goToNextLine().getPos(); 
-      message=message.substring(0,pos);
+   {  message=message.substring(0,index().headers_end);
       removeContentLengthHeader();
       removeContentTypeHeader();
    }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sip.message;
+
+
+import org.zoolu.sip.header.Header;
+
+
+/** HeaderIndex is a one pass tokenization of a SIP message string.
+  * <p> It records the kind of first line and, for each header, the offsets
+  * of its name, of its (trimmed) value, and of the whole header line(s).
+  * Header objects are only materialized on request.
+  * <p> A HeaderIndex is immutable and refers to the string it was built on;
+  * any change of the message produces a new string and so a new index.
+  */
+class HeaderIndex
+{
+   /** The indexed message */
+   final String str;
+
+   /** Whether the first line is a Request-Line */
+   final boolean request;
+
+   /** Whether the first line is a Status-Line */
+   final boolean response;
+
+   /** Begin of the first header (after the first line, if any) */
+   final int headers_begin;
+
+   /** End of the last header, i.e. begin of the empty line (or end of message) */
+   final int headers_end;
+
+   /** Number of headers */
+   final int count;
+
+   /** Offsets of each header: name begin/end, value begin/end, header begin/next header begin */
+   final int[] name_begin, name_end, value_begin, value_end, begin, next;
+
+
+   /** Tokenizes <i>message</i> */
+   HeaderIndex(String message)
+   {  str=message;
+      int len=str.length();
+      response=len>=4 && str.regionMatches(true,0,"SIP/",0,4);
+      request=!response && isRequestLine(str);
+      int pos=(request || response)? skipLine(endOfHeader(0)) : 0;
+      headers_begin=pos;
+
+      int size=16;
+      int[] nb=new int[size], ne=new int[size], vb=new int[size], ve=new int[size], b=new int[size], n=new int[size];
+      int k=0;
+      while (pos<len)
+      {  char c=str.charAt(pos);
+         if (c=='\r' || c=='\n') break; // empty line: end of headers
+         int end=endOfHeader(pos);
+         int following=skipLine(end);
+         int colon=str.indexOf(':',pos);
+         if (colon>=0 && colon<end)
+         {  if (k==size)
+            {  size*=2;
+               nb=grow(nb,size); ne=grow(ne,size); vb=grow(vb,size); ve=grow(ve,size); b=grow(b,size); n=grow(n,size);
+            }
+            int i=pos, j=colon;
+            while (i<j && isWSP(str.charAt(j-1))) j--;
+            nb[k]=i; ne[k]=j;
+            i=colon+1; j=end;
+            while (i<j && isWSPCRLF(str.charAt(i))) i++;
+            while (i<j && isWSPCRLF(str.charAt(j-1))) j--;
+            vb[k]=i; ve[k]=j;
+            b[k]=pos; n[k]=following;
+            k++;
+         }
+         pos=following;
+      }
+      headers_end=pos;
+      count=k;
+      name_begin=nb; name_end=ne; value_begin=vb; value_end=ve; begin=b; next=n;
+   }
+
+
+   /** Whether the <i>i</i>-th header has name <i>hname</i> (case-insensitive) */
+   boolean isHeader(int i, String hname)
+   {  int len=name_end[i]-name_begin[i];
+      return len==hname.length() && str.regionMatches(true,name_begin[i],hname,0,len);
+   }
+
+   /** Gets the index of the first (or last) header named <i>hname</i>, or -1 */
+   int indexOf(String hname, boolean first)
+   {  if (first)
+      {  for (int i=0; i<count; i++) if (isHeader(i,hname)) return i;
+      }
+      else
+      {  for (int i=count-1; i>=0; i--) if (isHeader(i,hname)) return i;
+      }
+      return -1;
+   }
+
+   /** Materializes the <i>i</i>-th header, named <i>hname</i> */
+   Header getHeader(int i, String hname)
+   {  return new Header(hname,str.substring(value_begin[i],value_end[i]));
+   }
+
+
+   /** Request-Line = Method SP Request-URI SP "SIP/" ... */
+   private static boolean isRequestLine(String str)
+   {  int len=str.length();
+      int i=0;
+      for (int field=0; field<2; field++)
+      {  while (i<len && !isWSPCRLF(str.charAt(i))) i++;
+         while (i<len && isWSP(str.charAt(i))) i++;
+      }
+      return i+4<=len && str.regionMatches(true,i,"SIP/",0,4);
+   }
+
+   /** End of the header starting at <i>pos</i>, including folded lines */
+   private int endOfHeader(int pos)
+   {  int len=str.length();
+      while (true)
+      {  while (pos<len && str.charAt(pos)!='\r' && str.charAt(pos)!='\n') pos++;
+         if (pos>=len) return len;
+         int following=skipLine(pos);
+         if (following>=len || !isWSP(str.charAt(following))) return pos;
+         pos=following;
+      }
+   }
+
+   /** Skips the line terminator at <i>pos</i> (CRLF, LF, or CR) */
+   private int skipLine(int pos)
+   {  int len=str.length();
+      if (pos<len && str.charAt(pos)=='\r') pos++;
+      if (pos<len && str.charAt(pos)=='\n') pos++;
+      return pos;
+   }
+
+   private static boolean isWSP(char c)
+   {  return c==' ' || c=='\t';
+   }
+
+   private static boolean isWSPCRLF(char c)
+   {  return c==' ' || c=='\t' || c=='\r' || c=='\n';
+   }
+
+   private static int[] grow(int[] a, int size)
+   {  int[] b=new int[size];
+      System.arraycopy(a,0,b,0,a.length);
+      return b;
+   }
+}
@@ -50,11 +50,10 @@ public class Identifier
 
    /** Whether the Identifier equals to <i>obj</i>. */
    public boolean equals(Object obj)
-   {  try
-      {  Identifier i=(Identifier)obj;
-         return id.equals(i.id);
-      }
-      catch (Exception e) {  return false;  }
+   {  if (obj==this) return true;
+      if (!(obj instanceof Identifier)) return false;
+      // else
+      return id.equals(((Identifier)obj).id);
    }
 
    /** Gets an int hashCode for the Identifier. */
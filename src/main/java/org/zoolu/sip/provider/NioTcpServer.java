@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sip.provider;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.NioSelector;
+import org.zoolu.net.NioSelectorListener;
+
+
+/** NioTcpServer accepts TCP connections on a non-blocking ServerSocketChannel
+  * served by a shared NioSelector, and passes them to the NioTcpServerListener.
+  */
+class NioTcpServer implements NioSelectorListener
+{
+   /** Default ServerSocket backlog value */
+   static final int DEFAULT_SOCKET_BACKLOG=50;
+
+   /** The selector */
+   NioSelector selector;
+
+   /** The server channel */
+   ServerSocketChannel channel;
+
+   /** Whether it has been halted */
+   boolean halted;
+
+   /** NioTcpServer listener */
+   NioTcpServerListener listener;
+
+
+   /** Costructs a new NioTcpServer */
+   public NioTcpServer(int port, NioTcpServerListener listener) throws IOException
+   {  this(port,null,listener);
+   }
+
+
+   /** Costructs a new NioTcpServer */
+   public NioTcpServer(int port, IpAddress bind_ipaddr, NioTcpServerListener listener) throws IOException
+   {  this.listener=listener;
+      halted=false;
+      channel=ServerSocketChannel.open();
+      try
+      {  channel.socket().setReuseAddress(true);
+         if (bind_ipaddr==null) channel.socket().bind(new InetSocketAddress(port),DEFAULT_SOCKET_BACKLOG);
+         else channel.socket().bind(new InetSocketAddress(bind_ipaddr.toString(),port),DEFAULT_SOCKET_BACKLOG);
+         selector=NioSelector.getDefaultSelector();
+         selector.register(channel,SelectionKey.OP_ACCEPT,this);
+      }
+      catch (IOException e)
+      {  channel.close();
+         throw e;
+      }
+   }
+
+
+   /** Gets the server port */
+   public int getPort()
+   {  return channel.socket().getLocalPort();
+   }
+
+
+   /** Stops running */
+   public void halt()
+   {  selector.execute(new Runnable()
+      {  public void run()
+         {  terminate(null);
+         }
+      });
+   }
+
+
+   /** Gets a String representation of the Object */
+   public String toString()
+   {  return "tcp:"+channel.socket().getInetAddress()+":"+channel.socket().getLocalPort();
+   }
+
+
+   //************************* Callback methods *************************
+
+   /** When the channel is ready. */
+   public void onSelected(NioSelector selector, SelectionKey key)
+   {  try
+      {  SocketChannel socket;
+         while (!halted && (socket=channel.accept())!=null)
+         {  if (listener!=null) listener.onIncomingConnection(this,socket);
+            else socket.close();
+         }
+      }
+      catch (IOException e)
+      {  terminate(e);
+      }
+   }
+
+
+   /** Closes the channel and notifies the listener */
+   private void terminate(Exception error)
+   {  if (halted) return;
+      halted=true;
+      try {  channel.close();  } catch (IOException e) {}
+      NioTcpServerListener l=listener;
+      listener=null;
+      if (l!=null) l.onServerTerminated(this,error);
+   }
+
+}
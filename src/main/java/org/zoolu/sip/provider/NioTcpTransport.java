@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sip.provider;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.NioSelector;
+import org.zoolu.net.NioSelectorListener;
+import org.zoolu.sip.message.Message;
+
+
+/** NioTcpTransport provides a TCP transport service for SIP on a non-blocking
+  * SocketChannel served by a shared NioSelector, instead of a thread per connection.
+  * <p> Outgoing data that can't be written at once is queued; when more than
+  * MAX_QUEUED_BYTES are pending sendMessage() fails, so a slow peer can't make
+  * the memory grow.
+  */
+class NioTcpTransport implements ConnectedTransport, NioSelectorListener
+{
+   /** TCP protocol type */
+   public static final String PROTO_TCP="tcp";
+
+   /** The reading buffer size */
+   static final int BUFFER_SIZE=8192;
+
+   /** Maximum number of bytes waiting to be sent */
+   static final int MAX_QUEUED_BYTES=256*1024;
+
+   /** Maximum number of reads each time the channel is selected */
+   static final int MAX_READS=16;
+
+
+   /** The selector */
+   NioSelector selector;
+
+   /** The TCP channel */
+   SocketChannel channel;
+
+   /** Remote address */
+   IpAddress remote_ipaddr;
+
+   /** Remote port */
+   int remote_port;
+
+   /** TCP connection */
+   ConnectionIdentifier connection_id;
+
+   /** The last time that has been used (in milliseconds) */
+   volatile long last_time;
+
+   /** Splits the received bytes into messages */
+   SipStreamFramer framer;
+
+   /** Receive buffer */
+   ByteBuffer r_buffer;
+
+   /** Send buffer, reused for the data written at once */
+   ByteBuffer s_buffer;
+
+   /** Data waiting to be sent */
+   Queue<ByteBuffer> s_queue;
+
+   /** Number of bytes waiting to be sent */
+   int queued_bytes;
+
+   /** Whether the connection is established */
+   boolean connected;
+
+   /** Whether it has been halted */
+   boolean halted;
+
+   /** Transport listener */
+   TransportListener listener;
+
+
+   /** Creates a new NioTcpTransport connecting to a remote peer */
+   public NioTcpTransport(IpAddress remote_ipaddr, int remote_port, TransportListener listener) throws IOException
+   {  init(SocketChannel.open(),remote_ipaddr,remote_port,listener);
+      try
+      {  channel.configureBlocking(false);
+         connected=channel.connect(new InetSocketAddress(remote_ipaddr.toString(),remote_port));
+         connection_id=new ConnectionIdentifier(this);
+         selector.register(channel,connected? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,this);
+      }
+      catch (IOException e)
+      {  channel.close();
+         throw e;
+      }
+   }
+
+
+   /** Creates a new NioTcpTransport on an accepted channel */
+   public NioTcpTransport(SocketChannel channel, TransportListener listener) throws IOException
+   {  init(channel,new IpAddress(channel.socket().getInetAddress().getHostAddress()),channel.socket().getPort(),listener);
+      connected=true;
+      connection_id=null;
+      selector.register(channel,SelectionKey.OP_READ,this);
+   }
+
+
+   /** Inits the NioTcpTransport */
+   private void init(SocketChannel channel, IpAddress remote_ipaddr, int remote_port, TransportListener listener) throws IOException
+   {  this.channel=channel;
+      this.remote_ipaddr=remote_ipaddr;
+      this.remote_port=remote_port;
+      this.listener=listener;
+      selector=NioSelector.getDefaultSelector();
+      framer=new SipStreamFramer();
+      r_buffer=ByteBuffer.allocate(BUFFER_SIZE);
+      s_buffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+      s_queue=new ArrayDeque<ByteBuffer>();
+      queued_bytes=0;
+      halted=false;
+      last_time=System.currentTimeMillis();
+   }
+
+
+   /** Gets protocol type */
+   public String getProtocol()
+   {  return PROTO_TCP;
+   }
+
+
+   /** Gets the remote IpAddress */
+   public IpAddress getRemoteAddress()
+   {  return remote_ipaddr;
+   }
+
+
+   /** Gets the remote port */
+   public int getRemotePort()
+   {  return remote_port;
+   }
+
+
+   /** Gets the last time the Connection has been used (in millisconds) */
+   public long getLastTimeMillis()
+   {  return last_time;
+   }
+
+
+   /** Sends a Message through the connection. Parameters <i>dest_addr</i>/<i>dest_addr</i>
+     * are not used, and the message is addressed to the connection remote peer. */
+   public void sendMessage(Message msg, IpAddress dest_ipaddr, int dest_port) throws IOException
+   {  sendMessage(msg);
+   }
+
+
+   /** Sends a Message */
+   public void sendMessage(Message msg) throws IOException
+   {  byte[] bytes=msg.getBytes();
+      synchronized (s_queue)
+      {  if (halted) throw new IOException("TCP connection closed");
+         if (queued_bytes+bytes.length>MAX_QUEUED_BYTES) throw new IOException("TCP send queue full ("+queued_bytes+" bytes pending)");
+         last_time=System.currentTimeMillis();
+         int written=0;
+         if (connected && s_queue.isEmpty() && bytes.length<=BUFFER_SIZE)
+         {  s_buffer.clear();
+            s_buffer.put(bytes).flip();
+            written=channel.write(s_buffer);
+            if (written==bytes.length) return;
+         }
+         ByteBuffer data=ByteBuffer.wrap(bytes,written,bytes.length-written);
+         s_queue.add(data);
+         queued_bytes+=data.remaining();
+         if (connected && s_queue.size()==1) selector.setInterestOps(channel,SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+      }
+   }
+
+
+   /** Stops running */
+   public void halt()
+   {  selector.execute(new Runnable()
+      {  public void run()
+         {  terminate(null);
+         }
+      });
+   }
+
+
+   /** Gets a String representation of the Object */
+   public String toString()
+   {  return "tcp:"+channel.socket().getLocalAddress()+":"+channel.socket().getLocalPort()+"<->"+remote_ipaddr+":"+remote_port;
+   }
+
+
+   //************************* Callback methods *************************
+
+   /** When the channel is ready. */
+   public void onSelected(NioSelector selector, SelectionKey key)
+   {  try
+      {  if (key.isConnectable())
+         {  channel.finishConnect();
+            synchronized (s_queue)
+            {  connected=true;
+               key.interestOps(s_queue.isEmpty()? SelectionKey.OP_READ : SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+            }
+         }
+         if (key.isValid() && key.isWritable()) flush(key);
+         if (key.isValid() && key.isReadable()) receive();
+      }
+      catch (IOException e)
+      {  terminate(e);
+      }
+   }
+
+
+   //************************** Private methods *************************
+
+   /** Writes the queued data */
+   private void flush(SelectionKey key) throws IOException
+   {  synchronized (s_queue)
+      {  ByteBuffer data;
+         while ((data=s_queue.peek())!=null)
+         {  queued_bytes-=channel.write(data);
+            if (data.hasRemaining()) return;
+            s_queue.poll();
+         }
+         key.interestOps(SelectionKey.OP_READ);
+      }
+   }
+
+
+   /** Reads the available data and passes the complete messages to the listener */
+   private void receive() throws IOException
+   {  for (int i=0; i<MAX_READS; i++)
+      {  r_buffer.clear();
+         int len=channel.read(r_buffer);
+         if (len<0)
+         {  terminate(null);
+            return;
+         }
+         if (len==0) return;
+         // else
+         last_time=System.currentTimeMillis();
+         framer.append(r_buffer.array(),0,len);
+         Message msg;
+         while ((msg=framer.getSipMessage())!=null)
+         {  msg.setRemoteAddress(remote_ipaddr.toString());
+            msg.setRemotePort(remote_port);
+            msg.setTransport(PROTO_TCP);
+            msg.setConnectionId(connection_id);
+            if (listener!=null) listener.onReceivedMessage(this,msg);
+         }
+      }
+   }
+
+
+   /** Closes the channel and notifies the listener */
+   private void terminate(Exception error)
+   {  synchronized (s_queue)
+      {  if (halted) return;
+         halted=true;
+         s_queue.clear();
+         queued_bytes=0;
+      }
+      try {  channel.close();  } catch (IOException e) {}
+      TransportListener l=listener;
+      listener=null;
+      if (l!=null) l.onTransportTerminated(this,error);
+   }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sip.provider;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.NioSelector;
+import org.zoolu.net.NioSelectorListener;
+import org.zoolu.sip.message.Message;
+
+
+/** NioUdpTransport provides an UDP transport service for SIP on a non-blocking
+  * DatagramChannel served by a shared NioSelector, instead of a receiver thread.
+  * <p> Messages that can't be sent at once are queued; when the queue is full
+  * sendMessage() fails, so the sender is slowed down instead of the memory growing.
+  */
+class NioUdpTransport implements Transport, NioSelectorListener
+{
+   /** UDP protocol type */
+   public static final String PROTO_UDP="udp";
+
+   /** The reading buffer size */
+   static final int BUFFER_SIZE=65535;
+
+   /** Maximum number of datagrams waiting to be sent */
+   static final int MAX_QUEUED_PACKETS=1024;
+
+   /** Socket receive buffer size, absorbing bursts while the selector thread serves other channels */
+   static final int RECEIVE_BUFFER_SIZE=1024*1024;
+
+   /** Maximum number of datagrams read each time the channel is selected */
+   static final int MAX_READS=32;
+
+
+   /** The selector */
+   NioSelector selector;
+
+   /** The UDP channel */
+   DatagramChannel channel;
+
+   /** Receive buffer */
+   ByteBuffer r_buffer;
+
+   /** Send buffer, reused for the datagrams sent at once */
+   ByteBuffer s_buffer;
+
+   /** Datagrams waiting to be sent */
+   Queue<Datagram> s_queue;
+
+   /** Whether it has been halted */
+   boolean halted;
+
+   /** Transport listener */
+   TransportListener listener;
+
+
+   /** A datagram waiting to be sent */
+   static class Datagram
+   {  ByteBuffer data;
+      InetSocketAddress dest;
+      Datagram(ByteBuffer data, InetSocketAddress dest) {  this.data=data; this.dest=dest;  }
+   }
+
+
+   /** Creates a new NioUdpTransport */
+   public NioUdpTransport(int port, TransportListener listener) throws IOException
+   {  this(port,null,listener);
+   }
+
+
+   /** Creates a new NioUdpTransport */
+   public NioUdpTransport(int port, IpAddress ipaddr, TransportListener listener) throws IOException
+   {  this.listener=listener;
+      r_buffer=ByteBuffer.allocate(BUFFER_SIZE);
+      s_buffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+      s_queue=new ArrayDeque<Datagram>();
+      halted=false;
+      channel=DatagramChannel.open();
+      try
+      {  channel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+         if (ipaddr==null) channel.socket().bind(new InetSocketAddress(port));
+         else channel.socket().bind(new InetSocketAddress(ipaddr.toString(),port));
+         selector=NioSelector.getDefaultSelector();
+         selector.register(channel,SelectionKey.OP_READ,this);
+      }
+      catch (IOException e)
+      {  channel.close();
+         throw e;
+      }
+   }
+
+
+   /** Gets protocol type */
+   public String getProtocol()
+   {  return PROTO_UDP;
+   }
+
+
+   /** Sends a Message to a destination address and port */
+   public void sendMessage(Message msg, IpAddress dest_ipaddr, int dest_port) throws IOException
+   {  byte[] data=msg.getBytes();
+      if (data.length>BUFFER_SIZE) throw new IOException("Message too long for UDP ("+data.length+" bytes)");
+      InetSocketAddress dest=new InetSocketAddress(dest_ipaddr.toString(),dest_port);
+      synchronized (s_queue)
+      {  if (halted) throw new IOException("UDP transport halted");
+         if (s_queue.isEmpty())
+         {  s_buffer.clear();
+            s_buffer.put(data).flip();
+            if (channel.send(s_buffer,dest)>0) return;
+         }
+         // else
+         if (s_queue.size()>=MAX_QUEUED_PACKETS) throw new IOException("UDP send queue full ("+s_queue.size()+" datagrams)");
+         s_queue.add(new Datagram(ByteBuffer.wrap(data),dest));
+         if (s_queue.size()==1) selector.setInterestOps(channel,SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+      }
+   }
+
+
+   /** Stops running */
+   public void halt()
+   {  selector.execute(new Runnable()
+      {  public void run()
+         {  terminate(null);
+         }
+      });
+   }
+
+
+   /** Gets a String representation of the Object */
+   public String toString()
+   {  return "udp:"+channel.socket().getLocalAddress()+":"+channel.socket().getLocalPort();
+   }
+
+
+   //************************* Callback methods *************************
+
+   /** When the channel is ready. */
+   public void onSelected(NioSelector selector, SelectionKey key)
+   {  try
+      {  if (key.isWritable()) flush(key);
+         if (key.isValid() && key.isReadable()) receive();
+      }
+      catch (IOException e)
+      {  terminate(e);
+      }
+   }
+
+
+   //************************** Private methods *************************
+
+   /** Sends the queued datagrams */
+   private void flush(SelectionKey key) throws IOException
+   {  synchronized (s_queue)
+      {  Datagram d;
+         while ((d=s_queue.peek())!=null)
+         {  if (channel.send(d.data,d.dest)==0) return;
+            s_queue.poll();
+         }
+         key.interestOps(SelectionKey.OP_READ);
+      }
+   }
+
+
+   /** Receives the pending datagrams */
+   private void receive() throws IOException
+   {  for (int i=0; i<MAX_READS; i++)
+      {  r_buffer.clear();
+         InetSocketAddress source=(InetSocketAddress)channel.receive(r_buffer);
+         if (source==null) return;
+         // else
+         Message msg=new Message(r_buffer.array(),0,r_buffer.position());
+         msg.setRemoteAddress(source.getAddress().getHostAddress());
+         msg.setRemotePort(source.getPort());
+         msg.setTransport(PROTO_UDP);
+         if (listener!=null) listener.onReceivedMessage(this,msg);
+      }
+   }
+
+
+   /** Closes the channel and notifies the listener */
+   private void terminate(Exception error)
+   {  synchronized (s_queue)
+      {  if (halted) return;
+         halted=true;
+         s_queue.clear();
+      }
+      try {  channel.close();  } catch (IOException e) {}
+      TransportListener l=listener;
+      listener=null;
+      if (l!=null) l.onTransportTerminated(this,error);
+   }
+
+}
@@ -0,0 +1,135 @@
+package org.zoolu.sip.provider;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zoolu.sip.header.CallIdHeader;
+import org.zoolu.sip.message.Message;
+
+/**
+ * Moves the processing of received SIP messages off the transport threads. Messages are hashed by Call-ID onto a fixed
+ * set of lanes, each served by one thread: the messages of a dialog are processed in the order they were received,
+ * while a listener that blocks (building SDP, starting media, waiting before a retry) only delays the dialogs sharing
+ * its lane. Lanes are bounded; when one is full the message is dropped, and the peer retransmission recovers it.
+ */
+public class SipDispatcher {
+	private static final Logger log = LoggerFactory.getLogger(SipDispatcher.class);
+
+	private static SipDispatcher instance;
+
+	private final ThreadPoolExecutor[] lanes;
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	/** Gets the dispatcher shared by all the providers, or null if dispatching is disabled. */
+	public static synchronized SipDispatcher getInstance() {
+		if (instance == null && SipStack.dispatch_threads > 0) {
+			instance = new SipDispatcher(SipStack.dispatch_threads, SipStack.dispatch_queue_size);
+		}
+		return instance;
+	}
+
+	/** Gets the shared dispatcher if it has been created, without creating it. */
+	public static synchronized SipDispatcher peekInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param threads
+	 *            number of lanes
+	 * @param queueSize
+	 *            messages waiting in one lane before the next ones are dropped
+	 */
+	public SipDispatcher(int threads, int queueSize) {
+		lanes = new ThreadPoolExecutor[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = "SipDispatcher lane-" + i;
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+					queueSize), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		log.info("SIP dispatcher: {} lanes of {} messages", threads, queueSize);
+	}
+
+	/** Processes <code>msg</code> received by <code>provider</code> on the lane of its Call-ID. */
+	public void dispatch(final SipProvider provider, final Message msg) {
+		ThreadPoolExecutor lane = lanes[(hash(msg) & Integer.MAX_VALUE) % lanes.length];
+		try {
+			lane.execute(new Runnable() {
+				public void run() {
+					provider.processReceivedMessage(msg);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			dropped.incrementAndGet();
+			log.warn("SIP dispatch queue full, message dropped");
+			return;
+		}
+		dispatched.incrementAndGet();
+		int depth = lane.getQueue().size();
+		int max;
+		while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+		}
+	}
+
+	private static int hash(Message msg) {
+		try {
+			CallIdHeader ch = msg.getCallIdHeader();
+			return ch == null ? 0 : ch.getCallId().hashCode();
+		} catch (RuntimeException e) {
+			// not a SIP message, processReceivedMessage discards it
+			return 0;
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/** Messages waiting in all the lanes. */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ThreadPoolExecutor lane : lanes) {
+			depth += lane.getQueue().size();
+		}
+		return depth;
+	}
+
+	/** Messages waiting in <code>lane</code>. */
+	public int getQueueDepth(int lane) {
+		return lanes[lane].getQueue().size();
+	}
+
+	/** Highest number of messages seen waiting in one lane. */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getDispatched() {
+		return dispatched.get();
+	}
+
+	/** Messages dropped because their lane was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SipDispatcher [lanes=" + lanes.length + ", queued=" + getQueueDepth() + ", maxQueueDepth="
+				+ maxQueueDepth.get() + ", dispatched=" + dispatched.get() + ", dropped=" + dropped.get() + "]";
+	}
+}
@@ -35,15 +35,16 @@
 package org.zoolu.sip.provider;
 
 import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.mina.util.ConcurrentHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zoolu.net.IpAddress;
@@ -94,7 +95,7 @@ import org.zoolu.tools.SimpleDigest;
  * Note: no 482 (Loop Detected) responses are generated for requests that does not properly match any ongoing
  * transactions, dialogs, nor method types.
  */
-public class SipProvider implements Configurable, TransportListener, TcpServerListener {
+public class SipProvider implements Configurable, TransportListener, TcpServerListener, NioTcpServerListener {
 	protected static Logger log = LoggerFactory.getLogger(SipProvider.class);
 	// **************************** Constants ****************************
 
@@ -167,7 +168,14 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	/** Whether logging all packets (including non-SIP keepalive tokens). */
 	boolean log_all_packets = false;
 
-	private String inviteLock = "";
+	/** Serializes the INVITEs passed to a UAS listening on the method. */
+	private final Object inviteLock = new Object();
+
+	/**
+	 * Whether out-of-dialog requests are routed by the user part of the request-uri. It is used when the same
+	 * SipProvider is shared by several user agents, each one listening on its own contact user.
+	 */
+	private boolean user_routing = false;
 
 	// new params to control address handling
 	private boolean sendResponseUsingOutboundProxy = false;
@@ -209,21 +217,34 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	/** Whether forcing 'rport' parameter on incoming requests ('force-rport' mode). */
 	boolean force_rport = false;
 
-	/** List of provider listeners */
-	Map<Identifier, Set<SipProviderListener>> listeners = null;
+	/** Provider listeners, one per identifier */
+	ConcurrentHashMap<Identifier, SipProviderListener> listeners = null;
 
 	/** List of exception listeners */
 	HashSet<SipProviderExceptionListener> exception_listeners = null;
 
 	/** UDP transport */
-	UdpTransport udp = null;
+	Transport udp = null;
 
 	/** Tcp server */
 	TcpServer tcp_server = null;
 
+	/** Tcp server, when using the NIO transports */
+	NioTcpServer nio_tcp_server = null;
+
 	/** Connections */
 	Hashtable<ConnectionIdentifier, ConnectedTransport> connections = null;
 
+	/** Dispatcher of the received messages, or null for processing them on the transport threads */
+	SipDispatcher dispatcher = null;
+
+	/** Number of transactions started */
+	private final AtomicLong transactions = new AtomicLong();
+	/** Number of requests and responses retransmitted by the transactions */
+	private final AtomicLong retransmissions = new AtomicLong();
+	/** Number of client transactions terminated by the transaction timeout */
+	private final AtomicLong transactionTimeouts = new AtomicLong();
+
 	// *************************** Costructors ***************************
 
 	/** Creates a void SipProvider. */
@@ -295,7 +316,8 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 			 */
 		}
 		if (nmax_connections <= 0)
-			nmax_connections = SipStack.default_nmax_connections;
+			nmax_connections = SipStack.use_nio ? SipStack.default_nmax_nio_connections
+					: SipStack.default_nmax_connections;
 
 		// just for backward compatibility..
 		if (outbound_port < 0)
@@ -311,8 +333,9 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		force_rport = SipStack.force_rport;
 
 		exception_listeners = new HashSet<SipProviderExceptionListener>();
-		listeners = new ConcurrentHashMap<Identifier, Set<SipProviderListener>>();
+		listeners = new ConcurrentHashMap<Identifier, SipProviderListener>();
 		connections = new Hashtable<ConnectionIdentifier, ConnectedTransport>();
+		dispatcher = SipDispatcher.getInstance();
 	}
 
 	/** Starts the transport services. */
@@ -320,7 +343,9 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		// start udp
 		if (transport_udp) {
 			try {
-				if (host_ipaddr == null)
+				if (SipStack.use_nio)
+					udp = new NioUdpTransport(host_port, host_ipaddr, this);
+				else if (host_ipaddr == null)
 					udp = new UdpTransport(host_port, this);
 				else
 					udp = new UdpTransport(host_port, host_ipaddr, this);
@@ -332,7 +357,9 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		// start tcp
 		if (transport_tcp) {
 			try {
-				if (host_ipaddr == null)
+				if (SipStack.use_nio)
+					nio_tcp_server = new NioTcpServer(host_port, host_ipaddr, this);
+				else if (host_ipaddr == null)
 					tcp_server = new TcpServer(host_port, this);
 				else
 					tcp_server = new TcpServer(host_port, host_ipaddr, this);
@@ -357,6 +384,11 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 			tcp_server.halt();
 			tcp_server = null;
 		}
+		if (nio_tcp_server != null) {
+			log.trace("tcp is going down");
+			nio_tcp_server.halt();
+			nio_tcp_server = null;
+		}
 		if (connections != null) {
 			log.trace("connections are going down");
 			for (Enumeration<ConnectedTransport> e = connections.elements(); e.hasMoreElements();) {
@@ -371,7 +403,7 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	public void halt() {
 		log.debug("halt: SipProvider is going down");
 		stopTrasport();
-		listeners = new ConcurrentHashMap<Identifier, Set<SipProviderListener>>();
+		listeners = new ConcurrentHashMap<Identifier, SipProviderListener>();
 		exception_listeners = new HashSet<SipProviderExceptionListener>();
 	}
 
@@ -532,6 +564,16 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		return force_rport;
 	}
 
+	/** Sets routing of out-of-dialog requests by request-uri user. */
+	public void setUserRouting(boolean flag) {
+		user_routing = flag;
+	}
+
+	/** Whether out-of-dialog requests are routed by request-uri user. */
+	public boolean isUserRouting() {
+		return user_routing;
+	}
+
 	/** Whether has outbound proxy. */
 	public boolean hasOutboundProxy() {
 		return outbound_proxy != null;
@@ -562,9 +604,49 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		nmax_connections = n;
 	}
 
-	/** Returns the list (Hashtable) of active listener_IDs. */
-	public Map<Identifier, Set<SipProviderListener>> getListeners() {
-		return listeners;
+	/** Returns a read-only view of the active listeners, by listener_ID. */
+	public Map<Identifier, SipProviderListener> getListeners() {
+		return Collections.unmodifiableMap(listeners);
+	}
+
+	/** Gets the number of active listeners. */
+	public int getListenerCount() {
+		return listeners.size();
+	}
+
+	/** Gets the number of transactions started. */
+	public long getTransactionCount() {
+		return transactions.get();
+	}
+
+	/** Gets the number of requests and responses retransmitted by the transactions. */
+	public long getRetransmissionCount() {
+		return retransmissions.get();
+	}
+
+	/** Gets the number of client transactions terminated by the transaction timeout. */
+	public long getTransactionTimeoutCount() {
+		return transactionTimeouts.get();
+	}
+
+	/** Counts a started transaction. */
+	public void countTransaction() {
+		transactions.incrementAndGet();
+	}
+
+	/** Counts a retransmitted request or response. */
+	public void countRetransmission() {
+		retransmissions.incrementAndGet();
+	}
+
+	/** Counts a client transaction terminated by the transaction timeout. */
+	public void countTransactionTimeout() {
+		transactionTimeouts.incrementAndGet();
+	}
+
+	/** Whether a listener is registered for <i>key</i>. */
+	public boolean hasListener(Identifier key) {
+		return listeners.containsKey(key);
 	}
 
 	/**
@@ -613,26 +695,10 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	 */
 	public boolean addSipProviderListener(Identifier key, SipProviderListener listener) {
 		log.debug("adding SipProviderListener: " + key);
-		boolean ret;
-		// Identifier key=id;
-		if (listeners.containsKey(key) && !"INVITE".equals(key)) {
+		boolean ret = listeners.putIfAbsent(key, listener) == null;
+		if (!ret)
 			log.error("trying to add a SipProviderListener with a id that is already in use.");
-			ret = false;
-		} else {
-			Set<SipProviderListener> s = listeners.get(key);
-			if (s == null) {
-				listeners.put(key, s = new ConcurrentHashSet<SipProviderListener>());
-			}
-			ret = s.add(listener);
-		}
-
-		if (log.isTraceEnabled() && listeners != null) {
-			String list = "";
-			for (Identifier e : listeners.keySet()) {
-				list += e + ", ";
-			}
-			log.trace(listeners.size() + " listeners: " + list);
-		}
+		traceListeners();
 		return ret;
 	}
 
@@ -645,60 +711,33 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	 */
 	public boolean removeSipProviderListener(Identifier key) {
 		log.debug("removing SipProviderListener: " + key);
-		boolean ret;
-		// Identifier key=id;
-		if (!listeners.containsKey(key)) {
+		boolean ret = listeners.remove(key) != null;
+		if (!ret)
 			log.error("trying to remove a missed SipProviderListener.");
-			ret = false;
-		} else {
-			listeners.remove(key);
-			ret = true;
-		}
-
-		if (log.isTraceEnabled() && listeners != null) {
-			String list = "";
-			for (Identifier e : listeners.keySet()) {
-				list += e + ", ";
-			}
-			log.trace(listeners.size() + " listeners: " + list);
-		}
+		traceListeners();
 		return ret;
 	}
 
+	/** Removes the SipProviderListener registered for <i>key</i>, only if it is <i>listener</i>. */
 	public boolean removeSipProviderListener(Identifier key, SipProviderListener listener) {
-		log.error("removing SipProviderListener Pair: " + key);
-		boolean ret;
-
-		if (!listeners.containsKey(key)) {
+		log.debug("removing SipProviderListener Pair: " + key);
+		boolean ret = listeners.remove(key, listener);
+		if (!ret)
 			log.trace("trying to remove a missed SipProviderListener Pair.");
-			ret = false;
-		} else {
-			Set<SipProviderListener> s = listeners.get(key);
-			s.remove(listener);
-			if (s.size() == 0) {
-				listeners.remove(key);
-			}
-			ret = true;
-		}
+		traceListeners();
+		return ret;
+	}
 
-		if (log.isTraceEnabled() && listeners != null) {
-			String list = "";
+	private void traceListeners() {
+		if (log.isTraceEnabled()) {
+			StringBuilder list = new StringBuilder();
 			for (Identifier e : listeners.keySet()) {
-				list += e + ", ";
+				list.append(e).append(", ");
 			}
-			log.trace(listeners.size() + " listeners: " + list + "\n" + listeners.toString());
+			log.trace(listeners.size() + " listeners: " + list);
 		}
-		return ret;
 	}
 
-	private SipProviderListener getListener(Identifier key) {
-		SipProviderListener r = null;
-		if (listeners.containsKey(key)) {
-			Set<SipProviderListener> s = listeners.get(key);
-			r = s.iterator().next();
-		}
-		return r;
-	}
 	/**
 	 * Sets the SipProviderExceptionListener. The SipProviderExceptionListener is the listener for all exceptions thrown
 	 * by the SipProviders.
@@ -782,9 +821,12 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 			if (!connections.containsKey(conn_id)) {
 				log.debug("no active connection found matching " + conn_id);
 				log.debug("open " + proto + " connection to " + dest_ipaddr + ":" + dest_port);
-				TcpTransport conn = null;
+				ConnectedTransport conn = null;
 				try {
-					conn = new TcpTransport(dest_ipaddr, dest_port, this);
+					if (SipStack.use_nio)
+						conn = new NioTcpTransport(dest_ipaddr, dest_port, this);
+					else
+						conn = new TcpTransport(dest_ipaddr, dest_port, this);
 				} catch (Exception e) {
 					log.warn("connection setup FAILED");
 					return null;
@@ -841,7 +883,8 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 	 *         connection-less delivery (e.g. UDP)
 	 */
 	public ConnectionIdentifier sendMessage(Message msg) {
-		log.trace("Sending message:\r\n" + msg.toString());
+		if (log.isTraceEnabled())
+			log.trace("Sending message:\r\n" + msg.toString());
 
 		// select the transport protocol
 		ViaHeader via = msg.getViaHeader();
@@ -999,9 +1042,10 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 			}
 
 			// try to look for a UA in promisque mode
-			if (listeners.containsKey(PROMISQUE)) {
-				log.debug("message passed to uas: " + PROMISQUE);
-				getListener(PROMISQUE).onReceivedMessage(this, msg);
+			SipProviderListener listener = listeners.get(PROMISQUE);
+			if (listener != null) {
+				log.debug("message passed to uas: {}", PROMISQUE);
+				listener.onReceivedMessage(this, msg);
 			}
 
 			// after the callback check if the message is still valid
@@ -1015,7 +1059,7 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 			if (msg.isRequest() && msg.isOption()) {
 				// handle SIP OPTIONS message
 				int optStat = 486; // default busy
-				if (listeners.containsKey(INVITE)) // if existing INVITE key then we might be available
+				if (listeners.containsKey(INVITE) || user_routing) // if existing INVITE key then we might be available
 				{
 					if (this.optionHandler != null) {
 						String optBody = optionHandler.onOptionMsgReceived();
@@ -1040,41 +1084,63 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 
 			// try to look for a transaction
 			Identifier key = msg.getTransactionId();
-			log.debug("DEBUG: transaction-id: " + key);
-			if (listeners.containsKey(key)) {
-				log.debug("message passed to transaction: " + key);
-				getListener(key).onReceivedMessage(this, msg);
+			log.debug("DEBUG: transaction-id: {}", key);
+			listener = listeners.get(key);
+			if (listener != null) {
+				log.debug("message passed to transaction: {}", key);
+				listener.onReceivedMessage(this, msg);
 				return;
 			}
 			// try to look for a dialog
 			key = msg.getDialogId();
-			log.debug("DEBUG: dialog-id: " + key);
-			if (listeners.containsKey(key)) {
-				log.debug("message passed to dialog: " + key);
-				getListener(key).onReceivedMessage(this, msg);
+			log.debug("DEBUG: dialog-id: {}", key);
+			listener = listeners.get(key);
+			if (listener != null) {
+				log.debug("message passed to dialog: {}", key);
+				listener.onReceivedMessage(this, msg);
 				return;
 			}
+			// try to look for a UAS bound to the request-uri user
+			if (user_routing && msg.isRequest()) {
+				SipURL request_uri = msg.getRequestLine().getAddress();
+				if (request_uri.hasUserName()) {
+					key = new TransactionIdentifier(msg.getRequestLine().getMethod(), request_uri.getUserName());
+					listener = listeners.get(key);
+					if (listener != null) {
+						// each user has its own UAS: only the requests to the same one are serialized
+						synchronized (listener) {
+							if (listeners.get(key) == listener) {
+								log.debug("message passed to uas: {}", key);
+								listener.onReceivedMessage(this, msg);
+								return;
+							}
+						}
+					}
+				}
+			}
 			// try to look for a UAS
 			key = msg.getMethodId();
 			if (msg.isRequest() && msg.isInvite()) {
 				// need to synchronize invite requests to avoid issues
 				synchronized (inviteLock) {
-					if (listeners.containsKey(key)) {
-						log.debug("message passed to uas: " + key);
-						getListener(key).onReceivedMessage(this, msg);
+					listener = listeners.get(key);
+					if (listener != null) {
+						log.debug("message passed to uas: {}", key);
+						listener.onReceivedMessage(this, msg);
 						return;
 					}
 				}
-			} else if (listeners.containsKey(key)) {
-				log.trace("message passed to uas: " + key);
-				getListener(key).onReceivedMessage(this, msg);
+			} else if ((listener = listeners.get(key)) != null) {
+				log.trace("message passed to uas: {}", key);
+				listener.onReceivedMessage(this, msg);
 				return;
 			}
 
 			// try to look for a default UA
-			if (listeners.containsKey(ANY)) {
-				log.debug("message passed to uas: " + ANY);
-				getListener(ANY).onReceivedMessage(this, msg);
+			listener = listeners.get(ANY);
+			if (listener != null) {
+				log.debug("message passed to uas: {}", ANY);
+				listener.onReceivedMessage(this, msg);
 				return;
 			}
 
@@ -1186,7 +1252,10 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 
 	/** When a new SIP message is received. */
 	public void onReceivedMessage(Transport transport, Message msg) {
-		processReceivedMessage(msg);
+		if (dispatcher != null)
+			dispatcher.dispatch(this, msg);
+		else
+			processReceivedMessage(msg);
 	}
 
 	/** When Transport terminates. */
@@ -1213,6 +1282,31 @@ public class SipProvider implements Configurable, TransportListener, TcpServerLi
 		log.debug("tcp server " + tcp_server + " terminated");
 	}
 
+	/** When a new incoming connection is accepted by the NIO tcp server */
+	public void onIncomingConnection(NioTcpServer tcp_server, SocketChannel channel) {
+		log.debug("incoming connection from " + channel.socket().getInetAddress() + ":" + channel.socket().getPort());
+		ConnectedTransport conn;
+		try {
+			conn = new NioTcpTransport(channel, this);
+		} catch (IOException e) {
+			log.warn("connection setup FAILED", e);
+			try {
+				channel.close();
+			} catch (IOException ce) {
+			}
+			return;
+		}
+		log.debug("tcp connection " + conn + " opened");
+		addConnection(conn);
+	}
+
+	/** When the NIO tcp server terminates. */
+	public void onServerTerminated(NioTcpServer tcp_server, Exception error) {
+		log.debug("tcp server " + tcp_server + " terminated");
+		if (error != null)
+			log.error("", error);
+	}
+
 	// ************************** Other methods ***************************
 
 	/**
@@ -73,6 +73,20 @@ public class SipStack extends Configure {
 	public static String[] default_transport_protocols = { SipProvider.PROTO_UDP, SipProvider.PROTO_TCP };
 	/** Default max number of contemporary open transport connections. */
 	public static int default_nmax_connections = 32;
+	/**
+	 * Whether using the non-blocking (NIO) transports, where all UDP and TCP channels are served by one selector
+	 * thread instead of a thread per socket and per connection.
+	 */
+	public static boolean use_nio = false;
+	/** Default max number of contemporary open transport connections when using the NIO transports. */
+	public static int default_nmax_nio_connections = 4096;
+	/**
+	 * Number of threads processing the received messages, each one serving the dialogs whose Call-ID hashes to it. Use
+	 * 0 for processing messages on the transport threads.
+	 */
+	public static int dispatch_threads = 4;
+	/** Max number of received messages waiting for one dispatch thread. */
+	public static int dispatch_queue_size = 1000;
 	/** Whether adding 'rport' parameter on via header fields of outgoing requests. */
 	public static boolean use_rport = true;
 	/** Whether adding (forcing) 'rport' parameter on via header fields of incoming requests. */
@@ -94,6 +108,14 @@ public class SipStack extends Configure {
 	/** Whether using only one thread for all timer instances. */
 	public static boolean single_timer = false;
 
+	/**
+	 * Whether using a hashed timer wheel (one ticking thread, O(1) start and halt) for all timer instances. It
+	 * overrides single_timer.
+	 */
+	public static boolean wheel_timer = false;
+	/** Tick of the timer wheel (milliseconds). */
+	public static long wheel_timer_tick = 10;
+
 	/** Whether 1xx responses create an "early dialog" for methods that create dialog. */
 	public static boolean early_dialog = false;
 
@@ -140,6 +162,22 @@ public class SipStack extends Configure {
 			default_nmax_connections = par.getInt();
 			return;
 		}
+		if (attribute.equals("use_nio")) {
+			use_nio = (par.getString().toLowerCase().startsWith("y"));
+			return;
+		}
+		if (attribute.equals("default_nmax_nio_connections")) {
+			default_nmax_nio_connections = par.getInt();
+			return;
+		}
+		if (attribute.equals("dispatch_threads")) {
+			dispatch_threads = par.getInt();
+			return;
+		}
+		if (attribute.equals("dispatch_queue_size")) {
+			dispatch_queue_size = par.getInt();
+			return;
+		}
 		if (attribute.equals("use_rport")) {
 			use_rport = (par.getString().toLowerCase().startsWith("y"));
 			return;
@@ -172,6 +210,14 @@ public class SipStack extends Configure {
 			single_timer = (par.getString().toLowerCase().startsWith("y"));
 			return;
 		}
+		if (attribute.equals("wheel_timer")) {
+			wheel_timer = (par.getString().toLowerCase().startsWith("y"));
+			return;
+		}
+		if (attribute.equals("wheel_timer_tick")) {
+			wheel_timer_tick = par.getInt();
+			return;
+		}
 		if (attribute.equals("early_dialog")) {
 			early_dialog = (par.getString().toLowerCase().startsWith("y"));
 			return;
@@ -232,6 +278,8 @@ public class SipStack extends Configure {
 
 		// timers
 		Timer.SINGLE_THREAD = single_timer;
+		Timer.HASHED_WHEEL = wheel_timer;
+		Timer.setWheelTick(wheel_timer_tick);
 
 		is_init = true;
 		// if (file!=null) printLog("SipStack loaded",1);
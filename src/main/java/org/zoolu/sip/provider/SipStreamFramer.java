@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This file is part of MjSip (http://www.mjsip.org)
+ *
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sip.provider;
+
+
+import java.io.IOException;
+
+import org.zoolu.sip.message.Message;
+
+
+/** SipStreamFramer splits a SIP byte stream (e.g. TCP) into messages.
+  * <p> Received bytes are appended to a growable buffer; the end of the headers
+  * is searched from where the previous search stopped, and the body is taken
+  * according to the Content-Length header, counted in bytes as in RFC 3261.
+  * Each complete message is decoded only once, so a message split across many
+  * reads, or many messages in one read, cost a single pass.
+  */
+class SipStreamFramer
+{
+   /** Initial buffer size */
+   static final int BUFFER_SIZE=4096;
+
+   /** Maximum size of a message */
+   static final int MAX_MESSAGE_SIZE=1024*1024;
+
+   /** The received bytes */
+   byte[] buff;
+
+   /** Begin of the current message */
+   int begin;
+
+   /** End of the received bytes */
+   int end;
+
+   /** Where the search of the end of the headers resumes */
+   int scan;
+
+   /** Begin of the body of the current message, or -1 if the headers are not complete yet */
+   int body_begin;
+
+   /** Body length of the current message */
+   int body_len;
+
+
+   /** Creates a new SipStreamFramer */
+   public SipStreamFramer()
+   {  buff=new byte[BUFFER_SIZE];
+      begin=end=scan=0;
+      body_begin=-1;
+   }
+
+
+   /** Appends received bytes */
+   public void append(byte[] data, int offset, int len) throws IOException
+   {  if (end+len>buff.length)
+      {  int size=end-begin;
+         if (size+len>MAX_MESSAGE_SIZE) throw new IOException("SIP message longer than "+MAX_MESSAGE_SIZE+" bytes");
+         byte[] b=buff;
+         if (size+len>buff.length)
+         {  int capacity=buff.length;
+            while (capacity<size+len) capacity*=2;
+            b=new byte[capacity];
+         }
+         System.arraycopy(buff,begin,b,0,size);
+         buff=b;
+         scan-=begin;
+         if (body_begin>=0) body_begin-=begin;
+         begin=0;
+         end=size;
+      }
+      System.arraycopy(data,offset,buff,end,len);
+      end+=len;
+   }
+
+
+   /** Gets the next complete message, or null if more bytes are needed */
+   public Message getSipMessage() throws IOException
+   {  if (body_begin<0)
+      {  // skip any CRLF sequence (keep-alives)
+         while (begin<end && (buff[begin]=='\r' || buff[begin]=='\n')) begin++;
+         if (scan<begin) scan=begin;
+         if (!findEndOfHeaders()) return null;
+         body_len=getContentLength();
+         if (body_len<0 || body_begin-begin+body_len>MAX_MESSAGE_SIZE) throw new IOException("Invalid Content-Length: "+body_len);
+      }
+      int msg_end=body_begin+body_len;
+      if (msg_end>end) return null;
+      // else
+      Message msg=new Message(buff,begin,msg_end-begin);
+      begin=scan=msg_end;
+      body_begin=-1;
+      if (begin==end) begin=end=scan=0;
+      return msg;
+   }
+
+
+   /** Searches the empty line that ends the headers, starting from <i>scan</i>.
+     * If found, sets <i>body_begin</i>; otherwise moves <i>scan</i> as far as possible. */
+   private boolean findEndOfHeaders()
+   {  for (int i=scan; i<end; i++)
+      {  if (buff[i]!='\n') continue;
+         // else
+         if (i+1>=end) {  scan=i; return false;  }
+         if (buff[i+1]=='\n') {  body_begin=i+2; scan=body_begin; return true;  }
+         if (buff[i+1]=='\r')
+         {  if (i+2>=end) {  scan=i; return false;  }
+            if (buff[i+2]=='\n') {  body_begin=i+3; scan=body_begin; return true;  }
+         }
+      }
+      scan=end;
+      return false;
+   }
+
+
+   /** Gets the value of the Content-Length (or compact 'l') header, or 0 if missing */
+   private int getContentLength()
+   {  int i=begin;
+      while (i<body_begin)
+      {  // i is at the begin of a line
+         int j=i;
+         while (j<body_begin && isHeaderNameChar(buff[j])) j++;
+         int k=j;
+         while (k<body_begin && (buff[k]==' ' || buff[k]=='\t')) k++;
+         if (k<body_begin && buff[k]==':' && (matches(i,j,"Content-Length") || matches(i,j,"l")))
+         {  k++;
+            while (k<body_begin && (buff[k]==' ' || buff[k]=='\t')) k++;
+            long value=0;
+            int digits=0;
+            while (k<body_begin && buff[k]>='0' && buff[k]<='9' && digits<10) {  value=value*10+(buff[k++]-'0'); digits++;  }
+            return (digits==0 || value>Integer.MAX_VALUE)? -1 : (int)value;
+         }
+         while (i<body_begin && buff[i]!='\n') i++;
+         i++;
+      }
+      return 0;
+   }
+
+
+   /** Whether bytes from <i>i</i> to <i>j</i> are <i>name</i> (case-insensitive) */
+   private boolean matches(int i, int j, String name)
+   {  if (j-i!=name.length()) return false;
+      for (int k=0; k<name.length(); k++)
+      {  if (Character.toLowerCase((char)buff[i+k])!=Character.toLowerCase(name.charAt(k))) return false;
+      }
+      return true;
+   }
+
+   private static boolean isHeaderNameChar(byte b)
+   {  return b>' ' && b<127 && b!=':';
+   }
+}
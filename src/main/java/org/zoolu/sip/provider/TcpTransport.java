@@ -49,8 +49,8 @@ class TcpTransport implements ConnectedTransport, TcpConnectionListener
    /** The last time that has been used (in milliseconds) */
    long last_time;
    
-   /** the current received text. */
-   String text;
+   /** Splits the received bytes into messages */
+   SipStreamFramer framer;
      
    /** Transport listener */
    TransportListener listener;   
@@ -63,7 +63,7 @@ class TcpTransport implements ConnectedTransport, TcpConnectionListener
       tcp_conn=new TcpConnection(socket,this);
       connection_id=new ConnectionIdentifier(this);
       last_time=System.currentTimeMillis();
-      text="";
+      framer=new SipStreamFramer();
    }
 
 
@@ -73,7 +73,7 @@ class TcpTransport implements ConnectedTransport, TcpConnectionListener
       tcp_conn=new TcpConnection(socket,this);
       connection_id=null;
       last_time=System.currentTimeMillis();
-      text="";
+      framer=new SipStreamFramer();
    }
 
 
@@ -115,7 +115,7 @@ class TcpTransport implements ConnectedTransport, TcpConnectionListener
    public void sendMessage(Message msg) throws IOException
    {  if (tcp_conn!=null)
       {  last_time=System.currentTimeMillis();
-         byte[] data=msg.toString().getBytes();
+         byte[] data=msg.getBytes();
          tcp_conn.send(data);
       }
    }
@@ -140,21 +140,25 @@ class TcpTransport implements ConnectedTransport, TcpConnectionListener
    public void onReceivedData(TcpConnection tcp_conn, byte[] data, int len)
    {  last_time=System.currentTimeMillis();
       
-      text+=new String(data,0,len);
-      SipParser par=new SipParser(text);
-      Message msg=par.getSipMessage();
-      while (msg!=null)
-      {
-         msg.setRemoteAddress(tcp_conn.getRemoteAddress().toString());
-         msg.setRemotePort(tcp_conn.getRemotePort());
-         msg.setTransport(PROTO_TCP);
-         msg.setConnectionId(connection_id);
-         if (listener!=null) listener.onReceivedMessage(this,msg);
-
-         text=par.getRemainingString();
-         par=new SipParser(text);
-         msg=par.getSipMessage();
-      }     
+      Message msg;
+      try
+      {  framer.append(data,0,len);
+         msg=framer.getSipMessage();
+         while (msg!=null)
+         {
+            msg.setRemoteAddress(tcp_conn.getRemoteAddress().toString());
+            msg.setRemotePort(tcp_conn.getRemotePort());
+            msg.setTransport(PROTO_TCP);
+            msg.setConnectionId(connection_id);
+            if (listener!=null) listener.onReceivedMessage(this,msg);
+
+            msg=framer.getSipMessage();
+         }
+      }
+      catch (IOException e)
+      {  // the stream can't be re-synchronized: drop the connection
+         tcp_conn.halt();
+      }
    }   
 
 
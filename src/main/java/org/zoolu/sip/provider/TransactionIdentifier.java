@@ -41,6 +41,11 @@ public class TransactionIdentifier extends Identifier
    {  id=method;
    }
 
+   /** Costructs a new TransactionIdentifier based on method name and request-uri user (used by shared SipProviders). */
+   public TransactionIdentifier(String method, String user)
+   {  id=method+"@"+user;
+   }
+
    /** Costructs a new TransactionIdentifier based on call-id, seqn, method, sent-by, and branch. */
    public TransactionIdentifier(String call_id, long seqn, String method, String sent_by, String branch)
    {  if (branch==null) branch="";
@@ -45,6 +45,9 @@ class UdpTransport implements Transport, UdpProviderListener
    /** UDP provider */
    UdpProvider udp_provider;  
 
+   /** Packet reused for sending */
+   UdpPacket s_packet=new UdpPacket(new byte[0],0);
+
        
    /** The protocol type */ 
    String proto;
@@ -83,11 +86,13 @@ class UdpTransport implements Transport, UdpProviderListener
    /** Sends a Message to a destination address and port */
    public void sendMessage(Message msg, IpAddress dest_ipaddr, int dest_port) throws IOException
    {  if (udp_provider!=null)
-      {  byte[] data=msg.toString().getBytes();
-         UdpPacket packet=new UdpPacket(data,data.length);
-         packet.setIpAddress(dest_ipaddr);
-         packet.setPort(dest_port);
-         udp_provider.send(packet);
+      {  byte[] data=msg.getBytes();
+         synchronized (s_packet)
+         {  s_packet.setData(data,0,data.length);
+            s_packet.setIpAddress(dest_ipaddr);
+            s_packet.setPort(dest_port);
+            udp_provider.send(s_packet);
+         }
       }
    }
 
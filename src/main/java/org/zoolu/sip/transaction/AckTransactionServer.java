@@ -114,6 +114,7 @@ public class AckTransactionServer extends Transaction {
 				retransmission_to = new Timer(timeout, retransmission_to.getLabel(), this);
 				retransmission_to.start();
 				sip_provider.sendMessage(response, connection_id);
+				sip_provider.countRetransmission();
 			}
 			if (to.equals(transaction_to) && statusIs(STATE_PROCEEDING)) {
 				log.warn("Transaction timeout expired");
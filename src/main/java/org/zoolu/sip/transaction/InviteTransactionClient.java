@@ -148,6 +148,7 @@ public class InviteTransactionClient extends TransactionClient {
 				// retransmission only in case of unreliable transport
 				if (connection_id == null) {
 					sip_provider.sendMessage(request);
+					sip_provider.countRetransmission();
 					long timeout = 2 * retransmission_to.getTime();
 					retransmission_to = new Timer(timeout, retransmission_to.getLabel(), this);
 					retransmission_to.start();
@@ -156,6 +157,7 @@ public class InviteTransactionClient extends TransactionClient {
 			}
 			if (to.equals(transaction_to)) {
 				log.warn("Transaction timeout expired");
+				sip_provider.countTransactionTimeout();
 				retransmission_to.halt();
 				end_to.halt();
 				sip_provider.removeSipProviderListener(transaction_id);
@@ -122,12 +122,23 @@ public class InviteTransactionServer extends TransactionServer {
 		this.auto_trying = auto_trying;
 	}
 
+	/**
+	 * Starts the InviteTransactionServer, capturing only the INVITE requests addressed to <i>user</i>. It requires a
+	 * SipProvider with user routing enabled.
+	 */
+	public void listen(String user) {
+		if (statusIs(STATE_IDLE)) {
+			transaction_id = new TransactionIdentifier(SipMethods.INVITE, user);
+		}
+		listen();
+	}
+
 	/** Starts the InviteTransactionServer. */
 	public void listen() {
 		log.trace("start");
 		if (statusIs(STATE_IDLE)) {
 			changeStatus(STATE_WAITING);
-			sip_provider.addSipProviderListener(new TransactionIdentifier(SipMethods.INVITE), this);
+			sip_provider.addSipProviderListener(transaction_id, this);
 		}
 	}
 
@@ -171,11 +182,12 @@ public class InviteTransactionServer extends TransactionServer {
 			// invite received
 			if (req_method.equals(SipMethods.INVITE)) {
 				if (statusIs(STATE_WAITING)) {
+					TransactionIdentifier listen_id = transaction_id;
 					request = new Message(msg);
 					connection_id = request.getConnectionId();
 					transaction_id = request.getTransactionId();
 					sip_provider.addSipProviderListener(transaction_id, this);
-					sip_provider.removeSipProviderListener(new TransactionIdentifier(SipMethods.INVITE));
+					sip_provider.removeSipProviderListener(listen_id);
 					changeStatus(STATE_TRYING);
 					// automatically send "100 Tryng" response and go to STATE_PROCEEDING
 					if (auto_trying) {
@@ -189,6 +201,7 @@ public class InviteTransactionServer extends TransactionServer {
 				}
 				if (statusIs(STATE_PROCEEDING) || statusIs(STATE_COMPLETED)) { // retransmission of the last response
 					sip_provider.sendMessage(response, connection_id);
+					sip_provider.countRetransmission();
 					return;
 				}
 			}
@@ -218,6 +231,7 @@ public class InviteTransactionServer extends TransactionServer {
 				retransmission_to = new Timer(timeout, retransmission_to.getLabel(), this);
 				retransmission_to.start();
 				sip_provider.sendMessage(response, connection_id);
+				sip_provider.countRetransmission();
 			}
 			if (to.equals(end_to) && statusIs(STATE_COMPLETED)) {
 				log.warn("End timeout expired");
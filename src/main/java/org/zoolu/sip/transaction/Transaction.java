@@ -115,6 +115,9 @@ public abstract class Transaction implements SipProviderListener, TimerListener
 
 	/** Changes the internal status */
 	void changeStatus(int newstatus) {
+		if (newstatus == STATE_TRYING && (status == STATE_IDLE || status == STATE_WAITING)) {
+			sip_provider.countTransaction();
+		}
 		status = newstatus;
 		// transaction_listener.onChangedTransactionStatus(status);
 		log.debug("changed transaction state: " + getStatus());
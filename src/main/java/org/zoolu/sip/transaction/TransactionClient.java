@@ -133,6 +133,7 @@ public class TransactionClient extends Transaction {
 				// retransmission only for unreliable transport
 				if (connection_id == null) {
 					sip_provider.sendMessage(request);
+					sip_provider.countRetransmission();
 					long timeout = 2 * retransmission_to.getTime();
 					if (timeout > SipStack.max_retransmission_timeout || statusIs(STATE_PROCEEDING))
 						timeout = SipStack.max_retransmission_timeout;
@@ -143,6 +144,7 @@ public class TransactionClient extends Transaction {
 			}
 			if (to.equals(transaction_to)) {
 				log.warn("Transaction timeout expired");
+				sip_provider.countTransactionTimeout();
 				retransmission_to.halt();
 				clearing_to.halt();
 				sip_provider.removeSipProviderListener(transaction_id);
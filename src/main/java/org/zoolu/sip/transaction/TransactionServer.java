@@ -138,6 +138,7 @@ public class TransactionServer extends Transaction {
 			if (statusIs(STATE_PROCEEDING) || statusIs(STATE_COMPLETED)) { // retransmission of the last response
 				log.trace("response retransmission");
 				sip_provider.sendMessage(response, connection_id);
+				sip_provider.countRetransmission();
 				return;
 			}
 		}
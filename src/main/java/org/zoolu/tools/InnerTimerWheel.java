@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.tools;
+
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/** Class InnerTimerWheel implements a hashed timer wheel.
+  * A single thread serves all instances: timeouts are hashed by expiration tick
+  * into a ring of buckets, so that scheduling and cancelling are O(1) and
+  * each tick only visits the timeouts of the current bucket.
+  * <p/> A cancelled timeout is unlinked from its bucket at the next tick. */
+class InnerTimerWheel extends Thread
+{
+   private static final Logger log=LoggerFactory.getLogger(InnerTimerWheel.class);
+
+   /** Number of buckets (must be a power of two) */
+   static final int WHEEL_SIZE=512;
+
+   /** Default tick duration in milliseconds */
+   static final long DEFAULT_TICK=10;
+
+   /** Tick duration in milliseconds of the wheel to be started, guarded by the class lock */
+   private static long next_tick_time=DEFAULT_TICK;
+
+   /** Max number of new timeouts moved into the wheel at each tick */
+   static final int MAX_TRANSFERS=100000;
+
+   /** The single wheel instance */
+   static InnerTimerWheel wheel=null;
+
+   /** Timeout states */
+   static final int ST_WAITING=0;
+   static final int ST_CANCELLED=1;
+   static final int ST_EXPIRED=2;
+
+   /** Wheel buckets; each bucket is the sentinel of a double-linked list */
+   InnerTimeout[] buckets;
+
+   /** Timeouts scheduled since the last tick */
+   Queue<InnerTimeout> new_timeouts=new ConcurrentLinkedQueue<InnerTimeout>();
+
+   /** Timeouts cancelled since the last tick */
+   Queue<InnerTimeout> cancelled_timeouts=new ConcurrentLinkedQueue<InnerTimeout>();
+
+   /** Number of scheduled timeouts that are neither expired nor cancelled */
+   AtomicInteger pending=new AtomicInteger(0);
+
+   /** Starting time of the wheel, in System.nanoTime() nanoseconds */
+   long start_time;
+
+   /** Tick duration in milliseconds, fixed when the wheel is started */
+   final long tick_time;
+
+   /** Current tick */
+   long tick=0;
+
+
+   /** Gets the wheel, starting it if needed. */
+   static synchronized InnerTimerWheel getWheel()
+   {  if (wheel==null) wheel=new InnerTimerWheel(next_tick_time);
+      return wheel;
+   }
+
+   /** Sets the tick duration (in milliseconds) of the wheel; it has effect only before the wheel is started. */
+   static synchronized void setTickTime(long tick_time)
+   {  next_tick_time=tick_time;
+   }
+
+   /** Gets the number of pending timeouts, or 0 if the wheel has not been started. */
+   static int getPending()
+   {  InnerTimerWheel w=wheel;
+      return (w!=null)? w.pending.get() : 0;
+   }
+
+   /** Creates and starts a new InnerTimerWheel ticking every <i>tick_time</i> milliseconds. */
+   InnerTimerWheel(long tick_time)
+   {  super("InnerTimerWheel");
+      this.tick_time=tick_time;
+      buckets=new InnerTimeout[WHEEL_SIZE];
+      for (int i=0; i<WHEEL_SIZE; i++) buckets[i]=new InnerTimeout(null,0);
+      start_time=System.nanoTime();
+      setDaemon(true);
+      start();
+   }
+
+   /** Schedules a new timeout of <i>timeout</i> milliseconds. */
+   InnerTimeout schedule(long timeout, InnerTimerListener listener)
+   {  InnerTimeout t=new InnerTimeout(listener,elapsed()+timeout);
+      pending.incrementAndGet();
+      new_timeouts.add(t);
+      return t;
+   }
+
+   /** The wheel loop */
+   public void run()
+   {  while (true)
+      {  long deadline=(tick+1)*tick_time;
+         long sleep=deadline-elapsed();
+         if (sleep>0)
+         {  try {  Thread.sleep(sleep);  } catch (InterruptedException e) {}
+            continue;
+         }
+         removeCancelled();
+         transferNew();
+         expire(buckets[(int)(tick&(WHEEL_SIZE-1))],deadline);
+         tick++;
+      }
+   }
+
+   /** Gets the milliseconds elapsed since the start of the wheel, on the monotonic clock. */
+   private long elapsed()
+   {  return (System.nanoTime()-start_time)/1000000;
+   }
+
+   /** Unlinks the cancelled timeouts from their buckets. */
+   private void removeCancelled()
+   {  InnerTimeout t;
+      while ((t=cancelled_timeouts.poll())!=null) t.unlink();
+   }
+
+   /** Moves the new timeouts into their buckets. */
+   private void transferNew()
+   {  for (int i=0; i<MAX_TRANSFERS; i++)
+      {  InnerTimeout t=new_timeouts.poll();
+         if (t==null) break;
+         if (t.state.get()!=ST_WAITING) continue;
+         long expiration_tick=t.deadline/tick_time;
+         t.rounds=(expiration_tick-tick)/WHEEL_SIZE;
+         InnerTimeout bucket=buckets[(int)(Math.max(expiration_tick,tick)&(WHEEL_SIZE-1))];
+         t.link(bucket);
+      }
+   }
+
+   /** Fires the timeouts of the bucket that are due by <i>deadline</i>. */
+   private void expire(InnerTimeout bucket, long deadline)
+   {  InnerTimeout t=bucket.next;
+      while (t!=bucket)
+      {  InnerTimeout next=t.next;
+         if (t.state.get()==ST_CANCELLED) t.unlink();
+         else
+         if (t.rounds<=0 && t.deadline<=deadline)
+         {  t.unlink();
+            t.expire();
+         }
+         else t.rounds--;
+         t=next;
+      }
+   }
+
+
+   /** A timeout scheduled on the wheel. */
+   class InnerTimeout
+   {
+      InnerTimerListener listener;
+      long deadline;
+      long rounds;
+      AtomicInteger state=new AtomicInteger(ST_WAITING);
+      InnerTimeout prev,next;
+
+      InnerTimeout(InnerTimerListener listener, long deadline)
+      {  this.listener=listener;
+         this.deadline=deadline;
+         prev=next=this;
+      }
+
+      /** Cancels the timeout; it is removed from the wheel at the next tick. */
+      void cancel()
+      {  if (state.compareAndSet(ST_WAITING,ST_CANCELLED))
+         {  listener=null;
+            pending.decrementAndGet();
+            cancelled_timeouts.add(this);
+         }
+      }
+
+      void expire()
+      {  if (state.compareAndSet(ST_WAITING,ST_EXPIRED))
+         {  pending.decrementAndGet();
+            InnerTimerListener l=listener;
+            listener=null;
+            try {  if (l!=null) l.onInnerTimeout();  } catch (Exception e) {  log.error("Timer listener failed",e);  }
+         }
+      }
+
+      void link(InnerTimeout bucket)
+      {  prev=bucket.prev;
+         next=bucket;
+         bucket.prev.next=this;
+         bucket.prev=this;
+      }
+
+      void unlink()
+      {  if (next==this) return;
+         prev.next=next;
+         next.prev=prev;
+         prev=next=this;
+      }
+   }
+}
@@ -24,6 +24,10 @@
 package org.zoolu.tools;
 
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 //PersonalJava
 //import java.util.HashSet;
 //import java.util.Iterator;
@@ -38,11 +42,28 @@ public class Timer implements InnerTimerListener
    /** Whether using single thread for all timer instances. */
    public static boolean SINGLE_THREAD=false; 
 
+   /** Whether using a hashed timer wheel for all timer instances (it overrides SINGLE_THREAD). */
+   public static boolean HASHED_WHEEL=false; 
+
+   /** Number of started timers that are neither expired nor halted */
+   static AtomicInteger active_timers=new AtomicInteger(0);
+   /** Total number of started timers */
+   static AtomicLong started_timers=new AtomicLong(0);
+   /** Total number of expired timers */
+   static AtomicLong expired_timers=new AtomicLong(0);
+   /** Total number of halted timers */
+   static AtomicLong halted_timers=new AtomicLong(0);
+
    //HashSet listener_list=null;
    TimerListener listener;
    long time;  
    String label;
-   boolean active;
+   /** Whether started and neither expired nor halted; halt() and the timeout race to clear it */
+   AtomicBoolean active=new AtomicBoolean(false);
+   /** The timeout scheduled on the timer wheel (if used) */
+   InnerTimerWheel.InnerTimeout wheel_timeout=null;
+   /** The task scheduled on the single thread timer (if used) */
+   InnerTimerST single_timeout=null;
 
 
    void init(long t_msec, String t_label, TimerListener t_listener)
@@ -51,7 +72,7 @@ public class Timer implements InnerTimerListener
       listener=t_listener;
       time=t_msec;
       label=t_label;
-      active=false;
+      active.set(false);
    }  
 
    /** Creates a new Timer of <i>msec</i> milliseconds.
@@ -100,7 +121,14 @@ public class Timer implements InnerTimerListener
    
    /** Stops the Timer. The onTimeout() method will not be fired. */
    public void halt()
-   {  active=false;
+   {  if (active.compareAndSet(true,false))
+      {  active_timers.decrementAndGet();
+         halted_timers.incrementAndGet();
+      }
+      if (wheel_timeout!=null) wheel_timeout.cancel();
+      wheel_timeout=null;
+      if (single_timeout!=null) single_timeout.cancel();
+      single_timeout=null;
       // (CHANGE-040421) now it can free the link to Timer listeners
       //listener_list=null;
       listener=null;
@@ -108,11 +136,44 @@ public class Timer implements InnerTimerListener
 
    /** Starts the timer */
    public void start()
-   {  active=true;
-      if (SINGLE_THREAD) new InnerTimerST(time,this);
+   {  if (active.compareAndSet(false,true)) active_timers.incrementAndGet();
+      started_timers.incrementAndGet();
+      if (HASHED_WHEEL) wheel_timeout=InnerTimerWheel.getWheel().schedule(time,this);
+      else
+      if (SINGLE_THREAD) single_timeout=new InnerTimerST(time,this);
       else new InnerTimer(time,this);
    }   
 
+   /** Gets the number of started timers that are neither expired nor halted. */
+   public static int getActiveTimers()
+   {  return active_timers.get();
+   }
+
+   /** Gets the number of timeouts pending on the timer wheel (0 if the wheel is not used). */
+   public static int getWheelPendingTimeouts()
+   {  return InnerTimerWheel.getPending();
+   }
+
+   /** Gets the total number of started timers. */
+   public static long getStartedTimers()
+   {  return started_timers.get();
+   }
+
+   /** Gets the total number of expired timers. */
+   public static long getExpiredTimers()
+   {  return expired_timers.get();
+   }
+
+   /** Gets the total number of halted timers. */
+   public static long getHaltedTimers()
+   {  return halted_timers.get();
+   }
+
+   /** Sets the tick of the timer wheel (in milliseconds); it has effect only before the first timer is started. */
+   public static void setWheelTick(long tick)
+   {  if (tick>0) InnerTimerWheel.setTickTime(tick);
+   }
+
 
    /** When the Timeout fires */
    public void onInnerTimeout()
@@ -121,11 +182,18 @@ public class Timer implements InnerTimerListener
       //   {  ((TimerListener)i.next()).onTimeout(this);
       //   }
       //}   
-      if (active && listener!=null) listener.onTimeout(this);  
+      boolean was_active=active.compareAndSet(true,false);
+      TimerListener t_listener=listener;
+      if (was_active)
+      {  active_timers.decrementAndGet();
+         expired_timers.incrementAndGet();
+      }
+      wheel_timeout=null;
+      single_timeout=null;
       // (CHANGE-040421) now it can free the link to Timer listeners
       //listener_list=null;
       listener=null;
-      active=false;
+      if (was_active && t_listener!=null) t_listener.onTimeout(this);  
    }   
 }
 
@@ -0,0 +1,110 @@
+package org.red5.codecs.asao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Checks the {@link Codec#process} overloads taking the scratch state of the stream: they code the same frames as the
+ * allocating overloads, and do not allocate once warmed up.
+ */
+public class CodecTest {
+	private static final int FRAMES = 200;
+	private static final int FRAME_SAMPLES = 256;
+	private static final int FRAME_BYTES = 64;
+
+	/** A chirp at half of the 16-bit range, sweeping through the bands. */
+	private static float[] signal(int frames) {
+		float[] samples = new float[frames * FRAME_SAMPLES];
+		for (int i = 0; i < samples.length; i++) {
+			double t = i / 8000.0;
+			samples[i] = (float) (16384 * Math.sin(2 * Math.PI * (200 + 1500 * t) * t));
+		}
+		return samples;
+	}
+
+	private static byte[] encode(float[] samples, int frames) {
+		byte[] coded = new byte[frames * FRAME_BYTES];
+		NellyEncoderMap map = new NellyEncoderMap(new Encoder());
+		for (int n = 0; n < frames; n++) {
+			encode(map, samples, n, coded);
+		}
+		return coded;
+	}
+
+	private static void encode(NellyEncoderMap map, float[] samples, int n, byte[] coded) {
+		Codec.process(map.a, samples, n * FRAME_SAMPLES, coded, n * FRAME_BYTES, map.c, map.d, map.e, map.f, map.g,
+				map.h, map.i, map.j);
+	}
+
+	private static void decode(NellyDecoderMap map, byte[] coded, int n, float[] samples) {
+		Codec.process(map.a, coded, n * FRAME_BYTES, samples, n * FRAME_SAMPLES, map.c, map.d, map.e, map.f, map.g,
+				map.h, map.i);
+	}
+
+	@Test
+	public void encodeMatchesAllocatingPath() {
+		float[] samples = signal(FRAMES);
+		byte[] expected = new byte[FRAMES * FRAME_BYTES];
+		NellyEncoderMap map = new NellyEncoderMap(new Encoder());
+		for (int n = 0; n < FRAMES; n++) {
+			Codec.process(map.a, samples, n * FRAME_SAMPLES, expected, n * FRAME_BYTES, map.c, map.d, map.e, map.f,
+					map.g, map.h);
+		}
+		assertArrayEquals(expected, encode(samples, FRAMES));
+	}
+
+	/**
+	 * The decoder fills the bands without bits with random noise, so the samples differ from one decoding to the
+	 * other; what is read from each frame, band values and bit allocation, must not.
+	 */
+	@Test
+	public void decodeMatchesAllocatingPath() {
+		byte[] coded = encode(signal(FRAMES), FRAMES);
+		float[] samples = new float[FRAMES * FRAME_SAMPLES];
+		NellyDecoderMap allocating = new NellyDecoderMap(new Decoder());
+		NellyDecoderMap map = new NellyDecoderMap(new Decoder());
+		for (int n = 0; n < FRAMES; n++) {
+			Codec.process(allocating.a, coded, n * FRAME_BYTES, samples, n * FRAME_SAMPLES, allocating.c,
+					allocating.d, allocating.e, allocating.f, allocating.g);
+			decode(map, coded, n, samples);
+			assertArrayEquals("values of frame " + n, allocating.f, map.f);
+			assertArrayEquals("allocation of frame " + n, allocating.g, map.g);
+		}
+	}
+
+	@Test
+	public void steadyStateDoesNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		float[] samples = signal(FRAMES);
+		byte[] coded = new byte[FRAMES * FRAME_BYTES];
+		float[] decoded = new float[FRAMES * FRAME_SAMPLES];
+		NellyEncoderMap encoder = new NellyEncoderMap(new Encoder());
+		NellyDecoderMap decoder = new NellyDecoderMap(new Decoder());
+		for (int n = 0; n < FRAMES; n++) {
+			encode(encoder, samples, n, coded);
+			decode(decoder, coded, n, decoded);
+		}
+
+		// reading the counter may allocate itself: measure it on its own first
+		long start = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - start;
+		start = threads.getThreadAllocatedBytes(thread);
+		for (int n = 0; n < FRAMES; n++) {
+			encode(encoder, samples, n, coded);
+			decode(decoder, coded, n, decoded);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+		assertTrue("allocated " + allocated + " bytes for " + FRAMES + " frames", allocated < FRAMES);
+	}
+}
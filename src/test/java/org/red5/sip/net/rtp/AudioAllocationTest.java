@@ -0,0 +1,188 @@
+package org.red5.sip.net.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.codecs.SIPCodec;
+import org.red5.codecs.SIPCodecPCMU;
+import org.red5.codecs.asao.Encoder;
+import org.red5.codecs.asao.EncoderMap;
+import org.red5.sip.app.IMediaReceiver;
+import org.red5.sip.app.IMediaSender;
+import org.red5.sip.app.IMediaStream;
+
+/**
+ * Checks that the RTMP to SIP audio path does not allocate once warmed up: the mixing tick of
+ * {@link RTPStreamMultiplexingSender}, over the buffers of its streams, and the per-stream transcoding of
+ * {@link RTPStream}, both down to the RTP packet sent.
+ */
+public class AudioAllocationTest {
+	private static final int STREAMS = 4;
+	private static final int FRAMES = 200;
+	/** Runs of FRAMES measured, after one to warm up. */
+	private static final int RUNS = 3;
+	private static final int FRAME_SAMPLES = 256;
+	private static final int FRAME_BYTES = 64;
+	/** Nellymoser frames to buffer in each stream before mixing. */
+	private static final int PREFILL = 10;
+
+	/** First byte of the RTMP audio data: Nellymoser, 22 kHz, 16-bit mono. */
+	private static final byte NELLYMOSER_22K = 0x6e;
+
+	/** RTMP audio data of a tone, as Flash Player sends it: a Nellymoser frame after the codec byte. */
+	private static byte[][] frames(int count) {
+		Encoder encoder = new Encoder();
+		EncoderMap map = null;
+		float[] samples = new float[FRAME_SAMPLES];
+		byte[][] frames = new byte[count][1 + FRAME_BYTES];
+		for (int n = 0; n < count; n++) {
+			for (int i = 0; i < FRAME_SAMPLES; i++) {
+				samples[i] = (float) (8000 * Math.sin(2 * Math.PI * 440 * (n * FRAME_SAMPLES + i) / 22050.0));
+			}
+			frames[n][0] = NELLYMOSER_22K;
+			map = encoder.encode(map, samples, 0, frames[n], 1);
+		}
+		return frames;
+	}
+
+	/** G.711 with the default packetization, as negotiated with SDP. */
+	private static SIPCodec codec() {
+		SIPCodec codec = new SIPCodecPCMU();
+		codec.encodeInit(SIPCodec.DEFAULT_PACKETIZATION);
+		codec.decodeInit(SIPCodec.DEFAULT_PACKETIZATION);
+		return codec;
+	}
+
+	private static final IMediaReceiver RECEIVER = new IMediaReceiver() {
+		public void pushAudio(byte[] audio, long ts, int codec) {
+		}
+
+		public void pushVideo(byte[] video, long ts) {
+		}
+
+		public void setVideoReceivingEnabled(boolean enable) {
+		}
+
+		public boolean isVideoReceivingEnabled() {
+			return false;
+		}
+
+		public void setAudioSender(IMediaSender sender) {
+		}
+
+		public void setVideoSender(IMediaSender sender) {
+		}
+	};
+
+	private com.sun.management.ThreadMXBean threads;
+	private final byte[][] frames = frames(50);
+	/** Receives the RTP packets, which are never read. */
+	private DatagramChannel sink;
+	private DatagramChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		sink = DatagramChannel.open();
+		sink.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+		if (sink != null) {
+			sink.close();
+		}
+	}
+
+	/**
+	 * Bytes allocated by the least allocating of {@link #RUNS} runs of <code>frames</code>: an allocation made once by
+	 * the runtime, e.g. while compiling, does not count, garbage made on every frame does.
+	 */
+	private long allocated(Runnable frames) {
+		long thread = Thread.currentThread().getId();
+		frames.run();
+		// reading the counter may allocate itself: measure it on its own first
+		long start = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - start;
+		long allocated = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++) {
+			start = threads.getThreadAllocatedBytes(thread);
+			frames.run();
+			allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - start - overhead);
+		}
+		return allocated;
+	}
+
+	@Test
+	public void mixingDoesNotAllocate() {
+		final RTPStreamMultiplexingSender mixer = new RTPStreamMultiplexingSender(RECEIVER, false, codec(),
+				channel.socket(), "127.0.0.1", sink.socket().getLocalPort());
+		mixer.prepare();
+		final IMediaStream[] streams = new IMediaStream[STREAMS];
+		for (int s = 0; s < STREAMS; s++) {
+			streams[s] = mixer.createStream(s + 1);
+		}
+		// a tick takes 20 ms of audio at 22050 Hz from each stream: the streams are fed at that pace
+		final double framesPerTick = 22050 * 0.020 / FRAME_SAMPLES;
+		long allocated = allocated(new Runnable() {
+			private int frame = 0;
+			private long ticks = 0;
+			private long sent = -PREFILL;
+
+			public void run() {
+				for (int n = 0; n < FRAMES; n++) {
+					for (; sent < ticks * framesPerTick; sent++) {
+						byte[] data = frames[frame++ % frames.length];
+						for (IMediaStream stream : streams) {
+							stream.send(0, data, 1, FRAME_BYTES);
+						}
+					}
+					mixer.mix();
+					ticks++;
+				}
+			}
+		});
+		assertEquals("underruns", 0, mixer.getBufferUnderruns());
+		assertEquals("overflows", 0, mixer.getBufferOverflows());
+		assertEquals("packets", (1 + RUNS) * FRAMES, mixer.getPacketsSent());
+		assertTrue("allocated " + allocated + " bytes for " + FRAMES + " ticks", allocated < FRAMES);
+	}
+
+	@Test
+	public void transcodingDoesNotAllocate() {
+		RTPStreamSender sender = new RTPStreamSender(RECEIVER, false, codec(), channel.socket(),
+				"127.0.0.1", sink.socket().getLocalPort());
+		sender.start();
+		final IMediaStream stream = sender.createStream(1);
+		long allocated = allocated(new Runnable() {
+			private int frame = 0;
+
+			public void run() {
+				for (int n = 0; n < FRAMES; n++) {
+					byte[] data = frames[frame++ % frames.length];
+					stream.send(0, data, 1, FRAME_BYTES);
+				}
+			}
+		});
+		assertTrue("allocated " + allocated + " bytes for " + FRAMES + " frames", allocated < FRAMES);
+	}
+}
@@ -0,0 +1,153 @@
+package org.red5.sip.net.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks the play-out of {@link JitterBuffer}: order, duplicates, late frames, concealment of lost frames and the
+ * adaptation of its delay. Unless a test is about the jitter, frames are put with the same timestamp, which the buffer
+ * sees as a constant transit time: no jitter, so the target delay stays at its minimum.
+ */
+public class JitterBufferTest {
+	private static final int FRAME_SIZE = 4;
+	private static final int CAPACITY = 16;
+	private static final int SAMPLES_PER_FRAME = 160;
+	private static final int MIN_DELAY = 2;
+	private static final int MAX_DELAY = 8;
+	private static final byte CONCEALED = (byte) 0xee;
+
+	/** Fills the lost frames with {@link #CONCEALED}, and records what it is given. */
+	private static class Concealment implements JitterBuffer.Concealment {
+		byte[] last;
+		int lostCount;
+
+		public int conceal(byte[] last, int lastLength, int lostCount, byte[] out) {
+			this.last = last == null ? null : Arrays.copyOf(last, lastLength);
+			this.lostCount = lostCount;
+			Arrays.fill(out, 0, FRAME_SIZE, CONCEALED);
+			return FRAME_SIZE;
+		}
+	}
+
+	private final Concealment concealment = new Concealment();
+	private final JitterBuffer buffer = new JitterBuffer(FRAME_SIZE, CAPACITY, SAMPLES_PER_FRAME, 8000, MIN_DELAY,
+			MAX_DELAY, concealment);
+
+	private static byte[] frame(int seq) {
+		return new byte[] { (byte) seq, (byte) seq, (byte) seq, (byte) seq };
+	}
+
+	private void put(int... seqs) {
+		for (int seq : seqs) {
+			buffer.put(seq & 0xffff, 0, frame(seq), 0, FRAME_SIZE);
+		}
+	}
+
+	private byte[] get() {
+		byte[] dst = new byte[FRAME_SIZE];
+		int len = buffer.get(dst);
+		return len == -1 ? null : Arrays.copyOf(dst, len);
+	}
+
+	@Test
+	public void buffersUpToTheTargetDelay() {
+		put(0);
+		assertNull("buffering", get());
+		put(1);
+		assertArrayEquals(frame(0), get());
+	}
+
+	@Test
+	public void playsReorderedFramesInOrder() {
+		put(0, 2, 1, 3);
+		for (int seq = 0; seq < 4; seq++) {
+			assertArrayEquals("frame " + seq, frame(seq), get());
+		}
+		assertNull(get());
+		assertEquals(1, buffer.getUnderruns());
+		assertEquals(0, buffer.getConcealed());
+	}
+
+	@Test
+	public void followsSequenceWrap() {
+		put(65534, 65535, 65536, 65537);
+		for (int seq = 65534; seq < 65538; seq++) {
+			assertArrayEquals("frame " + seq, frame(seq), get());
+		}
+	}
+
+	@Test
+	public void dropsDuplicates() {
+		put(0, 1, 1, 2);
+		assertEquals(3, buffer.getReceived());
+		assertEquals(1, buffer.getDuplicates());
+		for (int seq = 0; seq < 3; seq++) {
+			assertArrayEquals("frame " + seq, frame(seq), get());
+		}
+		assertNull(get());
+	}
+
+	@Test
+	public void dropsLateFrames() {
+		put(0, 1, 2);
+		assertArrayEquals(frame(0), get());
+		put(0);
+		assertEquals(1, buffer.getLate());
+		assertArrayEquals(frame(1), get());
+		assertArrayEquals(frame(2), get());
+	}
+
+	@Test
+	public void concealsLostFrames() {
+		put(0, 3);
+		assertArrayEquals(frame(0), get());
+		assertArrayEquals(new byte[] { CONCEALED, CONCEALED, CONCEALED, CONCEALED }, get());
+		assertArrayEquals("last frame played", frame(0), concealment.last);
+		assertEquals(1, concealment.lostCount);
+		get();
+		assertEquals("consecutive losses", 2, concealment.lostCount);
+		assertArrayEquals(frame(3), get());
+		assertEquals(2, buffer.getConcealed());
+	}
+
+	@Test
+	public void dropsFramesAboveTheTargetDelay() {
+		put(0, 1, 2, 3, 4, 5);
+		assertEquals(MIN_DELAY, buffer.getTargetDelay());
+		// 6 frames buffered, more than the target and its margin of 2: the oldest is dropped
+		assertArrayEquals(frame(1), get());
+		assertEquals(1, buffer.getDropped());
+		assertArrayEquals(frame(2), get());
+		assertEquals(1, buffer.getDropped());
+	}
+
+	@Test
+	public void adaptsTheTargetDelayToTheJitter() {
+		for (int seq = 0; seq < 100; seq++) {
+			// arrivals alternately on time and 5 frames late
+			buffer.put(seq, seq * SAMPLES_PER_FRAME - (seq % 2) * 5 * SAMPLES_PER_FRAME, frame(seq), 0, FRAME_SIZE);
+		}
+		assertEquals(MAX_DELAY, buffer.getTargetDelay());
+
+		JitterBuffer steady = new JitterBuffer(FRAME_SIZE, CAPACITY, SAMPLES_PER_FRAME, 8000, MIN_DELAY, MAX_DELAY,
+				concealment);
+		for (int seq = 0; seq < 100; seq++) {
+			steady.put(seq, 0, frame(seq), 0, FRAME_SIZE);
+		}
+		assertEquals(MIN_DELAY, steady.getTargetDelay());
+	}
+
+	@Test
+	public void restartsOnASequenceJump() {
+		put(0, 1);
+		assertArrayEquals(frame(0), get());
+		put(1000, 1001);
+		assertArrayEquals(frame(1000), get());
+		assertArrayEquals(frame(1001), get());
+	}
+}
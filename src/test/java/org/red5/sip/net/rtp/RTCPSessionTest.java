@@ -0,0 +1,163 @@
+package org.red5.sip.net.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends RTCP between two {@link RTCPSession}s over the loopback, and checks what each one reads from the other: the
+ * loss and round trip time of the sender and receiver reports, the sequences of a generic NACK and a keyframe request.
+ */
+public class RTCPSessionTest {
+	private static final int CLOCK_RATE = 90000;
+	private static final long SSRC_A = 0x11111111L;
+	private static final long SSRC_B = 0x22222222L;
+	private static final long TIMEOUT = 5000;
+
+	/** Records the feedback received. */
+	private static class Listener implements RTCPSession.Listener {
+		final List<Integer> nacks = new ArrayList<Integer>();
+		int keyframeRequests;
+
+		public synchronized void onNack(int sequence) {
+			nacks.add(sequence);
+		}
+
+		public synchronized void onKeyframeRequest() {
+			keyframeRequests++;
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	private final Listener listenerA = new Listener();
+	private final Listener listenerB = new Listener();
+	private final RTPSendStatistics sentA = new RTPSendStatistics(CLOCK_RATE);
+	private final RTPReceiveStatistics receivedA = new RTPReceiveStatistics(CLOCK_RATE);
+	private final RTPSendStatistics sentB = new RTPSendStatistics(CLOCK_RATE);
+	private final RTPReceiveStatistics receivedB = new RTPReceiveStatistics(CLOCK_RATE);
+	private int portA;
+	private int portB;
+	private RTCPSession a;
+	private RTCPSession b;
+
+	private static int freePort() throws IOException {
+		DatagramSocket socket = new DatagramSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static void await(String what, Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.holds()) {
+			assertTrue(what, System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		portA = freePort();
+		portB = freePort();
+		sentA.setSsrc(SSRC_A);
+		sentB.setSsrc(SSRC_B);
+		a = new RTCPSession(portA, "127.0.0.1", portB, sentA, receivedA, CLOCK_RATE, listenerA);
+		b = new RTCPSession(portB, "127.0.0.1", portA, sentB, receivedB, CLOCK_RATE, listenerB);
+		a.start();
+		b.start();
+	}
+
+	@After
+	public void tearDown() {
+		a.stop();
+		b.stop();
+	}
+
+	@Test
+	public void reportsLossAndRoundTripTime() throws InterruptedException {
+		// A sends 10 packets, B receives all but the fourth
+		for (int seq = 0; seq < 10; seq++) {
+			sentA.onPacketSent(seq * 3000, 100);
+			if (seq != 3) {
+				receivedB.onPacketReceived(SSRC_A, seq, seq * 3000);
+			}
+		}
+		a.sendReport();
+		await("sender report received", new Condition() {
+			public boolean holds() {
+				return b.getReportsReceived() == 1;
+			}
+		});
+		// B has sent nothing: its receiver report answers the sender report of A
+		b.sendReport();
+		await("receiver report received", new Condition() {
+			public boolean holds() {
+				return a.getReportsReceived() == 1;
+			}
+		});
+		assertEquals(1, a.getCumulativeLost());
+		assertEquals((1 << 8) / 10 / 256.0, a.getFractionLost(), 0);
+		assertTrue("round trip time " + a.getRoundTripTime(), a.getRoundTripTime() >= 0 && a.getRoundTripTime() < 1);
+		// no report block about B, which has sent nothing
+		assertEquals(0, b.getCumulativeLost());
+		assertEquals(-1, b.getRoundTripTime(), 0);
+	}
+
+	@Test
+	public void readsGenericNacks() throws Exception {
+		// lost packet 65534 and, in the bitmask, 65535, 0 and 14
+		byte[] nack = new byte[] { (byte) 0x81, (byte) 205, 0, 3,
+				0x22, 0x22, 0x22, 0x22,
+				0x11, 0x11, 0x11, 0x11,
+				(byte) 0xff, (byte) 0xfe, (byte) 0x80, 0x03 };
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.send(ByteBuffer.wrap(nack), new InetSocketAddress(InetAddress.getLoopbackAddress(), portA));
+		} finally {
+			channel.close();
+		}
+		await("NACK received", new Condition() {
+			public boolean holds() {
+				return a.getNacksReceived() == 4;
+			}
+		});
+		synchronized (listenerA) {
+			assertEquals(Arrays.asList(65534, 65535, 0, 14), listenerA.nacks);
+		}
+	}
+
+	@Test
+	public void requestsKeyframes() throws InterruptedException {
+		assertFalse("SSRC to refresh unknown", b.requestKeyframe());
+		receivedB.onPacketReceived(SSRC_A, 0, 0);
+		assertTrue(b.requestKeyframe());
+		await("keyframe request received", new Condition() {
+			public boolean holds() {
+				return a.getKeyframeRequestsReceived() == 1;
+			}
+		});
+		assertEquals(1, b.getKeyframeRequestsSent());
+		// the PLI and the FIR of the request are one request
+		synchronized (listenerA) {
+			assertEquals(1, listenerA.keyframeRequests);
+		}
+		assertEquals(0, a.getNacksReceived());
+	}
+}
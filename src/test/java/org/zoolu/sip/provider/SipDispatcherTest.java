@@ -0,0 +1,123 @@
+package org.zoolu.sip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.zoolu.sip.message.Message;
+
+/**
+ * Checks that {@link SipDispatcher} keeps the messages of a dialog in order while spreading dialogs over its lanes, and
+ * counts the messages dropped by a full lane.
+ */
+public class SipDispatcherTest {
+	private static final int DIALOGS = 20;
+	private static final int MESSAGES = 50;
+
+	/** Records the messages processed, instead of passing them to listeners. */
+	private static class Provider extends SipProvider {
+		final Map<String, List<Long>> received = new HashMap<String, List<Long>>();
+		final CountDownLatch processed;
+		final CountDownLatch release;
+
+		Provider(int port, int messages, CountDownLatch release) {
+			super("127.0.0.1", port, new String[] { PROTO_UDP }, "127.0.0.1");
+			this.processed = new CountDownLatch(messages);
+			this.release = release;
+		}
+
+		@Override
+		protected void processReceivedMessage(Message msg) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String callId = msg.getCallIdHeader().getCallId();
+			synchronized (received) {
+				List<Long> sequence = received.get(callId);
+				if (sequence == null) {
+					sequence = new ArrayList<Long>();
+					received.put(callId, sequence);
+				}
+				sequence.add(msg.getCSeqHeader().getSequenceNumber());
+			}
+			processed.countDown();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		DatagramSocket socket = new DatagramSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static Message request(int dialog, int sequence) {
+		return new Message("INFO sip:6001@127.0.0.1 SIP/2.0\r\n"
+				+ "Via: SIP/2.0/UDP 127.0.0.1:5060;branch=z9hG4bK" + dialog + "x" + sequence + "\r\n"
+				+ "From: <sip:6002@127.0.0.1>;tag=" + dialog + "\r\n"
+				+ "To: <sip:6001@127.0.0.1>\r\n"
+				+ "Call-ID: " + dialog + "@127.0.0.1\r\n"
+				+ "CSeq: " + sequence + " INFO\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "\r\n");
+	}
+
+	@Test
+	public void keepsDialogOrder() throws Exception {
+		SipDispatcher dispatcher = new SipDispatcher(4, DIALOGS * MESSAGES);
+		Provider provider = new Provider(freePort(), DIALOGS * MESSAGES, new CountDownLatch(0));
+		try {
+			for (int n = 1; n <= MESSAGES; n++) {
+				for (int dialog = 0; dialog < DIALOGS; dialog++) {
+					dispatcher.dispatch(provider, request(dialog, n));
+				}
+			}
+			assertTrue("messages processed", provider.processed.await(10, TimeUnit.SECONDS));
+		} finally {
+			provider.halt();
+		}
+		assertEquals(DIALOGS, provider.received.size());
+		for (Map.Entry<String, List<Long>> dialog : provider.received.entrySet()) {
+			List<Long> sequence = dialog.getValue();
+			assertEquals(dialog.getKey(), MESSAGES, sequence.size());
+			for (int n = 0; n < MESSAGES; n++) {
+				assertEquals(dialog.getKey(), n + 1, sequence.get(n).longValue());
+			}
+		}
+		assertEquals(DIALOGS * MESSAGES, dispatcher.getDispatched());
+		assertEquals(0, dispatcher.getDropped());
+	}
+
+	@Test
+	public void countsOverflow() throws Exception {
+		SipDispatcher dispatcher = new SipDispatcher(1, 2);
+		CountDownLatch release = new CountDownLatch(1);
+		Provider provider = new Provider(freePort(), 3, release);
+		try {
+			// the first message is handed to the lane thread, which blocks on it; the next two wait in the lane
+			for (int n = 1; n <= 5; n++) {
+				dispatcher.dispatch(provider, request(0, n));
+			}
+			assertEquals(3, dispatcher.getDispatched());
+			assertEquals(2, dispatcher.getDropped());
+			assertEquals(2, dispatcher.getQueueDepth());
+			assertEquals(2, dispatcher.getMaxQueueDepth());
+			release.countDown();
+			assertTrue("messages processed", provider.processed.await(10, TimeUnit.SECONDS));
+		} finally {
+			provider.halt();
+		}
+		assertEquals(3, provider.received.get("0@127.0.0.1").size());
+	}
+}
@@ -0,0 +1,98 @@
+package org.zoolu.sip.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.zoolu.sip.message.Message;
+
+/**
+ * Feeds a stream of pipelined messages to {@link SipStreamFramer} cut at every possible place: the same messages must
+ * come out whatever the reads.
+ */
+public class SipStreamFramerTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Body with multi-byte characters: its Content-Length, in bytes, is larger than its length in chars. */
+	private static final String BODY = "v=0\r\n"
+			+ "o=Jos\u00e9 1646523145 1646523145 IN IP4 192.168.1.1\r\n"
+			+ "s=R\u00e9union \u4f1a\u8b70\r\n"
+			+ "c=IN IP4 192.168.1.1\r\n"
+			+ "t=0 0\r\n"
+			+ "m=audio 17278 RTP/AVP 0\r\n";
+
+	private static final String INVITE = "INVITE sip:6001@192.168.1.10:5070 SIP/2.0\r\n"
+			+ "Via: SIP/2.0/TCP 192.168.1.1:5060;branch=z9hG4bK2b7c1e5f\r\n"
+			+ "From: <sip:6002@asterisk.example.com>;tag=as3a1c4b2e\r\n"
+			+ "To: <sip:6001@192.168.1.10:5070>\r\n"
+			+ "Call-ID: 5d1e0a6f3b8c7d9e@192.168.1.1\r\n"
+			+ "CSeq: 102 INVITE\r\n"
+			+ "c: application/sdp\r\n"
+			+ "l: " + BODY.getBytes(UTF_8).length + "\r\n"
+			+ "\r\n"
+			+ BODY;
+
+	private static final String OK = "SIP/2.0 200 OK\r\n"
+			+ "Via: SIP/2.0/TCP 192.168.1.10:5070;branch=z9hG4bK7d2e4f81\r\n"
+			+ "From: <sip:6001@asterisk.example.com>;tag=z9hG4bK11387215\r\n"
+			+ "To: <sip:6002@asterisk.example.com>;tag=as5f8e2a9d\r\n"
+			+ "Call-ID: 371650284913@192.168.1.10\r\n"
+			+ "CSeq: 1 INVITE\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+
+	/** The two messages, separated by a keep-alive. */
+	private static final byte[] STREAM = (INVITE + "\r\n\r\n" + OK).getBytes(UTF_8);
+
+	private static void drain(SipStreamFramer framer, List<String> messages) throws IOException {
+		Message msg;
+		while ((msg = framer.getSipMessage()) != null) {
+			messages.add(msg.toString());
+		}
+	}
+
+	private static void assertMessages(String reads, List<String> messages) {
+		assertEquals(reads, 2, messages.size());
+		assertEquals(reads, INVITE, messages.get(0));
+		assertEquals(reads, OK, messages.get(1));
+	}
+
+	@Test
+	public void framesWholeStream() throws IOException {
+		SipStreamFramer framer = new SipStreamFramer();
+		List<String> messages = new ArrayList<String>();
+		framer.append(STREAM, 0, STREAM.length);
+		drain(framer, messages);
+		assertMessages("single read", messages);
+	}
+
+	@Test
+	public void framesStreamSplitAtEveryOffset() throws IOException {
+		for (int split = 0; split <= STREAM.length; split++) {
+			SipStreamFramer framer = new SipStreamFramer();
+			List<String> messages = new ArrayList<String>();
+			framer.append(STREAM, 0, split);
+			drain(framer, messages);
+			framer.append(STREAM, split, STREAM.length - split);
+			drain(framer, messages);
+			assertMessages("split at " + split, messages);
+			assertNull(framer.getSipMessage());
+		}
+	}
+
+	@Test
+	public void framesStreamReadByteByByte() throws IOException {
+		SipStreamFramer framer = new SipStreamFramer();
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < STREAM.length; i++) {
+			framer.append(STREAM, i, 1);
+			drain(framer, messages);
+		}
+		assertMessages("byte by byte", messages);
+	}
+}